@@ -24,6 +24,8 @@ public class GuideAccount {
 
     private HomeActivity currentActivity;
     private final EventInfoFixed eventInfoFixed;
+    /** Content hash of event details, sent at login to skip downloading them again */
+    private String eventDetailsHash;
     private EventInfoUpdate eventInfoUpdate;
     private QueueInfo[] queues;
     private int queuesSize = 0;
@@ -45,6 +47,14 @@ public class GuideAccount {
         return this.eventInfoFixed;
     }
 
+    public String getEventDetailsHash() {
+        return this.eventDetailsHash;
+    }
+
+    public void setEventDetailsHash(String eventDetailsHash) {
+        this.eventDetailsHash = eventDetailsHash;
+    }
+
     public EventInfoUpdate getEventInfoUpdate() {
         return this.eventInfoUpdate;
     }
@@ -3,15 +3,23 @@ package com.example.eventorganizer;
 import android.util.Log;
 import network_structures.*;
 
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Iterator;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Task responsible for handling server communication, ran on separate thread
@@ -40,12 +48,15 @@ public class TaskManager implements Runnable {
     private static final String host = "10.0.2.2";
     /** Server port */
     private static final int port = 9999;
+    /** Whether server runs non-blocking transport, exchanging length-prefixed frames instead of object streams */
+    private static final boolean FRAMED_TRANSPORT = false;
+    /** Whether to request compact binary codec at login; server without its support keeps current format */
+    private static final boolean REQUEST_BINARY_CODEC = true;
+    /** Codec confirmed by server at login, null until then */
+    private final AtomicReference<MessageCodec> negotiatedCodec = new AtomicReference<>();
     /** Socket connecting with server */
     private Socket socket = null;
 
-    /// TODO
-    private static final long UPDATE_DELAY_MS = 1000;
-
     /// TODO
     private static final int TIMEOUT_MS = 10 * 1000;
 
@@ -127,7 +138,10 @@ public class TaskManager implements Runnable {
                     loginToServer(message);
                 } break;
                 case "event_details": {
-                    GuideAccount.createInstance((EventInfoFixed) message.getData());
+                    if (EventDetails.isUnchanged(message) && GuideAccount.getInstance() != null)
+                        break;
+                    if (GuideAccount.createInstance((EventInfoFixed) message.getData()) && message.getArgs().length > 0)
+                        GuideAccount.getInstance().setEventDetailsHash(message.getArgs()[0]);
                     Collection<SectorInfoFixed> sectorsInfoFixed = GuideAccount.getInstance().getEventInfoFixed().getSectors().values();
                     for (SectorInfoFixed sectorInfoFixed : sectorsInfoFixed) {
                         Collection<RoomInfoFixed> roomsInfoFixed = sectorInfoFixed.getRooms().values();
@@ -185,8 +199,9 @@ public class TaskManager implements Runnable {
         try {
             this.socket = new Socket();
             this.socket.connect(new InetSocketAddress(host, port), TIMEOUT_MS);
-            new Thread(new OutputToServer(new ObjectOutputStream(socket.getOutputStream()), messagesToSend)).start();
-            new Thread(new InputFromServer(new ObjectInputStream(socket.getInputStream()), this::addIncomingMessage)).start();
+            negotiatedCodec.set(null);
+            new Thread(new OutputToServer(socket.getOutputStream(), FRAMED_TRANSPORT, negotiatedCodec, messagesToSend)).start();
+            new Thread(new InputFromServer(socket.getInputStream(), FRAMED_TRANSPORT, negotiatedCodec, this::addIncomingMessage)).start();
         } catch (IOException e) {
             return false;
         }
@@ -215,7 +230,16 @@ public class TaskManager implements Runnable {
                     return true;
                 })
         );
-        sendMessage(new NetworkMessage(message.getCommand(), message.getArgs(), null, streamId));
+        String[] args = message.getArgs();
+        if (REQUEST_BINARY_CODEC) {
+            args = Arrays.copyOf(args, args.length + 1);
+            args[args.length - 1] = BinaryCodec.LOGIN_ARGUMENT_PREFIX + BinaryCodec.NAME;
+        }
+        if (GuideAccount.getInstance() != null && GuideAccount.getInstance().getEventDetailsHash() != null) {
+            args = Arrays.copyOf(args, args.length + 1);
+            args[args.length - 1] = EventDetails.LOGIN_ARGUMENT_PREFIX + GuideAccount.getInstance().getEventDetailsHash();
+        }
+        sendMessage(new NetworkMessage(message.getCommand(), args, null, streamId));
     }
 
     /// TODO:
@@ -255,33 +279,24 @@ public class TaskManager implements Runnable {
     }
 
     /**
-     * Creates lingering tasks responsible for pulling updates from server
-     * and passing them to the UI thread, given proper request message
+     * Subscribes to event state changes pushed by server and creates lingering task passing them
+     * to the UI thread, given proper request message
      * @param message Message containing method used for handling updates received from server
      */
     private void startRequestingUpdates(BaseMessage message) {
-        long streamId = TaskManager.nextCommunicationStream();
-        lingeringTasks.add(new LingeringTask(
+        EventInfoUpdate known = GuideAccount.getInstance().getEventInfoUpdate();
+        startSubscription(
                 "update",
-                streamId,
-                new Runnable() {
-                    private long lastRequestUpdateTime = System.currentTimeMillis();
-                    @Override
-                    public void run() {
-                        long currentTime = System.currentTimeMillis();
-                        if (currentTime - lastRequestUpdateTime > UPDATE_DELAY_MS) {
-                            sendMessage(new NetworkMessage(
-                                    "update",
-                                    null,
-                                    null,
-                                    streamId
-                            ));
-                            lastRequestUpdateTime = currentTime;
-                        }
-                    }
-                }, (msg) -> {
-                    GuideAccount.getInstance().setEventInfoUpdate((EventInfoUpdate) msg.getData());
-                    Collection<SectorInfoUpdate> sectorsInfoUpdate = GuideAccount.getInstance().getEventInfoUpdate().getSectors().values();
+                (known != null ? new String[] { "update", String.valueOf(known.getVersion()) } : new String[] { "update" }),
+                HomeActivity::isUpdating,
+                (msg) -> {
+                    EventInfoUpdate received = (EventInfoUpdate) msg.getData();
+                    EventInfoUpdate current = GuideAccount.getInstance().getEventInfoUpdate();
+                    if (current != null && received.isDelta())
+                        current.merge(received);
+                    else
+                        GuideAccount.getInstance().setEventInfoUpdate(received);
+                    Collection<SectorInfoUpdate> sectorsInfoUpdate = received.getSectors().values();
                     for (SectorInfoUpdate sectorInfoUpdate : sectorsInfoUpdate) {
                         Collection<RoomInfoUpdate> roomsInfoUpdate = sectorInfoUpdate.getRooms().values();
                         for (RoomInfoUpdate roomInfoUpdate : roomsInfoUpdate) {
@@ -291,11 +306,54 @@ public class TaskManager implements Runnable {
                     if (HomeActivity.isUpdating()) {
                         ((Runnable) message.getData()).run();
                     }
-                    return !HomeActivity.isUpdating();
-                })
+                    return false;
+                }
         );
     }
 
+    /**
+     * Subscribes to topic pushed by server, replacing previous subscription of the same topic.
+     * Created lingering task cancels subscription once it is no longer active.
+     * @param topic Subscribed topic, also command of pushed messages
+     * @param args Arguments of subscription request, topic first
+     * @param isActive Condition of keeping subscription
+     * @param callable Callable to perform on every pushed message
+     */
+    private void startSubscription(String topic, String[] args, SubscriptionCondition isActive, LingeringTask.Callable callable) {
+        cancelSubscription(topic, false);
+        long streamId = TaskManager.nextCommunicationStream();
+        lingeringTasks.add(new LingeringTask(
+                topic,
+                streamId,
+                () -> {
+                    if (!isActive.isActive()) {
+                        cancelSubscription(topic, true);
+                    }
+                },
+                callable
+        ));
+        sendMessage(new NetworkMessage("subscribe", args, null, streamId));
+    }
+
+    /**
+     * Removes lingering tasks of given subscription
+     * @param topic Subscribed topic
+     * @param notifyServer True if server should stop pushing given topic
+     */
+    private void cancelSubscription(String topic, boolean notifyServer) {
+        boolean removed = false;
+        Iterator<LingeringTask> iterator = lingeringTasks.iterator();
+        while (iterator.hasNext()) {
+            if (topic.equals(iterator.next().getCommand())) {
+                iterator.remove();
+                removed = true;
+            }
+        }
+        if (removed && notifyServer) {
+            sendMessage(new NetworkMessage("unsubscribe", new String[] { topic }, null, TaskManager.nextCommunicationStream()));
+        }
+    }
+
     private void handleReservation(BaseMessage message) {
         HomeActivity activity = GuideAccount.getInstance().getCurrentActivity();
         if (activity != null) {
@@ -359,21 +417,18 @@ public class TaskManager implements Runnable {
     }
 
     private void startRequestingTickets(BaseMessage message) {
-        long streamId = TaskManager.nextCommunicationStream();
-        lingeringTasks.add(new LingeringTask(
+        startSubscription(
                 "view_tickets",
-                streamId,
-                null,
+                new String[] { "view_tickets" },
+                HomeActivity::isShowingTickets,
                 (msg) -> {
                     GuideAccount.getInstance().setQueues((QueueInfo[]) msg.getData());
                     if (HomeActivity.isShowingTickets()) {
                         ((Runnable) message.getData()).run();
-                        sendMessage(new NetworkMessage(message.getCommand(), message.getArgs(), null, streamId));
                     }
-                    return !HomeActivity.isShowingTickets();
+                    return false;
                 }
-        ));
-        sendMessage(new NetworkMessage(message.getCommand(), message.getArgs(), null, streamId));
+        );
     }
 
     /**
@@ -458,23 +513,49 @@ public class TaskManager implements Runnable {
         }
     }
 
+    /**
+     * Condition of keeping subscription, checked whenever lingering task of subscription is run
+     */
+    private interface SubscriptionCondition {
+        /**
+         * @return True if subscription should be kept, false if it should be cancelled
+         */
+        boolean isActive();
+    }
+
     /**
      * Task responsible for receiving data from server, ran on separate thread
      */
     private static class InputFromServer implements Runnable {
 
-        /** Input stream to read data from */
+        /** Raw input of socket, used to read frames once codec has been negotiated */
+        private final InputStream rawIn;
+        /** Input stream to read data from, used with object stream transport */
         private final ObjectInputStream in;
+        /** Input stream to read frames from, used with framed transport or negotiated codec */
+        private DataInputStream framedIn;
+        /** Codec of frames, null while object stream transport is used */
+        private MessageCodec codec;
+        /** Codec negotiated at login, shared with output task */
+        private final AtomicReference<MessageCodec> negotiatedCodec;
         /** Interface for passing received messages to TaskManager */
         private final PassMessageToTaskManagerInterface taskManagerInterface;
 
         /**
          * Basic constructor
-         * @param in Input stream linked with server
+         * @param rawIn Input stream linked with server
+         * @param framed True if server uses framed transport, false if it uses object streams
+         * @param negotiatedCodec Reference to set once server confirms codec requested at login
          * @param taskManagerInterface Callback to pass message to
+         * @throws IOException When object stream header could not be read
          */
-        public InputFromServer(ObjectInputStream in, PassMessageToTaskManagerInterface taskManagerInterface) {
-            this.in = in;
+        public InputFromServer(InputStream rawIn, boolean framed, AtomicReference<MessageCodec> negotiatedCodec,
+                               PassMessageToTaskManagerInterface taskManagerInterface) throws IOException {
+            this.rawIn = rawIn;
+            this.in = (framed ? null : new ObjectInputStream(rawIn));
+            this.framedIn = (framed ? new DataInputStream(rawIn) : null);
+            this.codec = (framed ? MessageFrames.SERIALIZED_CODEC : null);
+            this.negotiatedCodec = negotiatedCodec;
             this.taskManagerInterface = taskManagerInterface;
         }
 
@@ -484,6 +565,8 @@ public class TaskManager implements Runnable {
          */
         private NetworkMessage receive() {
             try {
+                if (this.codec != null)
+                    return this.codec.read(this.framedIn);
                 return (NetworkMessage) this.in.readObject();
             } catch (EOFException e) {
                 /// reconnect handling
@@ -495,6 +578,21 @@ public class TaskManager implements Runnable {
             return null;
         }
 
+        /**
+         * Switches to codec confirmed by server in login response; server sends everything after that response
+         * using confirmed codec, so this has to happen before reading next message
+         * @param message Received message
+         */
+        private void switchCodecIfNegotiated(NetworkMessage message) {
+            String[] args = message.getArgs();
+            if ("login".equals(message.getCommand()) && args.length > 1 && BinaryCodec.NAME.equals(args[1])) {
+                if (this.framedIn == null)
+                    this.framedIn = new DataInputStream(this.rawIn);
+                this.codec = BinaryCodec.INSTANCE;
+                this.negotiatedCodec.set(BinaryCodec.INSTANCE);
+            }
+        }
+
         /**
          * Main loop
          */
@@ -503,6 +601,7 @@ public class TaskManager implements Runnable {
             while (true) {
                 NetworkMessage message = receive();
                 if (message != null) {
+                    switchCodecIfNegotiated(message);
                     taskManagerInterface.passMessage(BaseMessage.convertToBaseMessage(message));
                 }
             }
@@ -526,18 +625,34 @@ public class TaskManager implements Runnable {
      */
     private static class OutputToServer implements Runnable {
 
-        /** Output stream to write messages to */
+        /** Raw output of socket, used to write frames once codec has been negotiated */
+        private final OutputStream rawOut;
+        /** Output stream to write messages to, used with object stream transport */
         private final ObjectOutputStream out;
+        /** Output stream to write frames to, used with framed transport or negotiated codec */
+        private DataOutputStream framedOut;
+        /** Codec of frames, null while object stream transport is used */
+        private MessageCodec codec;
+        /** Codec negotiated at login, set by input task */
+        private final AtomicReference<MessageCodec> negotiatedCodec;
         /** Queue to send messages from */
         private final ConcurrentLinkedQueue<NetworkMessage> messagesToSend;
 
         /**
          * Basic constructor
-         * @param out Output stream linked with server
+         * @param rawOut Output stream linked with server
+         * @param framed True if server uses framed transport, false if it uses object streams
+         * @param negotiatedCodec Reference set once server confirms codec requested at login
          * @param messagesToSend Queue containing messages to send
+         * @throws IOException When object stream header could not be sent
          */
-        public OutputToServer(ObjectOutputStream out, ConcurrentLinkedQueue<NetworkMessage> messagesToSend) {
-            this.out = out;
+        public OutputToServer(OutputStream rawOut, boolean framed, AtomicReference<MessageCodec> negotiatedCodec,
+                              ConcurrentLinkedQueue<NetworkMessage> messagesToSend) throws IOException {
+            this.rawOut = rawOut;
+            this.out = (framed ? null : new ObjectOutputStream(rawOut));
+            this.framedOut = (framed ? new DataOutputStream(new BufferedOutputStream(rawOut)) : null);
+            this.codec = (framed ? MessageFrames.SERIALIZED_CODEC : null);
+            this.negotiatedCodec = negotiatedCodec;
             this.messagesToSend = messagesToSend;
         }
 
@@ -547,7 +662,20 @@ public class TaskManager implements Runnable {
          */
         private void send(NetworkMessage message) {
             try {
-                this.out.writeObject(message);
+                MessageCodec negotiated = this.negotiatedCodec.get();
+                if (negotiated != null && negotiated != this.codec) {
+                    if (this.out != null)
+                        this.out.flush();
+                    if (this.framedOut == null)
+                        this.framedOut = new DataOutputStream(new BufferedOutputStream(this.rawOut));
+                    this.codec = negotiated;
+                }
+                if (this.codec != null) {
+                    this.codec.write(this.framedOut, message);
+                    this.framedOut.flush();
+                } else {
+                    this.out.writeObject(message);
+                }
             } catch (IOException e) {
                 e.printStackTrace(); //do zmiany pozniej
             }
@@ -0,0 +1,176 @@
+package queue;
+
+import org.bson.types.ObjectId;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of room queue operations performed by main server thread and reservation handler,
+ * parameterized by number of rooms in sector and length of every room's queue
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class RoomQueueBenchmark {
+
+    /**
+     * Sector with rooms whose queues are filled with groups, kept at constant length by every benchmark
+     */
+    @State(Scope.Thread)
+    public static class FilledRooms {
+        @Param({ "10", "200" })
+        public int roomCount;
+        @Param({ "100", "1000", "10000" })
+        public int queueLength;
+
+        Room[] rooms;
+        /** Groups queued in every room, in queue order */
+        TourGroup[][] queuedGroups;
+        int nextRoom;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            Sector sector = new Sector(new ObjectId(), "sector", "address", "description");
+            rooms = new Room[roomCount];
+            queuedGroups = new TourGroup[roomCount][queueLength];
+            for (int i = 0; i < roomCount; ++i) {
+                rooms[i] = createRoom(sector, i, 1);
+                for (int j = 0; j < queueLength; ++j) {
+                    queuedGroups[i][j] = new TourGroup();
+                    rooms[i].addGroupToQueue(queuedGroups[i][j]);
+                }
+            }
+        }
+
+        /**
+         * @return Index of room to use in next operation, rooms are used in turns to mimic requests spread over sector
+         */
+        int nextRoomIndex() {
+            int index = nextRoom;
+            nextRoom = (index + 1 == roomCount ? 0 : index + 1);
+            return index;
+        }
+    }
+
+    /** Number of calls of allocation benchmarks measured at once, every call using its own room */
+    static final int ALLOCATION_BATCH = 64;
+
+    /**
+     * Rooms with long queues and no reservations yet. Allocation takes groups out of queue, so every call
+     * of benchmark gets its own room; rooms are rebuilt before every iteration of {@link #ALLOCATION_BATCH} calls,
+     * instead of before every call, so that building them is neither measured nor timestamped.
+     */
+    @State(Scope.Thread)
+    public static class FreshRooms {
+        @Param({ "100", "1000", "10000" })
+        public int queueLength;
+        @Param({ "1", "16" })
+        public int maxSlots;
+
+        Room[] rooms;
+        int nextRoom;
+
+        @Setup(Level.Iteration)
+        public void setUp() {
+            Sector sector = new Sector(new ObjectId(), "sector", "address", "description");
+            rooms = new Room[ALLOCATION_BATCH];
+            for (int i = 0; i < rooms.length; ++i) {
+                rooms[i] = createRoom(sector, i, maxSlots);
+                for (int j = 0; j < queueLength; ++j)
+                    rooms[i].addGroupToQueue(new TourGroup());
+            }
+            nextRoom = 0;
+        }
+
+        /**
+         * @return Room not used by any call yet
+         */
+        Room nextRoom() {
+            return rooms[nextRoom++];
+        }
+    }
+
+    static Room createRoom(Sector sector, int index, int maxSlots) {
+        ObjectId id = new ObjectId();
+        Room room = new Room(id, "room" + index, "location", "description", maxSlots, sector);
+        sector.addRoom(id, room);
+        return room;
+    }
+
+    @Benchmark
+    public int positionOfMiddleGroup(FilledRooms state) {
+        int index = state.nextRoomIndex();
+        return state.rooms[index].positionOf(state.queuedGroups[index][state.queueLength / 2]);
+    }
+
+    @Benchmark
+    public int positionOfLastGroup(FilledRooms state) {
+        int index = state.nextRoomIndex();
+        return state.rooms[index].positionOf(state.queuedGroups[index][state.queueLength - 1]);
+    }
+
+    /**
+     * Adds new group at the end of queue and removes it, so queue length stays constant
+     */
+    @Benchmark
+    public boolean addAndRemoveLastGroup(FilledRooms state, Blackhole blackhole) {
+        Room room = state.rooms[state.nextRoomIndex()];
+        TourGroup group = new TourGroup();
+        blackhole.consume(room.addGroupToQueue(group));
+        return room.removeGroupFromQueue(group);
+    }
+
+    /**
+     * Removes group from the middle of queue and adds it back at the end, so queue length stays constant
+     */
+    @Benchmark
+    public int removeMiddleGroupAndRequeue(FilledRooms state) {
+        int index = state.nextRoomIndex();
+        TourGroup[] groups = state.queuedGroups[index];
+        int middle = state.queueLength / 2;
+        TourGroup group = groups[middle];
+        state.rooms[index].removeGroupFromQueue(group);
+        int position = state.rooms[index].addGroupToQueue(group);
+        System.arraycopy(groups, middle + 1, groups, middle, groups.length - middle - 1);
+        groups[groups.length - 1] = group;
+        return position;
+    }
+
+    /**
+     * Score is time of whole batch of {@link #ALLOCATION_BATCH} allocations
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Measurement(iterations = 30, batchSize = ALLOCATION_BATCH)
+    @Warmup(iterations = 20, batchSize = ALLOCATION_BATCH)
+    public int allocateReservations(FreshRooms state) {
+        return state.nextRoom().allocateReservations();
+    }
+
+    /**
+     * Checks reservations which have not expired yet, which is what reservation handler does on every room check
+     * triggered by queue change; score is time of whole batch of {@link #ALLOCATION_BATCH} checks
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Measurement(iterations = 30, batchSize = ALLOCATION_BATCH)
+    @Warmup(iterations = 20, batchSize = ALLOCATION_BATCH)
+    public Room.Reservation[] allocateReservationsAndUpdateStatus(FreshRooms state) {
+        Room room = state.nextRoom();
+        room.allocateReservations();
+        return room.updateReservationStatus();
+    }
+}
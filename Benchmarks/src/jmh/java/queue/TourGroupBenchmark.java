@@ -0,0 +1,57 @@
+package queue;
+
+import org.bson.types.ObjectId;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks of ticket bookkeeping of single group, parameterized by number of rooms tickets are taken for
+ * and number of tickets group already holds
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class TourGroupBenchmark {
+
+    @Param({ "10", "200" })
+    public int roomCount;
+    @Param({ "0", "2" })
+    public int heldTickets;
+
+    private Room[] rooms;
+    private TourGroup group;
+    private int nextRoom;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        Sector sector = new Sector(new ObjectId(), "sector", "address", "description");
+        rooms = new Room[roomCount + heldTickets];
+        for (int i = 0; i < rooms.length; ++i)
+            rooms[i] = RoomQueueBenchmark.createRoom(sector, i, 1);
+        group = new TourGroup();
+        for (int i = 0; i < heldTickets; ++i)
+            group.createTicket(rooms[roomCount + i]);
+    }
+
+    @Benchmark
+    public boolean createAndRemoveTicket() {
+        Room room = rooms[nextRoom];
+        nextRoom = (nextRoom + 1 == roomCount ? 0 : nextRoom + 1);
+        TourGroup.QueueTicket ticket = group.createTicket(room);
+        return group.removeTicket(ticket);
+    }
+
+    @Benchmark
+    public Room[] getTicketRooms() {
+        return group.getTicketRooms();
+    }
+}
@@ -0,0 +1,481 @@
+package network_structures;
+
+import org.bson.types.ObjectId;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.io.StreamCorruptedException;
+import java.nio.charset.Charset;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compact, versioned binary encoding of network messages, negotiated at login as an alternative to Java serialization.
+ * Payload layout: version byte, command opcode (0 followed by command string for commands without opcode),
+ * communication identifier, arguments and tagged data. Integers are encoded as variable-length quantities,
+ * {@link ObjectId}s as their raw 12 bytes, room states as single byte codes.
+ * Data types without compact encoding fall back to Java serialization.
+ */
+public final class BinaryCodec implements MessageCodec {
+
+    /** Version of payload layout, written as first byte of every payload */
+    public static final int VERSION = 1;
+    /** Name of this codec, sent by client in login arguments as <b>codec=binary/1</b> */
+    public static final String NAME = "binary/" + VERSION;
+    /** Prefix of login argument requesting codec */
+    public static final String LOGIN_ARGUMENT_PREFIX = "codec=";
+
+    public static final BinaryCodec INSTANCE = new BinaryCodec();
+
+    /** Charset of strings; looked up by name since StandardCharsets is not available on all Android versions supported by client */
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /** Command opcodes, index of command is its opcode; opcode 0 is reserved for commands sent as strings */
+    private static final String[] COMMANDS = new String[] {
+            null,
+            "ping",
+            "login",
+            "event_info",
+            "view_tickets",
+            "view_reservations",
+            "add_to_queue",
+            "remove_from_queue",
+            "abandon_reservation",
+            "update",
+            "grouping",
+            "event_details",
+            "reservation",
+            "reservation_expired",
+            "error",
+            "timeout",
+            "time_out"
+    };
+
+    /** Room states with single byte codes, index of state is its code; code 0 is reserved for states sent as strings */
+    private static final String[] ROOM_STATES = new String[] { null, "OPEN", "RESERVED", "TAKEN", "INACTIVE" };
+
+    private static final int DATA_NULL = 0;
+    private static final int DATA_QUEUE_INFO_ARRAY = 1;
+    private static final int DATA_RESERVATION_INFO = 2;
+    private static final int DATA_EVENT_INFO_UPDATE = 3;
+    private static final int DATA_EVENT_INFO_FIXED = 4;
+    private static final int DATA_SERIALIZED = 127;
+
+    private BinaryCodec() {}
+
+    /**
+     * Finds codec requested in login arguments
+     * @param loginArgs Arguments of login message
+     * @return Requested codec if it is supported, null otherwise
+     */
+    public static MessageCodec fromLoginArguments(String[] loginArgs) {
+        for (int i = 2; i < loginArgs.length; ++i) {
+            if ((LOGIN_ARGUMENT_PREFIX + NAME).equals(loginArgs[i]))
+                return INSTANCE;
+        }
+        return null;
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    /**
+     * Encodes given message into complete frame; messages of {@link Broadcast} reuse frame shared by all its recipients
+     */
+    @Override
+    public byte[] encode(NetworkMessage message) throws IOException {
+        if (message instanceof Broadcast.Message)
+            return ((Broadcast.Message) message).getBroadcast().encode(this, message.getCommunicationIdentifier());
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(64);
+        buffer.write(new byte[MessageFrames.HEADER_LENGTH]);
+        DataOutputStream out = new DataOutputStream(buffer);
+        out.writeByte(VERSION);
+        int opcode = opcodeOf(message.getCommand());
+        writeVarInt(out, opcode);
+        if (opcode == 0)
+            writeString(out, message.getCommand());
+        out.writeLong(message.getCommunicationIdentifier());
+        String[] args = message.getArgs();
+        writeVarInt(out, args.length);
+        for (String arg : args)
+            writeString(out, arg);
+        writeData(out, message.getData());
+        out.flush();
+        byte[] frame = buffer.toByteArray();
+        MessageFrames.writeHeader(frame, frame.length - MessageFrames.HEADER_LENGTH);
+        return frame;
+    }
+
+    @Override
+    public NetworkMessage decode(byte[] payload, int offset, int length) throws IOException, ClassNotFoundException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload, offset, length));
+        int version = in.readUnsignedByte();
+        if (version != VERSION)
+            throw new StreamCorruptedException("Unsupported binary codec version: " + version);
+        int opcode = readVarInt(in);
+        String command;
+        if (opcode == 0)
+            command = readString(in);
+        else if (opcode < COMMANDS.length)
+            command = COMMANDS[opcode];
+        else
+            throw new StreamCorruptedException("Unknown command opcode: " + opcode);
+        long communicationIdentifier = in.readLong();
+        String[] args = new String[readCount(in)];
+        for (int i = 0; i < args.length; ++i)
+            args[i] = readString(in);
+        return new NetworkMessage(command, args, readData(in), communicationIdentifier);
+    }
+
+    /**
+     * Overwrites communication identifier of frame encoded by this codec
+     * @param frame Complete frame
+     * @param communicationIdentifier New communication identifier
+     */
+    static void patchCommunicationIdentifier(byte[] frame, long communicationIdentifier) {
+        int offset = MessageFrames.HEADER_LENGTH + 1;
+        int opcode = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = frame[offset++] & 0xFF;
+            opcode |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                break;
+        }
+        if (opcode == 0) {
+            int length = 0;
+            for (int shift = 0; ; shift += 7) {
+                int b = frame[offset++] & 0xFF;
+                length |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0)
+                    break;
+            }
+            offset += Math.max(0, length - 1);
+        }
+        for (int i = 7; i >= 0; --i) {
+            frame[offset + i] = (byte) communicationIdentifier;
+            communicationIdentifier >>>= 8;
+        }
+    }
+
+    private static int opcodeOf(String command) {
+        for (int i = 1; i < COMMANDS.length; ++i) {
+            if (COMMANDS[i].equals(command))
+                return i;
+        }
+        return 0;
+    }
+
+    private static void writeData(DataOutputStream out, Serializable data) throws IOException {
+        if (data == null) {
+            out.writeByte(DATA_NULL);
+        } else if (data instanceof QueueInfo[]) {
+            out.writeByte(DATA_QUEUE_INFO_ARRAY);
+            QueueInfo[] queues = (QueueInfo[]) data;
+            writeVarInt(out, queues.length);
+            for (QueueInfo queue : queues) {
+                writeObjectId(out, queue.getSectorId());
+                writeObjectId(out, queue.getRoomId());
+                writeVarInt(out, queue.getPositionInQueue());
+            }
+        } else if (data instanceof ReservationInfo) {
+            out.writeByte(DATA_RESERVATION_INFO);
+            ReservationInfo reservation = (ReservationInfo) data;
+            writeObjectId(out, reservation.getSectorId());
+            writeObjectId(out, reservation.getRoomId());
+            out.writeLong(reservation.getExpirationDate() != null ? reservation.getExpirationDate().getTime() : Long.MIN_VALUE);
+        } else if (data instanceof EventInfoUpdate) {
+            out.writeByte(DATA_EVENT_INFO_UPDATE);
+            out.write(((EventInfoUpdate) data).getEncodedForm());
+        } else if (data instanceof EventInfoFixed) {
+            out.writeByte(DATA_EVENT_INFO_FIXED);
+            writeEventInfoFixed(out, (EventInfoFixed) data);
+        } else {
+            out.writeByte(DATA_SERIALIZED);
+            ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+            try (ObjectOutputStream objectOut = new ObjectOutputStream(serialized)) {
+                objectOut.writeObject(data);
+            }
+            writeVarInt(out, serialized.size());
+            serialized.writeTo(out);
+        }
+    }
+
+    private static Serializable readData(DataInputStream in) throws IOException, ClassNotFoundException {
+        int type = in.readUnsignedByte();
+        switch (type) {
+            case DATA_NULL:
+                return null;
+            case DATA_QUEUE_INFO_ARRAY: {
+                QueueInfo[] queues = new QueueInfo[readCount(in)];
+                for (int i = 0; i < queues.length; ++i)
+                    queues[i] = new QueueInfo(readObjectId(in), readObjectId(in), readVarInt(in));
+                return queues;
+            }
+            case DATA_RESERVATION_INFO: {
+                ObjectId sectorId = readObjectId(in);
+                ObjectId roomId = readObjectId(in);
+                long expiration = in.readLong();
+                return new ReservationInfo(sectorId, roomId, expiration != Long.MIN_VALUE ? new Date(expiration) : null);
+            }
+            case DATA_EVENT_INFO_UPDATE:
+                return readEventInfoUpdate(in, new EventInfoUpdate());
+            case DATA_EVENT_INFO_FIXED:
+                return readEventInfoFixed(in);
+            case DATA_SERIALIZED: {
+                byte[] serialized = new byte[readCount(in)];
+                in.readFully(serialized);
+                try (ObjectInputStream objectIn = new ObjectInputStream(new ByteArrayInputStream(serialized))) {
+                    return (Serializable) objectIn.readObject();
+                }
+            }
+            default:
+                throw new StreamCorruptedException("Unknown data type: " + type);
+        }
+    }
+
+    /**
+     * Encodes event state alone, as it is written inside "update" messages
+     * @param info State to encode
+     * @return Encoded state
+     * @throws IOException When state could not be encoded
+     */
+    static byte[] encodeEventInfoUpdate(EventInfoUpdate info) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(buffer);
+        writeEventInfoUpdate(out, info);
+        out.flush();
+        return buffer.toByteArray();
+    }
+
+    private static void writeEventInfoUpdate(DataOutputStream out, EventInfoUpdate info) throws IOException {
+        writeVarLong(out, info.getVersion());
+        out.writeBoolean(info.isDelta());
+        synchronized (info.getSectors()) {
+            writeVarInt(out, info.getSectors().size());
+            for (SectorInfoUpdate sector : info.getSectors().values()) {
+                writeObjectId(out, sector.getId());
+                writeVarInt(out, sector.getActiveRoomsCount().get());
+                synchronized (sector.getRooms()) {
+                    writeVarInt(out, sector.getRooms().size());
+                    for (RoomInfoUpdate room : sector.getRooms().values()) {
+                        writeObjectId(out, room.getId());
+                        writeRoomState(out, room.getState());
+                        writeVarInt(out, room.getQueueSize().get());
+                        writeVarLong(out, room.getVersion());
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Decodes event state written by {@link #encodeEventInfoUpdate(EventInfoUpdate)}
+     * @param in Stream to read from
+     * @param info Empty state to fill
+     * @return Given state
+     * @throws IOException When encoded state is invalid
+     */
+    static EventInfoUpdate readEventInfoUpdate(DataInputStream in, EventInfoUpdate info) throws IOException {
+        info.setVersion(readVarLong(in));
+        info.setDelta(in.readBoolean());
+        int sectorCount = readCount(in);
+        for (int i = 0; i < sectorCount; ++i) {
+            SectorInfoUpdate sector = new SectorInfoUpdate(readObjectId(in));
+            sector.setActiveRoomsCount(readVarInt(in));
+            int roomCount = readCount(in);
+            for (int j = 0; j < roomCount; ++j) {
+                RoomInfoUpdate room = new RoomInfoUpdate(readObjectId(in));
+                room.setState(readRoomState(in));
+                room.setQueueSize(readVarInt(in));
+                room.setVersion(readVarLong(in));
+                sector.getRooms().put(room.getId(), room);
+            }
+            info.getSectors().put(sector.getId(), sector);
+        }
+        return info;
+    }
+
+    private static void writeEventInfoFixed(DataOutputStream out, EventInfoFixed info) throws IOException {
+        synchronized (info.getSectors()) {
+            writeVarInt(out, info.getSectors().size());
+            for (SectorInfoFixed sector : info.getSectors().values()) {
+                writeObjectId(out, sector.getId());
+                writeString(out, sector.getName());
+                writeString(out, sector.getAddress());
+                writeString(out, sector.getDescription());
+                writeVarInt(out, sector.getActiveRooms().get());
+                synchronized (sector.getRooms()) {
+                    writeVarInt(out, sector.getRooms().size());
+                    for (RoomInfoFixed room : sector.getRooms().values()) {
+                        writeObjectId(out, room.getId());
+                        writeString(out, room.getName());
+                        writeString(out, room.getLocation());
+                        writeString(out, room.getDescription());
+                        writeRoomState(out, room.getState());
+                        writeVarInt(out, room.getQueueSize().get());
+                    }
+                }
+            }
+        }
+    }
+
+    private static EventInfoFixed readEventInfoFixed(DataInputStream in) throws IOException {
+        EventInfoFixed info = new EventInfoFixed();
+        int sectorCount = readCount(in);
+        for (int i = 0; i < sectorCount; ++i) {
+            ObjectId sectorId = readObjectId(in);
+            String name = readString(in);
+            String address = readString(in);
+            String description = readString(in);
+            SectorInfoFixed sector = new SectorInfoFixed(sectorId, name, address, description, new AtomicInteger(readVarInt(in)));
+            int roomCount = readCount(in);
+            for (int j = 0; j < roomCount; ++j) {
+                ObjectId roomId = readObjectId(in);
+                String roomName = readString(in);
+                String location = readString(in);
+                String roomDescription = readString(in);
+                String state = readRoomState(in);
+                RoomInfoFixed room = new RoomInfoFixed(roomId, sectorId, roomName, location, roomDescription, state,
+                        new AtomicInteger(readVarInt(in)));
+                sector.getRooms().put(roomId, room);
+            }
+            info.getSectors().put(sectorId, sector);
+        }
+        return info;
+    }
+
+    private static void writeRoomState(DataOutputStream out, String state) throws IOException {
+        for (int i = 1; i < ROOM_STATES.length; ++i) {
+            if (ROOM_STATES[i].equals(state)) {
+                out.writeByte(i);
+                return;
+            }
+        }
+        out.writeByte(0);
+        writeString(out, state);
+    }
+
+    private static String readRoomState(DataInputStream in) throws IOException {
+        int code = in.readUnsignedByte();
+        if (code == 0)
+            return readString(in);
+        if (code < ROOM_STATES.length)
+            return ROOM_STATES[code];
+        throw new StreamCorruptedException("Unknown room state code: " + code);
+    }
+
+    private static void writeObjectId(DataOutputStream out, ObjectId id) throws IOException {
+        if (id == null) {
+            out.writeByte(0);
+        } else {
+            out.writeByte(1);
+            out.write(id.toByteArray());
+        }
+    }
+
+    private static ObjectId readObjectId(DataInputStream in) throws IOException {
+        if (in.readUnsignedByte() == 0)
+            return null;
+        byte[] bytes = new byte[12];
+        in.readFully(bytes);
+        return new ObjectId(bytes);
+    }
+
+    /**
+     * Writes string as its UTF-8 length (shifted by one, so that 0 denotes null) followed by UTF-8 bytes
+     */
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            writeVarInt(out, 0);
+            return;
+        }
+        byte[] bytes = value.getBytes(UTF_8);
+        writeVarInt(out, bytes.length + 1);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = readVarInt(in);
+        if (length == 0)
+            return null;
+        byte[] bytes = new byte[MessageFrames.checkPayloadLength(length - 1)];
+        in.readFully(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    /**
+     * Writes non-negative integer as variable-length quantity, 7 bits per byte, least significant group first
+     */
+    private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        if (value < 0)
+            throw new IOException("Negative value cannot be encoded: " + value);
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    /**
+     * Reads value written by {@link #writeVarInt(DataOutputStream, int)}; at most 5 bytes, the last one
+     * carrying 3 highest bits of non-negative integer
+     * @throws StreamCorruptedException When value is longer or does not fit in non-negative integer
+     */
+    private static int readVarInt(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 28; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        int b = in.readUnsignedByte();
+        if ((b & ~0x07) != 0)
+            throw new StreamCorruptedException("Variable-length integer too long");
+        return value | (b << 28);
+    }
+
+    /**
+     * Reads number of elements which follow; every element takes at least one byte,
+     * so count cannot exceed number of remaining bytes of payload
+     * @throws StreamCorruptedException When count is invalid
+     */
+    private static int readCount(DataInputStream in) throws IOException {
+        int count = readVarInt(in);
+        if (count < 0 || count > in.available())
+            throw new StreamCorruptedException("Invalid element count: " + count);
+        return count;
+    }
+
+    /**
+     * Writes non-negative long in the same variable-length format as {@link #writeVarInt(DataOutputStream, int)}
+     */
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        if (value < 0)
+            throw new IOException("Negative value cannot be encoded: " + value);
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 63; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new StreamCorruptedException("Variable-length integer too long");
+    }
+}
@@ -0,0 +1,88 @@
+package network_structures;
+
+import java.io.IOException;
+import java.io.ObjectStreamException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Message sent to many connections, encoded at most once per codec.
+ * Every recipient gets lightweight {@link Message} differing only in communication identifier;
+ * codecs supporting it (see {@link BinaryCodec}) copy shared frame and patch the identifier in place
+ * instead of encoding message again, so sending to N connections costs N copies of bytes rather than
+ * N encodings.
+ */
+public final class Broadcast {
+
+    /** Message being broadcast, its communication identifier is ignored */
+    private final NetworkMessage message;
+    /** Frames of message encoded with communication identifier 0, by codec names */
+    private final ConcurrentHashMap<String, byte[]> frames;
+
+    /**
+     * @param message Message to broadcast, its communication identifier is ignored
+     */
+    public Broadcast(NetworkMessage message) {
+        this.message = message;
+        this.frames = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * @param communicationIdentifier Communication identifier of recipient
+     * @return Message for single recipient, sharing encoded frames with all other recipients of this broadcast
+     */
+    public NetworkMessage to(long communicationIdentifier) {
+        return new Message(this, communicationIdentifier);
+    }
+
+    /**
+     * @return Number of codecs this broadcast has been encoded by
+     */
+    public int getEncodedFrameCount() {
+        return frames.size();
+    }
+
+    /**
+     * Returns frame encoded by given codec, encoding message only if no recipient has used that codec yet
+     * @param codec Codec of frame
+     * @param communicationIdentifier Communication identifier of recipient
+     * @return Frame for recipient; frame shared by all recipients with identifier 0, which must not be modified
+     * @throws IOException When message could not be encoded
+     */
+    byte[] encode(BinaryCodec codec, long communicationIdentifier) throws IOException {
+        byte[] frame = frames.get(codec.getName());
+        if (frame == null) {
+            frame = codec.encode(new NetworkMessage(message.getCommand(), message.getArgs(), message.getData(), 0));
+            byte[] previous = frames.putIfAbsent(codec.getName(), frame);
+            if (previous != null)
+                frame = previous;
+        }
+        if (communicationIdentifier == 0)
+            return frame;
+        byte[] copy = frame.clone();
+        BinaryCodec.patchCommunicationIdentifier(copy, communicationIdentifier);
+        return copy;
+    }
+
+    /**
+     * Message of single broadcast recipient; serialized as plain {@link NetworkMessage}
+     */
+    public static final class Message extends NetworkMessage {
+        private final transient Broadcast broadcast;
+
+        private Message(Broadcast broadcast, long communicationIdentifier) {
+            super(broadcast.message.getCommand(), broadcast.message.getArgs(), broadcast.message.getData(), communicationIdentifier);
+            this.broadcast = broadcast;
+        }
+
+        /**
+         * @return Broadcast this message belongs to
+         */
+        Broadcast getBroadcast() {
+            return broadcast;
+        }
+
+        private Object writeReplace() throws ObjectStreamException {
+            return new NetworkMessage(getCommand(), getArgs(), getData(), getCommunicationIdentifier());
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package network_structures;
+
+/**
+ * Conventions of "event_details" message, sent once client logs in.
+ * Server answers with args[0] containing content hash of event details; client which sent matching hash
+ * in login arguments as <b>details=&lt;hash&gt;</b> receives args[1] equal to {@link #UNCHANGED} and no data,
+ * and keeps using its cached copy.
+ */
+public final class EventDetails {
+
+    /** Prefix of login argument containing hash of cached event details */
+    public static final String LOGIN_ARGUMENT_PREFIX = "details=";
+    /** Second argument of "event_details" message sent instead of content client already has */
+    public static final String UNCHANGED = "unchanged";
+
+    private EventDetails() {}
+
+    /**
+     * Finds hash of cached event details in login arguments
+     * @param loginArgs Arguments of login message
+     * @return Hash sent by client, null if client has no cached event details
+     */
+    public static String hashFromLoginArguments(String[] loginArgs) {
+        for (int i = 2; i < loginArgs.length; ++i) {
+            if (loginArgs[i] != null && loginArgs[i].startsWith(LOGIN_ARGUMENT_PREFIX))
+                return loginArgs[i].substring(LOGIN_ARGUMENT_PREFIX.length());
+        }
+        return null;
+    }
+
+    /**
+     * @param message Received "event_details" message
+     * @return True if message confirms that client's cached event details are current
+     */
+    public static boolean isUnchanged(NetworkMessage message) {
+        String[] args = message.getArgs();
+        return (args != null && args.length > 1 && UNCHANGED.equals(args[1]));
+    }
+}
@@ -2,21 +2,272 @@ package network_structures;
 
 import org.bson.types.ObjectId;
 
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 
 /**
- * Class containing changing information about event
+ * Class containing changing information about event.
+ * Server keeps one instance with all sectors, numbering every change of its rooms with increasing version and
+ * keeping change log with last change of every room, so that client knowing version of its copy can be sent
+ * only rooms changed since then (see {@link #createDelta(long)}).
+ * High bits of every version hold epoch of server instance (see {@link #EventInfoUpdate(int)}), so version echoed
+ * by client who has received it from previous instance is recognized as unknown even if its change counter
+ * has already been reached again.
+ * Readers which must not see state changing under them (eg. output threads serializing it) use
+ * {@link #snapshot()}, immutable copy shared by all readers until next change.
+ * Java serialization uses compact encoding of {@link BinaryCodec}, which is cached for immutable instances,
+ * so every version is encoded at most once no matter how many clients it is sent to.
  */
 public class EventInfoUpdate implements Serializable {
 
-    private final Map<ObjectId, SectorInfoUpdate> sectors;
+    /** Number of low bits of version counting changes, remaining bits hold epoch of state */
+    public static final int EPOCH_SHIFT = 32;
 
-    public EventInfoUpdate() { this.sectors = Collections.synchronizedMap(new TreeMap<>()); }
+    /** Sectors by ids; not final only because it is recreated by {@link #readObject(ObjectInputStream)} */
+    private Map<ObjectId, SectorInfoUpdate> sectors;
+    /** Version of last change contained in this state */
+    private volatile long version;
+    /** True if this instance contains only rooms changed since some version, false if it contains whole event */
+    private boolean delta;
+    /** Last change of every changed room keyed by its version, kept only on server side */
+    private final transient NavigableMap<Long, Change> changeLog;
+    /** True if this instance is snapshot or delta which is never modified after creation */
+    private transient boolean immutable;
+    /** Last snapshot of this state, see {@link #snapshot()} */
+    private transient volatile EventInfoUpdate snapshot;
+    /** Cached encoding of immutable instance, see {@link #getEncodedForm()} */
+    private transient volatile byte[] encodedForm;
+
+    public EventInfoUpdate() {
+        this(0);
+    }
+
+    /**
+     * @param epoch Non-negative identifier of server instance, different after every restart;
+     *              versions of this state start at epoch shifted by {@link #EPOCH_SHIFT} bits
+     */
+    public EventInfoUpdate(int epoch) {
+        this.sectors = Collections.synchronizedMap(new TreeMap<>());
+        this.changeLog = new ConcurrentSkipListMap<>();
+        this.version = ((long) epoch) << EPOCH_SHIFT;
+    }
+
+    /**
+     * @param version Version of state
+     * @return Epoch of server instance given version comes from
+     */
+    public static int epochOf(long version) {
+        return (int) (version >>> EPOCH_SHIFT);
+    }
 
     public Map<ObjectId, SectorInfoUpdate> getSectors() {
         return sectors;
     }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public void setVersion(long version) {
+        this.version = version;
+    }
+
+    public boolean isDelta() {
+        return delta;
+    }
+
+    public void setDelta(boolean delta) {
+        this.delta = delta;
+    }
+
+    /**
+     * Adds sector and starts tracking changes of its rooms
+     * @param sector Sector to add
+     */
+    public void addSector(SectorInfoUpdate sector) {
+        ObjectId sectorId = sector.getId();
+        sector.setChangeListener(room -> recordChange(sectorId, room));
+        sectors.put(sectorId, sector);
+    }
+
+    /**
+     * Assigns next version to changed room, replacing its previous entry in change log
+     * @param sectorId Id of sector containing room
+     * @param room Changed room
+     */
+    private synchronized void recordChange(ObjectId sectorId, RoomInfoUpdate room) {
+        long nextVersion = version + 1;
+        if (room.getVersion() > 0)
+            changeLog.remove(room.getVersion());
+        room.setVersion(nextVersion);
+        changeLog.put(nextVersion, new Change(sectorId, room));
+        version = nextVersion;
+    }
+
+    /**
+     * Creates detached state containing only rooms changed after given version
+     * @param sinceVersion Version of client's copy
+     * @return State with rooms changed since given version, or null if given version is unknown to this state (eg.
+     * client's copy comes from before server restart, so its epoch differs) and whole state has to be sent instead
+     */
+    public EventInfoUpdate createDelta(long sinceVersion) {
+        long currentVersion = version;
+        if (sinceVersion < 0 || epochOf(sinceVersion) != epochOf(currentVersion) || sinceVersion > currentVersion)
+            return null;
+        EventInfoUpdate result = new EventInfoUpdate();
+        result.version = currentVersion;
+        result.delta = true;
+        result.immutable = true;
+        for (Change change : changeLog.subMap(sinceVersion, false, currentVersion, true).values()) {
+            SectorInfoUpdate sector = result.sectors.get(change.sectorId);
+            if (sector == null) {
+                sector = new SectorInfoUpdate(change.sectorId);
+                SectorInfoUpdate source = sectors.get(change.sectorId);
+                if (source != null)
+                    sector.setActiveRoomsCount(source.getActiveRoomsCount().get());
+                result.sectors.put(change.sectorId, sector);
+            }
+            sector.getRooms().put(change.room.getId(), new RoomInfoUpdate(change.room));
+        }
+        return result;
+    }
+
+    /**
+     * Returns immutable copy of whole state, which may be shared by any number of readers without locking.
+     * Copy is created at most once per version; sectors and rooms which haven't changed since previous snapshot
+     * are shared with it instead of being copied again.
+     * @return Snapshot containing at least all changes up to its version
+     */
+    public EventInfoUpdate snapshot() {
+        EventInfoUpdate current = this.snapshot;
+        if (current != null && current.version == this.version)
+            return current;
+        synchronized (this) {
+            current = this.snapshot;
+            long currentVersion = this.version;
+            if (current != null && current.version == currentVersion)
+                return current;
+            Set<ObjectId> changedSectors = new HashSet<>();
+            if (current != null) {
+                for (Change change : changeLog.subMap(current.version, false, currentVersion, true).values())
+                    changedSectors.add(change.sectorId);
+            }
+            EventInfoUpdate result = new EventInfoUpdate();
+            result.version = currentVersion;
+            result.immutable = true;
+            synchronized (sectors) {
+                for (SectorInfoUpdate sector : sectors.values()) {
+                    SectorInfoUpdate previous = (current != null ? current.sectors.get(sector.getId()) : null);
+                    if (previous != null && !changedSectors.contains(sector.getId())
+                            && previous.getRooms().size() == sector.getRooms().size()
+                            && previous.getActiveRoomsCount().get() == sector.getActiveRoomsCount().get()) {
+                        result.sectors.put(sector.getId(), previous);
+                    } else {
+                        result.sectors.put(sector.getId(), copySector(sector, previous));
+                    }
+                }
+            }
+            this.snapshot = result;
+            return result;
+        }
+    }
+
+    /**
+     * Copies sector, sharing copies of rooms which haven't changed since previous copy
+     * @param sector Sector to copy
+     * @param previous Previous copy of sector, null if there is none
+     * @return Detached copy of sector
+     */
+    private static SectorInfoUpdate copySector(SectorInfoUpdate sector, SectorInfoUpdate previous) {
+        SectorInfoUpdate copy = new SectorInfoUpdate(sector.getId());
+        copy.setActiveRoomsCount(sector.getActiveRoomsCount().get());
+        synchronized (sector.getRooms()) {
+            for (RoomInfoUpdate room : sector.getRooms().values()) {
+                RoomInfoUpdate previousRoom = (previous != null ? previous.getRooms().get(room.getId()) : null);
+                if (previousRoom != null && previousRoom.getVersion() == room.getVersion())
+                    copy.getRooms().put(room.getId(), previousRoom);
+                else
+                    copy.getRooms().put(room.getId(), new RoomInfoUpdate(room));
+            }
+        }
+        return copy;
+    }
+
+    /**
+     * @return True if this instance is snapshot or delta which is never modified after creation
+     */
+    public boolean isImmutable() {
+        return immutable;
+    }
+
+    /**
+     * Encodes this state as described in {@link BinaryCodec}; encoding of immutable instance is created only once
+     * @return Encoded state, must not be modified
+     * @throws IOException When state could not be encoded
+     */
+    byte[] getEncodedForm() throws IOException {
+        if (!immutable)
+            return BinaryCodec.encodeEventInfoUpdate(this);
+        byte[] encoded = this.encodedForm;
+        if (encoded == null)
+            this.encodedForm = encoded = BinaryCodec.encodeEventInfoUpdate(this);
+        return encoded;
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        byte[] encoded = getEncodedForm();
+        out.writeInt(encoded.length);
+        out.write(encoded);
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException {
+        byte[] encoded = new byte[in.readInt()];
+        in.readFully(encoded);
+        this.sectors = Collections.synchronizedMap(new TreeMap<>());
+        BinaryCodec.readEventInfoUpdate(new DataInputStream(new ByteArrayInputStream(encoded)), this);
+    }
+
+    /**
+     * Applies state received from server to this copy: delta replaces only rooms it contains, whole state replaces
+     * all sectors
+     * @param update Received state
+     */
+    public void merge(EventInfoUpdate update) {
+        if (!update.isDelta())
+            sectors.clear();
+        for (SectorInfoUpdate sector : update.getSectors().values()) {
+            SectorInfoUpdate existing = sectors.get(sector.getId());
+            if (existing == null) {
+                sectors.put(sector.getId(), sector);
+            } else {
+                existing.setActiveRoomsCount(sector.getActiveRoomsCount().get());
+                existing.getRooms().putAll(sector.getRooms());
+            }
+        }
+        this.version = update.getVersion();
+    }
+
+    /**
+     * Entry of change log
+     */
+    private static class Change {
+        private final ObjectId sectorId;
+        private final RoomInfoUpdate room;
+
+        private Change(ObjectId sectorId, RoomInfoUpdate room) {
+            this.sectorId = sectorId;
+            this.room = room;
+        }
+    }
 }
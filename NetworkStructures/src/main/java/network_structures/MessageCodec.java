@@ -0,0 +1,59 @@
+package network_structures;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Encoding of network messages into length-prefixed frames (see {@link MessageFrames})
+ */
+public interface MessageCodec {
+
+    /**
+     * @return Name of this codec, used during negotiation at login
+     */
+    String getName();
+
+    /**
+     * Encodes given message into complete frame
+     * @param message Message to encode
+     * @return Frame containing header and payload
+     * @throws IOException When message could not be encoded
+     */
+    byte[] encode(NetworkMessage message) throws IOException;
+
+    /**
+     * Decodes message from frame payload
+     * @param payload Array containing payload
+     * @param offset Offset of payload within array
+     * @param length Length of payload
+     * @return Decoded message
+     * @throws IOException When payload is not a valid message
+     * @throws ClassNotFoundException When payload contains unknown class
+     */
+    NetworkMessage decode(byte[] payload, int offset, int length) throws IOException, ClassNotFoundException;
+
+    /**
+     * Writes given message as single frame into blocking stream, without flushing it
+     * @param out Stream to write to
+     * @param message Message to write
+     * @throws IOException When stream is unable to send frame
+     */
+    default void write(DataOutputStream out, NetworkMessage message) throws IOException {
+        out.write(encode(message));
+    }
+
+    /**
+     * Reads single frame from blocking stream
+     * @param in Stream to read from
+     * @return Decoded message
+     * @throws IOException When stream is closed or frame is invalid
+     * @throws ClassNotFoundException When payload contains unknown class
+     */
+    default NetworkMessage read(DataInputStream in) throws IOException, ClassNotFoundException {
+        int length = MessageFrames.checkPayloadLength(in.readInt());
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        return decode(payload, 0, length);
+    }
+}
@@ -0,0 +1,125 @@
+package network_structures;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.StreamCorruptedException;
+
+/**
+ * Length-prefixed framing of network messages, used by transports which cannot keep one continuous object stream
+ * per connection (eg. non-blocking server transport). Every frame consists of 4-byte big-endian payload length
+ * followed by payload. Methods of this class use payload which is a self-contained serialized {@link NetworkMessage},
+ * other payload encodings are provided by {@link MessageCodec} implementations.
+ */
+public final class MessageFrames {
+
+    /** Length of frame header, in bytes */
+    public static final int HEADER_LENGTH = 4;
+    /** Maximum accepted payload length, in bytes */
+    public static final int MAX_PAYLOAD_LENGTH = 4 * 1024 * 1024;
+
+    /** Codec using Java serialization for payload, default for framed connections */
+    public static final MessageCodec SERIALIZED_CODEC = new MessageCodec() {
+        @Override
+        public String getName() {
+            return "serialized";
+        }
+
+        @Override
+        public byte[] encode(NetworkMessage message) throws IOException {
+            return MessageFrames.encode(message);
+        }
+
+        @Override
+        public NetworkMessage decode(byte[] payload, int offset, int length) throws IOException, ClassNotFoundException {
+            return MessageFrames.decode(payload, offset, length);
+        }
+    };
+
+    private MessageFrames() {}
+
+    /**
+     * Encodes given message into complete frame
+     * @param message Message to encode
+     * @return Frame containing header and payload
+     * @throws IOException When message could not be serialized
+     */
+    public static byte[] encode(NetworkMessage message) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(256);
+        buffer.write(new byte[HEADER_LENGTH]);
+        try (ObjectOutputStream out = new ObjectOutputStream(buffer)) {
+            out.writeObject(message);
+        }
+        byte[] frame = buffer.toByteArray();
+        writeHeader(frame, frame.length - HEADER_LENGTH);
+        return frame;
+    }
+
+    /**
+     * Decodes message from frame payload
+     * @param payload Array containing payload
+     * @param offset Offset of payload within array
+     * @param length Length of payload
+     * @return Decoded message
+     * @throws IOException When payload is not a valid serialized message
+     * @throws ClassNotFoundException When payload contains unknown class
+     */
+    public static NetworkMessage decode(byte[] payload, int offset, int length) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(payload, offset, length))) {
+            return (NetworkMessage) in.readObject();
+        }
+    }
+
+    /**
+     * Writes given message as single frame into blocking stream
+     * @param out Stream to write to
+     * @param message Message to write
+     * @throws IOException When stream is unable to send frame
+     */
+    public static void write(DataOutputStream out, NetworkMessage message) throws IOException {
+        out.write(encode(message));
+        out.flush();
+    }
+
+    /**
+     * Reads single frame from blocking stream
+     * @param in Stream to read from
+     * @return Decoded message
+     * @throws IOException When stream is closed or frame is invalid
+     * @throws ClassNotFoundException When payload contains unknown class
+     */
+    public static NetworkMessage read(DataInputStream in) throws IOException, ClassNotFoundException {
+        int length = checkPayloadLength(in.readInt());
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        return decode(payload, 0, length);
+    }
+
+    /**
+     * Validates payload length read from frame header
+     * @param length Payload length
+     * @return Given length, if valid
+     * @throws StreamCorruptedException When length is negative or exceeds {@link #MAX_PAYLOAD_LENGTH}
+     */
+    public static int checkPayloadLength(int length) throws StreamCorruptedException {
+        if (length < 0 || length > MAX_PAYLOAD_LENGTH)
+            throw new StreamCorruptedException("Invalid frame length: " + length);
+        return length;
+    }
+
+    /**
+     * Writes payload length into first {@link #HEADER_LENGTH} bytes of frame
+     * @param frame Frame to write header of
+     * @param payloadLength Length of payload
+     */
+    static void writeHeader(byte[] frame, int payloadLength) {
+        frame[0] = (byte) (payloadLength >>> 24);
+        frame[1] = (byte) (payloadLength >>> 16);
+        frame[2] = (byte) (payloadLength >>> 8);
+        frame[3] = (byte) payloadLength;
+    }
+}
@@ -0,0 +1,13 @@
+package network_structures;
+
+/**
+ * Listener of changes of rooms of server's event state, see {@link EventInfoUpdate#addSector(SectorInfoUpdate)}.
+ * Declared here instead of using java.util.function, which is not available on all Android versions supported by client.
+ */
+interface RoomChangeListener {
+
+    /**
+     * @param room Room whose state or queue size has changed
+     */
+    void roomChanged(RoomInfoUpdate room);
+}
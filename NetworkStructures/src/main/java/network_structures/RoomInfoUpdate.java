@@ -10,6 +10,10 @@ public class RoomInfoUpdate implements Serializable {
     private final ObjectId id;
     private String state;
     private final AtomicInteger queueSize;
+    /** Version of event state in which this room has changed last time, see {@link EventInfoUpdate#getVersion()} */
+    private long version;
+    /** Called after state or queue size has changed, set only on server side */
+    private transient RoomChangeListener changeListener;
 
     public RoomInfoUpdate(ObjectId id) {
         this.id = id;
@@ -17,6 +21,17 @@ public class RoomInfoUpdate implements Serializable {
         this.queueSize = new AtomicInteger(0);
     }
 
+    /**
+     * Copy constructor, used to send detached snapshot of room which keeps changing
+     * @param other Room to copy
+     */
+    public RoomInfoUpdate(RoomInfoUpdate other) {
+        this.id = other.id;
+        this.state = other.state;
+        this.queueSize = new AtomicInteger(other.queueSize.get());
+        this.version = other.version;
+    }
+
     public ObjectId getId() {
         return id;
     }
@@ -26,7 +41,10 @@ public class RoomInfoUpdate implements Serializable {
     }
 
     public void setState(String state) {
-        this.state = state;
+        if (this.state == null ? state != null : !this.state.equals(state)) {
+            this.state = state;
+            notifyChanged();
+        }
     }
 
     public AtomicInteger getQueueSize() {
@@ -34,6 +52,25 @@ public class RoomInfoUpdate implements Serializable {
     }
 
     public void setQueueSize(int queueSize) {
-        this.queueSize.set(queueSize);
+        if (this.queueSize.getAndSet(queueSize) != queueSize)
+            notifyChanged();
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public void setVersion(long version) {
+        this.version = version;
+    }
+
+    void setChangeListener(RoomChangeListener changeListener) {
+        this.changeListener = changeListener;
+    }
+
+    private void notifyChanged() {
+        RoomChangeListener listener = this.changeListener;
+        if (listener != null)
+            listener.roomChanged(this);
     }
 }
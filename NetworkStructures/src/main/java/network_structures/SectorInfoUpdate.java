@@ -15,6 +15,8 @@ public class SectorInfoUpdate implements Serializable {
 
     private final Map<ObjectId, RoomInfoUpdate> rooms;
     private AtomicInteger activeRoomsCount;
+    /** Listener passed to every room of this sector, set only on server side */
+    private transient RoomChangeListener changeListener;
 
     public SectorInfoUpdate(ObjectId id) {
         this.id = id;
@@ -30,6 +32,15 @@ public class SectorInfoUpdate implements Serializable {
         return this.rooms;
     }
 
+    /**
+     * Adds room to this sector; changes of added room are tracked if this sector belongs to server's event state
+     * @param room Room to add
+     */
+    public void addRoom(RoomInfoUpdate room) {
+        room.setChangeListener(this.changeListener);
+        this.rooms.put(room.getId(), room);
+    }
+
     public AtomicInteger getActiveRoomsCount() {
         return this.activeRoomsCount;
     }
@@ -37,4 +48,16 @@ public class SectorInfoUpdate implements Serializable {
     public void setActiveRoomsCount(int activeRoomsCount) {
         this.activeRoomsCount.set(activeRoomsCount);
     }
+
+    /**
+     * Sets listener notified about changes of rooms of this sector, both current and added later
+     * @param changeListener Listener to set
+     */
+    void setChangeListener(RoomChangeListener changeListener) {
+        this.changeListener = changeListener;
+        synchronized (this.rooms) {
+            for (RoomInfoUpdate room : this.rooms.values())
+                room.setChangeListener(changeListener);
+        }
+    }
 }
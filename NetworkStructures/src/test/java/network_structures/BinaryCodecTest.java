@@ -0,0 +1,104 @@
+package network_structures;
+
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+import java.io.StreamCorruptedException;
+import java.util.Date;
+
+import static org.junit.Assert.*;
+
+public class BinaryCodecTest {
+
+    private static NetworkMessage roundTrip(NetworkMessage message) throws Exception {
+        byte[] frame = BinaryCodec.INSTANCE.encode(message);
+        int length = ((frame[0] & 0xFF) << 24) | ((frame[1] & 0xFF) << 16) | ((frame[2] & 0xFF) << 8) | (frame[3] & 0xFF);
+        assertEquals(frame.length - MessageFrames.HEADER_LENGTH, length);
+        return BinaryCodec.INSTANCE.decode(frame, MessageFrames.HEADER_LENGTH, length);
+    }
+
+    @Test
+    public void commandsArgsAndIdentifierSurvive() throws Exception {
+        NetworkMessage decoded = roundTrip(new NetworkMessage("add_to_queue", new String[] { "a", "ą" }, null, 42));
+        assertEquals("add_to_queue", decoded.getCommand());
+        assertArrayEquals(new String[] { "a", "ą" }, decoded.getArgs());
+        assertEquals(42, decoded.getCommunicationIdentifier());
+        assertNull(decoded.getData());
+
+        assertEquals("custom_command", roundTrip(new NetworkMessage("custom_command", null, null, 1)).getCommand());
+    }
+
+    @Test
+    public void queueAndReservationInfoSurvive() throws Exception {
+        ObjectId sectorId = new ObjectId();
+        ObjectId roomId = new ObjectId();
+        QueueInfo[] queues = (QueueInfo[]) roundTrip(new NetworkMessage("view_tickets", null,
+                new QueueInfo[] { new QueueInfo(sectorId, roomId, 300) }, 7)).getData();
+        assertEquals(1, queues.length);
+        assertEquals(sectorId, queues[0].getSectorId());
+        assertEquals(roomId, queues[0].getRoomId());
+        assertEquals(300, queues[0].getPositionInQueue());
+
+        Date expiration = new Date();
+        ReservationInfo reservation = (ReservationInfo) roundTrip(new NetworkMessage("reservation", null,
+                new ReservationInfo(sectorId, roomId, expiration), 0)).getData();
+        assertEquals(roomId, reservation.getRoomId());
+        assertEquals(expiration, reservation.getExpirationDate());
+    }
+
+    @Test
+    public void eventInfoUpdateSurvives() throws Exception {
+        EventInfoUpdate info = new EventInfoUpdate();
+        SectorInfoUpdate sector = new SectorInfoUpdate(new ObjectId());
+        RoomInfoUpdate room = new RoomInfoUpdate(new ObjectId());
+        room.setState("RESERVED");
+        room.setQueueSize(12);
+        sector.getRooms().put(room.getId(), room);
+        info.getSectors().put(sector.getId(), sector);
+        info.setVersion(300);
+        info.setDelta(true);
+
+        EventInfoUpdate decoded = (EventInfoUpdate) roundTrip(new NetworkMessage("update", null, info, 3)).getData();
+        RoomInfoUpdate decodedRoom = decoded.getSectors().get(sector.getId()).getRooms().get(room.getId());
+        assertEquals("RESERVED", decodedRoom.getState());
+        assertEquals(12, decodedRoom.getQueueSize().get());
+        assertEquals(300, decoded.getVersion());
+        assertTrue(decoded.isDelta());
+    }
+
+    /**
+     * @return Payload of message with opcode 1, identifier 0 and given bytes in place of argument count
+     */
+    private static byte[] payloadWithArgumentCount(int... countBytes) {
+        byte[] payload = new byte[2 + 8 + countBytes.length + 1];
+        payload[0] = BinaryCodec.VERSION;
+        payload[1] = 1;
+        for (int i = 0; i < countBytes.length; ++i)
+            payload[10 + i] = (byte) countBytes[i];
+        return payload;
+    }
+
+    private static void assertRejected(byte[] payload) throws Exception {
+        try {
+            BinaryCodec.INSTANCE.decode(payload, 0, payload.length);
+            fail("Payload should be rejected");
+        } catch (StreamCorruptedException expected) {
+        }
+    }
+
+    @Test
+    public void negativeCountIsRejected() throws Exception {
+        assertRejected(payloadWithArgumentCount(0xFF, 0xFF, 0xFF, 0xFF, 0x0F));
+    }
+
+    @Test
+    public void countExceedingPayloadIsRejected() throws Exception {
+        assertRejected(payloadWithArgumentCount(0xFF, 0xFF, 0xFF, 0xFF, 0x07));
+        assertRejected(payloadWithArgumentCount(0x03));
+    }
+
+    @Test
+    public void tooLongVarIntIsRejected() throws Exception {
+        assertRejected(payloadWithArgumentCount(0x80, 0x80, 0x80, 0x80, 0x80, 0x00));
+    }
+}
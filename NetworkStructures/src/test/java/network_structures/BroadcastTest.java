@@ -0,0 +1,56 @@
+package network_structures;
+
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Date;
+
+import static org.junit.Assert.*;
+
+public class BroadcastTest {
+
+    private static NetworkMessage decode(byte[] frame) throws Exception {
+        return BinaryCodec.INSTANCE.decode(frame, MessageFrames.HEADER_LENGTH, frame.length - MessageFrames.HEADER_LENGTH);
+    }
+
+    @Test
+    public void recipientsShareFrameWithOwnIdentifiers() throws Exception {
+        ObjectId roomId = new ObjectId();
+        Broadcast broadcast = new Broadcast(new NetworkMessage("reservation", null,
+                new ReservationInfo(new ObjectId(), roomId, new Date()), 0));
+        byte[] first = BinaryCodec.INSTANCE.encode(broadcast.to(5));
+        byte[] second = BinaryCodec.INSTANCE.encode(broadcast.to(Long.MAX_VALUE - 1));
+        assertEquals(1, broadcast.getEncodedFrameCount());
+        assertSame(BinaryCodec.INSTANCE.encode(broadcast.to(0)), BinaryCodec.INSTANCE.encode(broadcast.to(0)));
+
+        assertEquals(5, decode(first).getCommunicationIdentifier());
+        assertEquals(Long.MAX_VALUE - 1, decode(second).getCommunicationIdentifier());
+        assertEquals(roomId, ((ReservationInfo) decode(second).getData()).getRoomId());
+    }
+
+    @Test
+    public void commandsWithoutOpcodeArePatched() throws Exception {
+        Broadcast broadcast = new Broadcast(new NetworkMessage("custom_command", new String[] { "ą" }, null, 0));
+        NetworkMessage decoded = decode(BinaryCodec.INSTANCE.encode(broadcast.to(300)));
+        assertEquals("custom_command", decoded.getCommand());
+        assertEquals(300, decoded.getCommunicationIdentifier());
+        assertArrayEquals(new String[] { "ą" }, decoded.getArgs());
+    }
+
+    @Test
+    public void recipientMessageIsSerializedAsPlainMessage() throws Exception {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(buffer)) {
+            out.writeObject(new Broadcast(new NetworkMessage("ping", null, null, 0)).to(7));
+        }
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(buffer.toByteArray()))) {
+            NetworkMessage message = (NetworkMessage) in.readObject();
+            assertEquals(NetworkMessage.class, message.getClass());
+            assertEquals(7, message.getCommunicationIdentifier());
+        }
+    }
+}
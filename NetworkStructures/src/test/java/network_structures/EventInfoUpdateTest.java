@@ -0,0 +1,135 @@
+package network_structures;
+
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import static org.junit.Assert.*;
+
+public class EventInfoUpdateTest {
+
+    @Test
+    public void deltaContainsOnlyRoomsChangedSinceVersion() {
+        EventInfoUpdate info = new EventInfoUpdate();
+        SectorInfoUpdate sector = new SectorInfoUpdate(new ObjectId());
+        info.addSector(sector);
+        RoomInfoUpdate first = new RoomInfoUpdate(new ObjectId());
+        RoomInfoUpdate second = new RoomInfoUpdate(new ObjectId());
+        sector.addRoom(first);
+        sector.addRoom(second);
+
+        first.setState("OPEN");
+        second.setState("OPEN");
+        long known = info.getVersion();
+        second.setQueueSize(3);
+        second.setQueueSize(3);
+
+        EventInfoUpdate delta = info.createDelta(known);
+        assertTrue(delta.isDelta());
+        assertEquals(known + 1, delta.getVersion());
+        assertEquals(1, delta.getSectors().get(sector.getId()).getRooms().size());
+        assertEquals(3, delta.getSectors().get(sector.getId()).getRooms().get(second.getId()).getQueueSize().get());
+
+        assertTrue(info.createDelta(info.getVersion()).getSectors().isEmpty());
+        assertNull(info.createDelta(info.getVersion() + 1));
+    }
+
+    @Test
+    public void versionFromPreviousServerInstanceIsUnknown() {
+        EventInfoUpdate beforeRestart = new EventInfoUpdate(1);
+        SectorInfoUpdate oldSector = new SectorInfoUpdate(new ObjectId());
+        beforeRestart.addSector(oldSector);
+        RoomInfoUpdate oldRoom = new RoomInfoUpdate(new ObjectId());
+        oldSector.addRoom(oldRoom);
+        oldRoom.setState("OPEN");
+        oldRoom.setQueueSize(2);
+        long known = beforeRestart.getVersion();
+        assertEquals(1, EventInfoUpdate.epochOf(known));
+
+        EventInfoUpdate afterRestart = new EventInfoUpdate(2);
+        SectorInfoUpdate sector = new SectorInfoUpdate(oldSector.getId());
+        afterRestart.addSector(sector);
+        RoomInfoUpdate room = new RoomInfoUpdate(oldRoom.getId());
+        sector.addRoom(room);
+        for (int i = 0; i < 5; ++i)
+            room.setQueueSize(i + 1);
+        assertTrue(afterRestart.getVersion() - (2L << EventInfoUpdate.EPOCH_SHIFT) > known - (1L << EventInfoUpdate.EPOCH_SHIFT));
+
+        assertNull(afterRestart.createDelta(known));
+        assertNull(afterRestart.createDelta(known - (1L << EventInfoUpdate.EPOCH_SHIFT)));
+        assertNotNull(afterRestart.createDelta(afterRestart.getVersion() - 1));
+    }
+
+    @Test
+    public void mergeAppliesDeltaToCopy() {
+        EventInfoUpdate info = new EventInfoUpdate();
+        SectorInfoUpdate sector = new SectorInfoUpdate(new ObjectId());
+        info.addSector(sector);
+        RoomInfoUpdate room = new RoomInfoUpdate(new ObjectId());
+        sector.addRoom(room);
+        room.setState("OPEN");
+
+        EventInfoUpdate copy = new EventInfoUpdate();
+        copy.merge(info.createDelta(0));
+        room.setState("TAKEN");
+        copy.merge(info.createDelta(copy.getVersion()));
+
+        assertEquals("TAKEN", copy.getSectors().get(sector.getId()).getRooms().get(room.getId()).getState());
+        assertEquals(info.getVersion(), copy.getVersion());
+    }
+
+    @Test
+    public void snapshotIsSharedUntilNextChange() {
+        EventInfoUpdate info = new EventInfoUpdate();
+        SectorInfoUpdate changedSector = new SectorInfoUpdate(new ObjectId());
+        SectorInfoUpdate unchangedSector = new SectorInfoUpdate(new ObjectId());
+        info.addSector(changedSector);
+        info.addSector(unchangedSector);
+        RoomInfoUpdate room = new RoomInfoUpdate(new ObjectId());
+        changedSector.addRoom(room);
+        unchangedSector.addRoom(new RoomInfoUpdate(new ObjectId()));
+        room.setState("OPEN");
+
+        EventInfoUpdate snapshot = info.snapshot();
+        assertTrue(snapshot.isImmutable());
+        assertSame(snapshot, info.snapshot());
+
+        room.setState("RESERVED");
+        EventInfoUpdate next = info.snapshot();
+        assertNotSame(snapshot, next);
+        assertEquals("OPEN", snapshot.getSectors().get(changedSector.getId()).getRooms().get(room.getId()).getState());
+        assertEquals("RESERVED", next.getSectors().get(changedSector.getId()).getRooms().get(room.getId()).getState());
+        assertSame(snapshot.getSectors().get(unchangedSector.getId()), next.getSectors().get(unchangedSector.getId()));
+        assertEquals(info.getVersion(), next.getVersion());
+    }
+
+    @Test
+    public void serializedSnapshotMatchesState() throws Exception {
+        EventInfoUpdate info = new EventInfoUpdate();
+        SectorInfoUpdate sector = new SectorInfoUpdate(new ObjectId());
+        info.addSector(sector);
+        RoomInfoUpdate room = new RoomInfoUpdate(new ObjectId());
+        sector.addRoom(room);
+        room.setState("TAKEN");
+        room.setQueueSize(4);
+
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(buffer)) {
+            out.writeObject(info.snapshot());
+        }
+        EventInfoUpdate copy;
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(buffer.toByteArray()))) {
+            copy = (EventInfoUpdate) in.readObject();
+        }
+        assertFalse(copy.isImmutable());
+        assertEquals(info.getVersion(), copy.getVersion());
+        RoomInfoUpdate copiedRoom = copy.getSectors().get(sector.getId()).getRooms().get(room.getId());
+        assertEquals("TAKEN", copiedRoom.getState());
+        assertEquals(4, copiedRoom.getQueueSize().get());
+        copy.merge(info.createDelta(copy.getVersion()));
+    }
+}
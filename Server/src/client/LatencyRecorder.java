@@ -0,0 +1,58 @@
+package client;
+
+import java.util.Arrays;
+
+/**
+ * Collects latencies of one kind of request, reporting their count and percentiles
+ */
+class LatencyRecorder {
+    private long[] latencies;
+    private int count;
+    private int errors;
+
+    LatencyRecorder() {
+        this.latencies = new long[1024];
+        this.count = 0;
+        this.errors = 0;
+    }
+
+    /**
+     * Records latency of successful request
+     * @param nanos Latency in nanoseconds
+     */
+    synchronized void record(long nanos) {
+        if (count == latencies.length)
+            latencies = Arrays.copyOf(latencies, count * 2);
+        latencies[count++] = nanos;
+    }
+
+    /**
+     * Records request which has failed or has not been answered in time
+     */
+    synchronized void recordError() {
+        ++errors;
+    }
+
+    synchronized int getCount() {
+        return count;
+    }
+
+    synchronized int getErrors() {
+        return errors;
+    }
+
+    /**
+     * @param percentiles Percentiles to compute, each between 0 and 100
+     * @return Latencies at given percentiles in nanoseconds, zeros if nothing has been recorded
+     */
+    synchronized long[] percentiles(double... percentiles) {
+        long[] sorted = Arrays.copyOf(latencies, count);
+        Arrays.sort(sorted);
+        long[] result = new long[percentiles.length];
+        for (int i = 0; i < percentiles.length && count > 0; ++i) {
+            int index = (int) Math.ceil(percentiles[i] / 100.0 * count) - 1;
+            result[i] = sorted[Math.max(0, Math.min(count - 1, index))];
+        }
+        return result;
+    }
+}
@@ -0,0 +1,276 @@
+package client;
+
+import org.bson.types.ObjectId;
+import server.VenueLoader;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Load generator simulating many guides connected to server at once. Every guide logs in as <b>guide&lt;i&gt;</b>
+ * with password <b>password&lt;i&gt;</b>, then sends mix of "add_to_queue", "remove_from_queue", "update" and
+ * "view_tickets" requests with random think time between them. At the end throughput and latency percentiles
+ * of every command are printed.
+ * <p>
+ * Options are given in form of <b>--name=value</b>:
+ * <ul>
+ *     <li>--host, --port - address of server (default localhost:9999)</li>
+ *     <li>--guides - number of simulated guides (default 100)</li>
+ *     <li>--duration - length of run in seconds (default 30)</li>
+ *     <li>--ramp-up - time over which guides connect, in milliseconds (default 1000)</li>
+ *     <li>--think-time - mean pause between requests of one guide, in milliseconds (default 200)</li>
+ *     <li>--timeout - time to wait for single answer, in milliseconds (default 10000)</li>
+ *     <li>--transport - <b>blocking</b> or <b>nio</b>, must match server (default blocking)</li>
+ *     <li>--binary - request binary codec at login</li>
+ *     <li>--mix - relative weights of commands, eg. <b>add=40,remove=20,update=30,view=10</b></li>
+ *     <li>--seed - seed of random choices</li>
+ * </ul>
+ * Server can be run without database for this purpose. Option <b>--prepare=&lt;directory&gt;</b> writes users file
+ * and venue snapshot (sizes set by --guides, --sectors and --rooms) into given directory and prints server options
+ * using them.
+ */
+public class LoadGenerator {
+
+    /**
+     * Parsed options shared by all simulated guides
+     */
+    static class Settings {
+        String host = "localhost";
+        int port = 9999;
+        int guides = 100;
+        long durationMs = 30_000;
+        long rampUpMs = 1_000;
+        long thinkTimeMs = 200;
+        long timeoutMs = 10_000;
+        boolean framed = false;
+        boolean binary = false;
+        Mix mix = Mix.parse("add=40,remove=20,update=30,view=10");
+        long seed = 1;
+        Path prepareDirectory = null;
+        int sectors = 10;
+        int rooms = 20;
+        /** Time at which guides stop sending requests, see {@link System#nanoTime()} */
+        volatile long deadlineNanos;
+
+        String loginOf(int index) {
+            return "guide" + index;
+        }
+
+        String passwordOf(int index) {
+            return "password" + index;
+        }
+
+        static Settings parse(String[] args) {
+            Settings settings = new Settings();
+            for (String arg : args) {
+                int separator = arg.indexOf('=');
+                String name = (separator >= 0 ? arg.substring(0, separator) : arg);
+                String value = (separator >= 0 ? arg.substring(separator + 1) : "");
+                switch (name) {
+                    case "--host": settings.host = value; break;
+                    case "--port": settings.port = Integer.parseInt(value); break;
+                    case "--guides": settings.guides = Math.max(1, Integer.parseInt(value)); break;
+                    case "--duration": settings.durationMs = Math.max(1, Long.parseLong(value)) * 1000; break;
+                    case "--ramp-up": settings.rampUpMs = Math.max(0, Long.parseLong(value)); break;
+                    case "--think-time": settings.thinkTimeMs = Math.max(0, Long.parseLong(value)); break;
+                    case "--timeout": settings.timeoutMs = Math.max(1, Long.parseLong(value)); break;
+                    case "--transport": settings.framed = "nio".equalsIgnoreCase(value); break;
+                    case "--binary": settings.binary = true; break;
+                    case "--mix": settings.mix = Mix.parse(value); break;
+                    case "--seed": settings.seed = Long.parseLong(value); break;
+                    case "--prepare": settings.prepareDirectory = Paths.get(value.isEmpty() ? "." : value); break;
+                    case "--sectors": settings.sectors = Math.max(1, Integer.parseInt(value)); break;
+                    case "--rooms": settings.rooms = Math.max(1, Integer.parseInt(value)); break;
+                    default: throw new IllegalArgumentException("Unrecognized option - " + arg);
+                }
+            }
+            if (settings.binary && !settings.framed)
+                System.err.println("[LoadGenerator]: Binary codec requires --transport=nio, requesting it anyway");
+            return settings;
+        }
+    }
+
+    /**
+     * Relative weights of commands sent by guides
+     */
+    static class Mix {
+        private static final Map<String, String> COMMANDS = Map.of(
+                "add", "add_to_queue",
+                "remove", "remove_from_queue",
+                "update", "update",
+                "view", "view_tickets"
+        );
+
+        private final String[] commands;
+        private final int[] cumulativeWeights;
+
+        private Mix(String[] commands, int[] cumulativeWeights) {
+            this.commands = commands;
+            this.cumulativeWeights = cumulativeWeights;
+        }
+
+        /**
+         * @param description Comma-separated list of <b>name=weight</b>, names being add, remove, update and view
+         * @return Parsed mix
+         * @throws IllegalArgumentException When description is malformed or all weights are zero
+         */
+        static Mix parse(String description) {
+            List<String> commands = new ArrayList<>();
+            List<Integer> weights = new ArrayList<>();
+            int total = 0;
+            for (String part : description.split(",")) {
+                String[] entry = part.trim().split("=");
+                String command = COMMANDS.get(entry[0]);
+                if (entry.length != 2 || command == null)
+                    throw new IllegalArgumentException("Invalid command mix - " + description);
+                int weight = Integer.parseInt(entry[1]);
+                if (weight <= 0)
+                    continue;
+                total += weight;
+                commands.add(command);
+                weights.add(total);
+            }
+            if (total == 0)
+                throw new IllegalArgumentException("Command mix contains no command - " + description);
+            return new Mix(commands.toArray(new String[0]), weights.stream().mapToInt(Integer::intValue).toArray());
+        }
+
+        /**
+         * @param random Source of randomness
+         * @return Command chosen with probability proportional to its weight
+         */
+        String choose(Random random) {
+            int value = random.nextInt(cumulativeWeights[cumulativeWeights.length - 1]);
+            for (int i = 0; i < commands.length; ++i) {
+                if (value < cumulativeWeights[i])
+                    return commands[i];
+            }
+            return commands[commands.length - 1];
+        }
+    }
+
+    /**
+     * Results gathered from all simulated guides
+     */
+    static class Statistics {
+        private final ConcurrentHashMap<String, LatencyRecorder> recorders = new ConcurrentHashMap<>();
+        private final AtomicLong pushedMessages = new AtomicLong();
+        private final AtomicLong failedConnections = new AtomicLong();
+
+        LatencyRecorder recorder(String command) {
+            return recorders.computeIfAbsent(command, (key) -> new LatencyRecorder());
+        }
+
+        void pushReceived() {
+            pushedMessages.incrementAndGet();
+        }
+
+        void connectionFailed(Exception ex) {
+            if (failedConnections.getAndIncrement() < 10)
+                System.err.println("[LoadGenerator]: Guide disconnected - " + ex);
+        }
+
+        /**
+         * Prints table of results
+         * @param elapsedMs Length of measured period, in milliseconds
+         */
+        void print(long elapsedMs) {
+            System.out.printf("%-18s %9s %7s %10s %9s %9s %9s %9s%n",
+                    "command", "count", "errors", "ops/s", "p50 ms", "p90 ms", "p99 ms", "max ms");
+            List<String> commands = new ArrayList<>(recorders.keySet());
+            Collections.sort(commands);
+            for (String command : commands) {
+                LatencyRecorder recorder = recorders.get(command);
+                long[] percentiles = recorder.percentiles(50, 90, 99, 100);
+                System.out.printf("%-18s %9d %7d %10.1f %9.2f %9.2f %9.2f %9.2f%n",
+                        command,
+                        recorder.getCount(),
+                        recorder.getErrors(),
+                        recorder.getCount() * 1000.0 / Math.max(1, elapsedMs),
+                        percentiles[0] / 1e6,
+                        percentiles[1] / 1e6,
+                        percentiles[2] / 1e6,
+                        percentiles[3] / 1e6
+                );
+            }
+            System.out.println("Pushed messages: " + pushedMessages.get() + ", disconnected guides: " + failedConnections.get());
+        }
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        Settings settings;
+        try {
+            settings = Settings.parse(args);
+        } catch (IllegalArgumentException ex) {
+            System.err.println("[LoadGenerator]: " + ex.getMessage());
+            return;
+        }
+        if (settings.prepareDirectory != null) {
+            prepare(settings);
+            return;
+        }
+
+        Statistics statistics = new Statistics();
+        List<Thread> threads = new ArrayList<>(settings.guides);
+        long start = System.nanoTime();
+        settings.deadlineNanos = start + TimeUnit.MILLISECONDS.toNanos(settings.rampUpMs + settings.durationMs);
+        for (int i = 0; i < settings.guides; ++i) {
+            Thread thread = new Thread(new SimulatedGuide(i, settings, statistics), "guide-" + i);
+            thread.setDaemon(true);
+            thread.start();
+            threads.add(thread);
+            if (settings.rampUpMs > 0)
+                Thread.sleep(settings.rampUpMs / settings.guides);
+        }
+        for (Thread thread : threads)
+            thread.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(settings.deadlineNanos - System.nanoTime()) + settings.timeoutMs));
+        statistics.print(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    /**
+     * Writes users file and venue snapshot for running server without database
+     * @param settings Settings containing target directory, numbers of guides, sectors and rooms
+     * @throws IOException When files could not be written
+     */
+    private static void prepare(Settings settings) throws IOException {
+        Path directory = settings.prepareDirectory;
+        Files.createDirectories(directory);
+
+        Path users = directory.resolve("users.txt");
+        List<String> lines = new ArrayList<>(settings.guides + 1);
+        lines.add("# login password role");
+        for (int i = 0; i < settings.guides; ++i)
+            lines.add(settings.loginOf(i) + " " + settings.passwordOf(i) + " G");
+        Files.write(users, lines, StandardCharsets.UTF_8);
+
+        Path venue = directory.resolve("venue.snapshot");
+        List<VenueLoader.SectorRecord> sectors = new ArrayList<>(settings.sectors);
+        for (int i = 0; i < settings.sectors; ++i) {
+            List<VenueLoader.RoomRecord> rooms = new ArrayList<>(settings.rooms);
+            for (int j = 0; j < settings.rooms; ++j)
+                rooms.add(new VenueLoader.RoomRecord(new ObjectId(), "Room " + i + "." + j, "Floor " + (j % 4), ""));
+            sectors.add(new VenueLoader.SectorRecord(new ObjectId(), "Sector " + i, "Address " + i, "", rooms));
+        }
+        VenueLoader.writeSnapshot(venue, sectors);
+
+        Map<String, String> serverOptions = new LinkedHashMap<>();
+        serverOptions.put("--users", users.toString());
+        serverOptions.put("--venue-snapshot", venue.toString());
+        serverOptions.put("--event-start", "now");
+        StringBuilder line = new StringBuilder("Server options:");
+        serverOptions.forEach((name, value) -> line.append(' ').append(name).append('=').append(value));
+        System.out.println(line);
+    }
+}
@@ -0,0 +1,193 @@
+package client;
+
+import network_structures.BinaryCodec;
+import network_structures.EventInfoFixed;
+import network_structures.EventInfoUpdate;
+import network_structures.MessageFrames;
+import network_structures.NetworkMessage;
+import network_structures.RoomInfoFixed;
+import network_structures.SectorInfoFixed;
+import server.FramedMessageStream;
+import server.MessageStream;
+import server.ObjectMessageStream;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Single guide driven by {@link LoadGenerator}: logs in, then sends requests one at a time (closed loop),
+ * waiting for answer to every request and pausing for random think time between them
+ */
+class SimulatedGuide implements Runnable {
+    private final int index;
+    private final LoadGenerator.Settings settings;
+    private final LoadGenerator.Statistics statistics;
+    private final Random random;
+    /** Rooms of event as (sector id, room id) pairs */
+    private final List<String[]> rooms;
+    /** Indices of rooms whose queues this guide has joined */
+    private final LinkedHashSet<Integer> queuedRooms;
+    private MessageStream stream;
+    private long nextCommunicationIdentifier;
+    /** Version of event state known to this guide, -1 before first update */
+    private long knownVersion;
+
+    SimulatedGuide(int index, LoadGenerator.Settings settings, LoadGenerator.Statistics statistics) {
+        this.index = index;
+        this.settings = settings;
+        this.statistics = statistics;
+        this.random = new Random(settings.seed + index);
+        this.rooms = new ArrayList<>();
+        this.queuedRooms = new LinkedHashSet<>();
+        this.nextCommunicationIdentifier = 1;
+        this.knownVersion = -1;
+    }
+
+    /**
+     * Main loop
+     */
+    @Override
+    public void run() {
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(settings.host, settings.port), (int) settings.timeoutMs);
+            socket.setSoTimeout((int) settings.timeoutMs);
+            socket.setTcpNoDelay(true);
+            if (settings.framed)
+                stream = new FramedMessageStream(
+                        new DataOutputStream(new BufferedOutputStream(socket.getOutputStream())),
+                        new DataInputStream(new BufferedInputStream(socket.getInputStream())),
+                        MessageFrames.SERIALIZED_CODEC
+                );
+            else
+                stream = new ObjectMessageStream(socket.getOutputStream(), socket.getInputStream());
+            if (!logIn())
+                return;
+            while (System.nanoTime() < settings.deadlineNanos) {
+                sendNextRequest();
+                Thread.sleep(thinkTimeMs());
+            }
+        } catch (IOException | ClassNotFoundException ex) {
+            statistics.connectionFailed(ex);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Logs in, requesting binary codec if configured, and reads rooms of event from event details
+     * @return True if logged in successfully
+     */
+    private boolean logIn() throws IOException, ClassNotFoundException {
+        String login = settings.loginOf(index);
+        String password = settings.passwordOf(index);
+        String[] args = (settings.binary
+                ? new String[] { login, password, BinaryCodec.LOGIN_ARGUMENT_PREFIX + BinaryCodec.NAME }
+                : new String[] { login, password });
+        LatencyRecorder recorder = statistics.recorder("login");
+        long start = System.nanoTime();
+        NetworkMessage response = request(new NetworkMessage("login", args, null, nextCommunicationIdentifier++));
+        if (response == null || response.getArgs() == null || !"true".equals(response.getArgs()[0])) {
+            recorder.recordError();
+            return false;
+        }
+        if (response.getArgs().length > 1 && BinaryCodec.NAME.equals(response.getArgs()[1]))
+            stream = stream.switchCodec(BinaryCodec.INSTANCE);
+        NetworkMessage details;
+        do {
+            details = stream.read();
+        } while (!"event_details".equals(details.getCommand()));
+        recorder.record(System.nanoTime() - start);
+        if (details.getData() instanceof EventInfoFixed) {
+            for (SectorInfoFixed sector : ((EventInfoFixed) details.getData()).getSectors().values()) {
+                for (RoomInfoFixed room : sector.getRooms().values())
+                    rooms.add(new String[] { sector.getId().toString(), room.getId().toString() });
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Sends request chosen according to configured mix and records its latency
+     */
+    private void sendNextRequest() throws IOException, ClassNotFoundException {
+        String command = settings.mix.choose(random);
+        String[] args = null;
+        int roomIndex = -1;
+        switch (command) {
+            case "add_to_queue": {
+                if (rooms.isEmpty())
+                    return;
+                roomIndex = random.nextInt(rooms.size());
+                args = rooms.get(roomIndex);
+            } break;
+            case "remove_from_queue": {
+                if (rooms.isEmpty())
+                    return;
+                roomIndex = (queuedRooms.isEmpty()
+                        ? random.nextInt(rooms.size())
+                        : new ArrayList<>(queuedRooms).get(random.nextInt(queuedRooms.size())));
+                args = rooms.get(roomIndex);
+            } break;
+            case "update": {
+                args = (knownVersion >= 0 ? new String[] { String.valueOf(knownVersion) } : null);
+            } break;
+        }
+        LatencyRecorder recorder = statistics.recorder(command);
+        long start = System.nanoTime();
+        NetworkMessage response = request(new NetworkMessage(command, args, null, nextCommunicationIdentifier++));
+        if (response == null) {
+            recorder.recordError();
+            throw new SocketTimeoutException("No answer to " + command + " in " + settings.timeoutMs + " ms");
+        }
+        if ("error".equals(response.getCommand())) {
+            recorder.recordError();
+            return;
+        }
+        recorder.record(System.nanoTime() - start);
+        if ("add_to_queue".equals(command))
+            queuedRooms.add(roomIndex);
+        else if ("remove_from_queue".equals(command))
+            queuedRooms.remove(roomIndex);
+        else if ("update".equals(command) && response.getData() instanceof EventInfoUpdate)
+            knownVersion = ((EventInfoUpdate) response.getData()).getVersion();
+    }
+
+    /**
+     * Sends request and waits for answer with the same communication identifier, skipping pushed messages
+     * @param message Request to send
+     * @return Answer or null if it has not arrived in time
+     */
+    private NetworkMessage request(NetworkMessage message) throws IOException, ClassNotFoundException {
+        stream.write(message);
+        stream.flush();
+        try {
+            while (true) {
+                NetworkMessage received = stream.read();
+                if (received.getCommunicationIdentifier() == message.getCommunicationIdentifier())
+                    return received;
+                statistics.pushReceived();
+            }
+        } catch (SocketTimeoutException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * @return Exponentially distributed think time with configured mean, in milliseconds
+     */
+    private long thinkTimeMs() {
+        if (settings.thinkTimeMs <= 0)
+            return 0;
+        return (long) (-Math.log(1.0 - random.nextDouble()) * settings.thinkTimeMs);
+    }
+}
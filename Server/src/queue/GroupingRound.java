@@ -0,0 +1,135 @@
+package queue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Single round of grouping in room with more than one slot: groups at front of room's queue are asked whether
+ * they agree to visit room together, and those who accept get reservations at once.
+ * Round is a passive state machine driven by its room on system thread owning the room: responses update
+ * counters in constant time, completion is checked when room is checked (see {@link Room#allocateReservations()}),
+ * and timeout is a room check scheduled at round's deadline, so no thread waits for any round.
+ */
+class GroupingRound {
+    /** Time groups have for responding, in milliseconds */
+    static final long DURATION = 10 * 1000;
+
+    enum State {
+        /** Waiting for responses */
+        COLLECTING,
+        /** Enough groups accepted, every group responded or deadline passed; reservations have been given */
+        FINISHED
+    }
+
+    private final int slots;
+    private final long deadline;
+    /** Tickets of invited groups, in queue order; withdrawn tickets stay here but no longer point to this round */
+    private final ArrayList<TourGroup.QueueTicket> participants;
+    private int pending;
+    private int accepted;
+    private int declined;
+    private State state;
+
+    /**
+     * Starts round, inviting groups which may hold another reservation; remaining candidates do not take part
+     * @param candidates Tickets at front of room's queue, in queue order
+     * @param slots Number of groups room can take at once
+     * @param now Current time, in milliseconds since epoch
+     */
+    GroupingRound(List<TourGroup.QueueTicket> candidates, int slots, long now) {
+        this.slots = slots;
+        this.deadline = now + DURATION;
+        this.participants = new ArrayList<>(candidates.size());
+        this.state = State.COLLECTING;
+        for (TourGroup.QueueTicket ticket : candidates) {
+            if (ticket.getOwner().canAddReservation()) {
+                ticket.sendNotificationAboutGrouping();
+                ticket.setGroupingRound(this);
+                participants.add(ticket);
+                ++pending;
+            } else {
+                ticket.setNoParticipation();
+            }
+        }
+    }
+
+    State getState() {
+        return state;
+    }
+
+    long getDeadline() {
+        return deadline;
+    }
+
+    List<TourGroup.QueueTicket> getParticipants() {
+        return participants;
+    }
+
+    int getPendingCount() {
+        return pending;
+    }
+
+    int getAcceptedCount() {
+        return accepted;
+    }
+
+    int getDeclinedCount() {
+        return declined;
+    }
+
+    /**
+     * Records response of group, which may change its earlier decision while round is collecting responses
+     * @param ticket Ticket of responding group
+     * @param accept True if group agrees to visit room together with others
+     * @return True if response has been recorded
+     */
+    boolean respond(TourGroup.QueueTicket ticket, boolean accept) {
+        if (state != State.COLLECTING || ticket.getGroupingRound() != this)
+            return false;
+        count(ticket.getGroupingResponse(), -1);
+        TourGroup.GroupingResponses response = (accept ? TourGroup.GroupingResponses.ACCEPTED : TourGroup.GroupingResponses.DECLINED);
+        ticket.setGroupingResponse(response);
+        count(response, 1);
+        return true;
+    }
+
+    /**
+     * Removes ticket from round, eg. when group leaves queue during round
+     * @param ticket Ticket to remove
+     */
+    void withdraw(TourGroup.QueueTicket ticket) {
+        if (ticket.getGroupingRound() != this)
+            return;
+        count(ticket.getGroupingResponse(), -1);
+        ticket.setGroupingRound(null);
+        ticket.setNoParticipation();
+    }
+
+    /**
+     * @param now Current time, in milliseconds since epoch
+     * @return True if round should be finished: enough groups accepted, nobody is left to respond or deadline passed
+     */
+    boolean isComplete(long now) {
+        return accepted >= slots || pending == 0 || now >= deadline;
+    }
+
+    /**
+     * Ends round; tickets keep their responses until processed by room, but no longer point to this round
+     */
+    void finish() {
+        state = State.FINISHED;
+        for (TourGroup.QueueTicket ticket : participants) {
+            if (ticket.getGroupingRound() == this)
+                ticket.setGroupingRound(null);
+        }
+    }
+
+    private void count(TourGroup.GroupingResponses response, int change) {
+        switch (response) {
+            case PENDING: pending += change; break;
+            case ACCEPTED: accepted += change; break;
+            case DECLINED: declined += change; break;
+            default: break;
+        }
+    }
+}
@@ -0,0 +1,248 @@
+package queue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * FIFO queue supporting removal of arbitrary element and position lookup in logarithmic time.
+ * Every element gets increasing slot number when enqueued, which is stored in the element itself and serves as its
+ * handle: removal only leaves tombstone (empty slot) behind, while presence of elements in slots is counted by
+ * Fenwick tree, so position of element is the number of occupied slots before its own.
+ * Slots are compacted in place once they run out and array grows only when it is more than half full, so steady
+ * queue churn does not allocate. Size is updated together with the structure and reported to
+ * {@link #sizeChanged(int)} while queue is still locked.
+ * Element can be queued in one queue at a time.
+ * @param <E> Type of queued elements
+ */
+public class IndexedQueue<E extends IndexedQueue.Entry> implements Iterable<E> {
+
+    /**
+     * Element of indexed queue, holding its own slot number
+     */
+    public interface Entry {
+        /**
+         * @return Slot number assigned by queue, -1 if element is not queued
+         */
+        int getQueueSlot();
+
+        /**
+         * @param slot Slot number assigned by queue, -1 if element is removed from queue
+         */
+        void setQueueSlot(int slot);
+    }
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    /** Elements by slot number, null for free slots and tombstones */
+    private Entry[] slots;
+    /** Fenwick tree counting occupied slots, 1-based */
+    private int[] tree;
+    /** Lowest slot number which may be occupied */
+    private int head;
+    /** Slot number following highest occupied slot */
+    private int end;
+    private int count;
+
+    public IndexedQueue() {
+        this.slots = new Entry[INITIAL_CAPACITY];
+        this.tree = new int[INITIAL_CAPACITY + 1];
+    }
+
+    /**
+     * Adds element at the end of queue
+     * @param element Element to add
+     * @return True if element has been added, false if it is null or already queued
+     */
+    public synchronized boolean offer(E element) {
+        if (element == null || element.getQueueSlot() >= 0)
+            return false;
+        if (end == slots.length)
+            compact();
+        slots[end] = element;
+        element.setQueueSlot(end);
+        add(end, 1);
+        ++end;
+        ++count;
+        sizeChanged(count);
+        return true;
+    }
+
+    /**
+     * Removes first element of queue
+     * @return Removed element or null if queue is empty
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized E poll() {
+        while (head < end && slots[head] == null)
+            ++head;
+        if (head == end)
+            return null;
+        E element = (E) slots[head];
+        removeSlot(head);
+        return element;
+    }
+
+    /**
+     * @param limit Maximum number of elements to return
+     * @return Up to given number of elements from front of queue, in queue order, without removing them
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized List<E> peekFirst(int limit) {
+        ArrayList<E> elements = new ArrayList<>(Math.min(Math.max(0, limit), count));
+        for (int i = head; i < end && elements.size() < limit; ++i) {
+            if (slots[i] != null)
+                elements.add((E) slots[i]);
+        }
+        return elements;
+    }
+
+    /**
+     * @return Last element of queue or null if queue is empty
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized E peekLast() {
+        return (count > 0 ? (E) slots[end - 1] : null);
+    }
+
+    /**
+     * Removes given element from any position of queue, leaving tombstone in its slot
+     * @param element Element to remove
+     * @return True if element has been removed, false if it was not queued
+     */
+    public synchronized boolean remove(E element) {
+        if (!contains(element))
+            return false;
+        removeSlot(element.getQueueSlot());
+        return true;
+    }
+
+    /**
+     * @param element Element to look for
+     * @return Number of elements queued before given element or -1 if element is not queued
+     */
+    public synchronized int positionOf(E element) {
+        return (contains(element) ? prefixCount(element.getQueueSlot()) - 1 : -1);
+    }
+
+    /**
+     * @param element Element to look for
+     * @return True if given element is queued in this queue
+     */
+    public synchronized boolean contains(E element) {
+        if (element == null)
+            return false;
+        int slot = element.getQueueSlot();
+        return slot >= 0 && slot < end && slots[slot] == element;
+    }
+
+    public synchronized int size() {
+        return count;
+    }
+
+    public synchronized boolean isEmpty() {
+        return count == 0;
+    }
+
+    /**
+     * @return Array of queued elements in queue order, taken at the time of call
+     */
+    public synchronized Entry[] snapshot() {
+        Entry[] snapshot = new Entry[count];
+        int next = 0;
+        for (int i = head; i < end; ++i) {
+            if (slots[i] != null)
+                snapshot[next++] = slots[i];
+        }
+        return snapshot;
+    }
+
+    /**
+     * @return Iterator over snapshot of queue taken at the time of call, in queue order
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public Iterator<E> iterator() {
+        ArrayList<E> elements = new ArrayList<>();
+        for (Entry entry : snapshot())
+            elements.add((E) entry);
+        return elements.iterator();
+    }
+
+    /**
+     * Called after every change of size, while queue is still locked, so that size published elsewhere never
+     * drifts from the real one
+     * @param size Current number of queued elements
+     */
+    protected void sizeChanged(int size) {}
+
+    private void removeSlot(int slot) {
+        slots[slot].setQueueSlot(-1);
+        slots[slot] = null;
+        add(slot, -1);
+        --count;
+        if (count == 0) {
+            head = end = 0;
+        } else {
+            while (slots[end - 1] == null)
+                --end;
+        }
+        sizeChanged(count);
+    }
+
+    /**
+     * Moves queued elements to consecutive slots starting from 0, growing array only if more than half of it
+     * is occupied, and rebuilds tree
+     */
+    private void compact() {
+        Entry[] target = (count * 2 > slots.length ? new Entry[slots.length * 2] : slots);
+        int next = 0;
+        for (int i = head; i < end; ++i) {
+            Entry element = slots[i];
+            if (element != null) {
+                slots[i] = null;
+                target[next] = element;
+                element.setQueueSlot(next);
+                ++next;
+            }
+        }
+        slots = target;
+        head = 0;
+        end = next;
+        if (tree.length != slots.length + 1)
+            tree = new int[slots.length + 1];
+        else
+            Arrays.fill(tree, 0);
+        for (int i = 1; i < tree.length; ++i) {
+            if (i <= next)
+                tree[i] += 1;
+            int parent = i + (i & -i);
+            if (parent < tree.length)
+                tree[parent] += tree[i];
+        }
+    }
+
+    /**
+     * Adds given value to counter of slot
+     */
+    private void add(int slot, int delta) {
+        for (int i = slot + 1; i < tree.length; i += i & -i)
+            tree[i] += delta;
+    }
+
+    /**
+     * @return Number of occupied slots with number lower or equal to given one
+     */
+    private int prefixCount(int slot) {
+        int sum = 0;
+        for (int i = slot + 1; i > 0; i -= i & -i)
+            sum += tree[i];
+        return sum;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return Arrays.toString(snapshot());
+    }
+}
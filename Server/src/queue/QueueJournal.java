@@ -0,0 +1,62 @@
+package queue;
+
+/**
+ * Interface for recording changes of queue and reservation state, so that it can be restored after server restart.
+ * Methods are called by system thread owning the room right after the change and should not block.
+ * Only groups with identifier are recorded, see {@link TourGroup#getId()}.
+ */
+public interface QueueJournal {
+    /** Journal ignoring all changes */
+    QueueJournal NONE = new QueueJournal() {
+        @Override
+        public void ticketAdded(Room room, TourGroup group) {}
+
+        @Override
+        public void ticketRemoved(Room room, TourGroup group) {}
+
+        @Override
+        public void reservationCreated(Room room, TourGroup group, long expirationTime) {}
+
+        @Override
+        public void reservationRemoved(Room room, TourGroup group) {}
+
+        @Override
+        public void penaltyChanged(TourGroup group, int penaltyLevel) {}
+    };
+
+    /**
+     * Records that group has joined end of room's queue
+     * @param room Room whose queue has been joined
+     * @param group Group which has joined the queue
+     */
+    void ticketAdded(Room room, TourGroup group);
+
+    /**
+     * Records that group has left room's queue without reservation
+     * @param room Room whose queue has been left
+     * @param group Group which has left the queue
+     */
+    void ticketRemoved(Room room, TourGroup group);
+
+    /**
+     * Records that group has left room's queue with reservation of that room
+     * @param room Reserved room
+     * @param group Group holding reservation
+     * @param expirationTime Time (in milliseconds since epoch) reservation expires at
+     */
+    void reservationCreated(Room room, TourGroup group, long expirationTime);
+
+    /**
+     * Records that group's reservation of room has been released
+     * @param room Reserved room
+     * @param group Group which has held reservation
+     */
+    void reservationRemoved(Room room, TourGroup group);
+
+    /**
+     * Records new penalty level of group
+     * @param group Group whose penalty level has changed
+     * @param penaltyLevel New penalty level
+     */
+    void penaltyChanged(TourGroup group, int penaltyLevel);
+}
@@ -0,0 +1,80 @@
+package queue;
+
+import java.util.LinkedHashSet;
+
+/**
+ * Batch allocation of reservations, owned by single system thread. Rooms whose queue or reservations have changed
+ * are collected while tasks keep arriving and reservations are given in all of them in one pass once the thread
+ * runs out of tasks (or batch grows too large), so that burst of queue changes is handled in time linear
+ * in number of changed rooms, each room being examined once per batch.
+ * Groups are limited in number of reservations they hold (see {@link TourGroup#addReservationIfAllowed}),
+ * so group at front of several queues gets a reservation in one of them, while remaining rooms go to next groups.
+ */
+public class ReservationAllocator {
+    /** Number of changed rooms after which allocation is run even if thread has more tasks pending */
+    public static final int MAX_BATCH_ROOMS = 256;
+
+    /** Rooms changed since last allocation, in order of change */
+    private final LinkedHashSet<Room> changedRooms;
+    private long allocations;
+    private long givenReservations;
+
+    public ReservationAllocator() {
+        this.changedRooms = new LinkedHashSet<>();
+        this.allocations = 0;
+        this.givenReservations = 0;
+    }
+
+    /**
+     * Marks room as requiring allocation in next pass
+     * @param room Room whose queue or reservations have changed
+     */
+    public void markChanged(Room room) {
+        if (room != null)
+            changedRooms.add(room);
+    }
+
+    /**
+     * @return Number of rooms waiting for next pass
+     */
+    public int getPendingRoomCount() {
+        return changedRooms.size();
+    }
+
+    /**
+     * @return True if batch has grown large enough to be allocated without waiting for thread to run out of tasks
+     */
+    public boolean isBatchFull() {
+        return changedRooms.size() >= MAX_BATCH_ROOMS;
+    }
+
+    /**
+     * Gives reservations in all changed rooms, see {@link Room#allocateReservations()}
+     * @return Number of reservations given
+     */
+    public int allocate() {
+        if (changedRooms.isEmpty())
+            return 0;
+        int given = 0;
+        for (Room room : changedRooms)
+            given += room.allocateReservations();
+        changedRooms.clear();
+        ++allocations;
+        givenReservations += given;
+        return given;
+    }
+
+    /**
+     * @return Number of passes run so far
+     */
+    public long getAllocationCount() {
+        return allocations;
+    }
+
+    /**
+     * @return Number of reservations given so far
+     */
+    public long getGivenReservationCount() {
+        return givenReservations;
+    }
+}
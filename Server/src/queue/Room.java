@@ -9,7 +9,7 @@ import org.bson.types.ObjectId;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.Iterator;
-import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.LongAdder;
 
 public class Room {
 
@@ -48,8 +48,29 @@ public class Room {
     private int maxSlots;
 
     private static final int RESERVATIONS_UPDATE_CHECK_DELAY = 1000;
+    /** Number of groups examined per free slot when giving reservations, see {@link #allocateReservations()} */
+    static final int ALLOCATION_LOOKAHEAD = 8;
+    /** Number of groups invited to grouping round per slot */
+    static final int GROUPING_INVITATION_FACTOR = 2;
+    /** Number of grouping rounds group may decline or ignore before losing its ticket */
+    static final int MAX_GROUPING_ASKS = 3;
+    /** Last argument of "grouping" message telling guides that their group has lost ticket to room */
+    public static final String GROUPING_EXPIRED = "expired";
+    /** Number of reservations given in this room, read by metrics */
+    private final LongAdder givenReservations = new LongAdder();
+    /** Number of reservations of this room which expired unused, read by metrics */
+    private final LongAdder expiredReservations = new LongAdder();
+    /** Grouping round in progress, null if none; accessed only by system thread owning this room */
+    private GroupingRound grouping;
+    /** Earliest time next grouping round may start, set after round in which nobody got reservation */
+    private long nextGroupingTime;
     protected ConcurrentRoomQueue queue;
 
+    /** Scheduler notified whenever this room requires checking its queue or reservations */
+    private RoomCheckScheduler checkScheduler = (room, checkTime) -> {};
+    /** Journal recording changes of this room's queue and reservations */
+    private QueueJournal journal = QueueJournal.NONE;
+
     public Room(ObjectId id, String name, String location, String description, int maxSlots, Sector parentSector) {
         this.infoUpdate = new RoomInfoUpdate(id);
         changeState(State.OPEN);
@@ -75,14 +96,74 @@ public class Room {
         return maxSlots;
     }
 
+    /**
+     * Sets scheduler to notify about changes of this room's queue and reservations
+     * @param checkScheduler Scheduler to notify
+     */
+    public void setCheckScheduler(RoomCheckScheduler checkScheduler) {
+        if (checkScheduler != null)
+            this.checkScheduler = checkScheduler;
+    }
+
+    /**
+     * Sets journal to record changes of this room's queue and reservations in
+     * @param journal Journal to record changes in
+     */
+    public void setJournal(QueueJournal journal) {
+        if (journal != null)
+            this.journal = journal;
+    }
+
+    /**
+     * Puts group back at end of this room's queue after server restart, without recording it in journal
+     * @param group Group recorded in this room's queue
+     * @return True if group has been queued
+     */
+    public boolean restoreTicket(TourGroup group) {
+        TourGroup.QueueTicket queueTicket = group.createTicket(this);
+        if (queueTicket == null)
+            return false;
+        this.queue.enqueue(queueTicket);
+        checkScheduler.scheduleCheck(this, System.currentTimeMillis());
+        return true;
+    }
+
+    /**
+     * Gives reservation back to group after server restart, without recording it in journal
+     * @param group Group recorded as holding reservation of this room
+     * @param expirationTime Time (in milliseconds since epoch) reservation expires at
+     */
+    public void restoreReservation(TourGroup group, long expirationTime) {
+        Reservation reservation = new Reservation(this, group, new Date(expirationTime));
+        currentReservations.add(reservation);
+        group.addReservation(reservation);
+        changeState(State.RESERVED);
+        checkScheduler.scheduleCheck(this, expirationTime + 1);
+    }
+
+    /**
+     * @return Number of reservations given in this room so far
+     */
+    public long getGivenReservationCount() {
+        return givenReservations.sum();
+    }
+
+    /**
+     * @return Number of reservations of this room which expired unused so far
+     */
+    public long getExpiredReservationCount() {
+        return expiredReservations.sum();
+    }
+
+    /**
+     * @param group Group to look for
+     * @return Number of groups ahead of given group in this room's queue or -1 if group is not queued
+     */
     public int positionOf(TourGroup group) {
         if (group != null) {
-            int position = 0;
-            for (Iterator<TourGroup.QueueTicket> it = queue.iterator(); it.hasNext();) {
-                if (it.next().getOwner() == group)
-                    return position;
-                ++position;
-            }
+            TourGroup.QueueTicket ticket = group.getTicketForRoom(this);
+            if (ticket != null)
+                return queue.positionOf(ticket);
         }
         return -1;
     }
@@ -104,30 +185,166 @@ public class Room {
         return null;
     }
 
-    // fixme
-    public void giveReservationsToAll() {
-        if (queue.size() >= maxSlots) {
-            for (int i = 0; i < maxSlots; ++i) {
-                TourGroup.QueueTicket ticket = queue.poll();
-                if (ticket == null) return;
-                TourGroup group = ticket.getOwner();
-                Reservation reservation = createReservation(group);
-                group.addReservation(reservation);
-                group.sendToAllGuides(new NetworkMessage(
-                        "reservation",
-                        new String[0],
-                        new ReservationInfo(
-                                infoFixed.getSectorId(),
-                                infoFixed.getId(),
-                                reservation.getExpirationDate()
-                        ),
-                        0
-                ));
-                infoUpdate.setQueueSize(queue.size());
-                changeState(State.RESERVED);
-                group.removeTicket(group.getTicketForRoom(this));
+    /**
+     * Gives reservations of free slots of this room to groups at front of its queue. Groups which cannot hold another
+     * reservation are skipped but keep their place in queue; they are reconsidered once their reservation ends
+     * (see {@link #updateReservationStatus()}). At most {@link #ALLOCATION_LOOKAHEAD} groups per free slot are examined,
+     * so one call takes constant time regardless of queue length. Called by {@link ReservationAllocator}.
+     * Rooms with more than one slot give reservations only through grouping rounds, which this method starts
+     * and finishes once they are complete, see {@link GroupingRound}.
+     * @return Number of reservations given
+     */
+    public int allocateReservations() {
+        return allocateReservations(System.currentTimeMillis());
+    }
+
+    /**
+     * Gives reservations as {@link #allocateReservations()} does, at given time
+     * @param now Current time, in milliseconds since epoch
+     * @return Number of reservations given
+     */
+    public int allocateReservations(long now) {
+        if (grouping != null)
+            return (grouping.isComplete(now) ? finishGrouping(now) : 0);
+        int freeSlots = maxSlots - currentReservations.size();
+        if (state == State.TAKEN || freeSlots <= 0 || queue.isEmpty())
+            return 0;
+        if (maxSlots > 1) {
+            if (currentReservations.isEmpty() && now >= nextGroupingTime)
+                startGrouping(now);
+            return 0;
+        }
+        int given = 0;
+        for (TourGroup.QueueTicket ticket : queue.peekFirst(freeSlots * ALLOCATION_LOOKAHEAD)) {
+            if (given == freeSlots)
+                break;
+            if (giveReservation(ticket))
+                ++given;
+        }
+        return given;
+    }
+
+    /**
+     * Gives reservation of this room to owner of given ticket, taking ticket out of queue
+     * @param ticket Queued ticket
+     * @return True if reservation has been given, false if group cannot hold another reservation
+     */
+    private boolean giveReservation(TourGroup.QueueTicket ticket) {
+        TourGroup group = ticket.getOwner();
+        Reservation reservation = new Reservation(this, group);
+        if (!group.addReservationIfAllowed(reservation))
+            return false;
+        queue.remove(ticket);
+        group.removeTicket(ticket);
+        currentReservations.add(reservation);
+        changeState(State.RESERVED);
+        givenReservations.increment();
+        group.sendToAllGuides(new NetworkMessage(
+                "reservation",
+                new String[0],
+                new ReservationInfo(
+                        infoFixed.getSectorId(),
+                        infoFixed.getId(),
+                        reservation.getExpirationDate()
+                ),
+                0
+        ));
+        journal.reservationCreated(this, group, reservation.getExpirationDate().getTime());
+        checkScheduler.scheduleCheck(this, reservation.getExpirationDate().getTime() + 1);
+        return true;
+    }
+
+    /**
+     * Invites groups at front of queue to grouping round and schedules check of this room at round's deadline
+     */
+    private void startGrouping(long now) {
+        GroupingRound round = new GroupingRound(queue.peekFirst(maxSlots * GROUPING_INVITATION_FACTOR), maxSlots, now);
+        if (round.getParticipants().isEmpty())
+            return;
+        grouping = round;
+        String[] args = new String[] {
+                infoFixed.getSectorId().toString(),
+                infoFixed.getId().toString(),
+                String.valueOf(round.getDeadline()),
+                String.valueOf(maxSlots)
+        };
+        for (TourGroup.QueueTicket ticket : round.getParticipants())
+            ticket.getOwner().sendToAllGuides(new NetworkMessage("grouping", args, null, 0));
+        checkScheduler.scheduleCheck(this, round.getDeadline() + 1);
+    }
+
+    /**
+     * Ends current grouping round: groups which accepted get reservations (up to number of slots), groups which
+     * declined or did not respond lose their ticket after {@link #MAX_GROUPING_ASKS} rounds and their guides
+     * are told so by "grouping" message ending with {@link #GROUPING_EXPIRED}. If nobody got reservation,
+     * next round starts no sooner than {@link GroupingRound#DURATION} later, so that the same groups
+     * are not asked again at once.
+     * @param now Current time, in milliseconds since epoch
+     * @return Number of reservations given
+     */
+    private int finishGrouping(long now) {
+        GroupingRound round = grouping;
+        grouping = null;
+        round.finish();
+        int given = 0;
+        for (TourGroup.QueueTicket ticket : round.getParticipants()) {
+            if (!queue.contains(ticket))
+                continue;
+            TourGroup.GroupingResponses response = ticket.getGroupingResponse();
+            ticket.setNoParticipation();
+            if (response == TourGroup.GroupingResponses.ACCEPTED) {
+                if (given < maxSlots && giveReservation(ticket))
+                    ++given;
+            } else if (response == TourGroup.GroupingResponses.PENDING || response == TourGroup.GroupingResponses.DECLINED) {
+                ticket.increaseTimesAsked();
+                if (ticket.getTimesAsked() >= MAX_GROUPING_ASKS)
+                    expireTicket(ticket.getOwner());
             }
         }
+        if (given == 0 && !queue.isEmpty()) {
+            nextGroupingTime = now + GroupingRound.DURATION;
+            checkScheduler.scheduleCheck(this, nextGroupingTime);
+        }
+        return given;
+    }
+
+    /**
+     * Takes group which has declined or ignored too many grouping rounds out of queue and notifies its guides
+     * @param group Group losing its ticket
+     */
+    private void expireTicket(TourGroup group) {
+        if (!removeGroupFromQueue(group))
+            return;
+        group.sendToAllGuides(new NetworkMessage(
+                "grouping",
+                new String[] { infoFixed.getSectorId().toString(), infoFixed.getId().toString(), GROUPING_EXPIRED },
+                null,
+                0
+        ));
+    }
+
+    /**
+     * Records response of group to current grouping round of this room; group may change its decision until round ends
+     * @param group Responding group
+     * @param accept True if group agrees to visit room together with others
+     * @return True if response has been recorded, false if group does not take part in current round
+     */
+    public boolean respondToGrouping(TourGroup group, boolean accept) {
+        GroupingRound round = grouping;
+        TourGroup.QueueTicket ticket = (group != null ? group.getTicketForRoom(this) : null);
+        if (round == null || ticket == null || !round.respond(ticket, accept))
+            return false;
+        long now = System.currentTimeMillis();
+        if (round.isComplete(now))
+            checkScheduler.scheduleCheck(this, now);
+        return true;
+    }
+
+    /**
+     * @return True if grouping round is in progress in this room
+     */
+    public boolean isDuringGrouping() {
+        return grouping != null;
     }
 
     public Reservation[] updateReservationStatus() {
@@ -136,8 +353,14 @@ public class Room {
             Reservation reservation = it.next();
             if (!reservation.isActive() && reservation.expirationDate.getTime() < new Date().getTime()) {
                 it.remove();
-                reservation.getGroup().removeReservation(reservation);
+                TourGroup group = reservation.getGroup();
+                group.removeReservation(reservation);
                 removedReservations.add(reservation);
+                expiredReservations.increment();
+                journal.reservationRemoved(this, group);
+                // Group may have been skipped at front of other queues while holding this reservation
+                for (Room room : group.getTicketRooms())
+                    room.checkScheduler.scheduleCheck(room, System.currentTimeMillis());
             }
         }
         if (currentReservations.size() == 0 && state == State.RESERVED) {
@@ -214,7 +437,8 @@ public class Room {
         TourGroup.QueueTicket queueTicket = group.createTicket(this);
         if (queueTicket != null) {
             this.queue.enqueue(queueTicket);
-            this.infoUpdate.setQueueSize(infoUpdate.getQueueSize().get()+1);
+            journal.ticketAdded(this, group);
+            checkScheduler.scheduleCheck(this, System.currentTimeMillis());
             return this.queue.size();
         }
         return 0;
@@ -229,8 +453,16 @@ public class Room {
             TourGroup.QueueTicket ticket = group.getTicketForRoom(this);
             if (ticket != null) {
                 group.removeTicket(ticket);
-                this.infoUpdate.setQueueSize(this.infoUpdate.getQueueSize().get() - 1);
-                return queue.removeFirstOccurrence(ticket);
+                GroupingRound round = grouping;
+                if (round != null) {
+                    round.withdraw(ticket);
+                    if (round.isComplete(System.currentTimeMillis()))
+                        checkScheduler.scheduleCheck(this, System.currentTimeMillis());
+                }
+                boolean removed = queue.remove(ticket);
+                if (removed)
+                    journal.ticketRemoved(this, group);
+                return removed;
             }
         }
         return false;
@@ -246,9 +478,13 @@ public class Room {
         private boolean active;
 
         Reservation(Room reservedRoom, TourGroup group) {
+            this(reservedRoom, group, new Date(System.currentTimeMillis() + DURATION));
+        }
+
+        Reservation(Room reservedRoom, TourGroup group, Date expirationDate) {
             this.reservedRoom = reservedRoom;
             this.group = group;
-            this.expirationDate = new Date(System.currentTimeMillis() + DURATION);
+            this.expirationDate = expirationDate;
             this.active = false;
         }
 
@@ -273,27 +509,25 @@ public class Room {
         }
     }
 
-    class ConcurrentRoomQueue extends ConcurrentLinkedDeque<TourGroup.QueueTicket> {
-        private static final int maxQuestions = 3;
-
+    class ConcurrentRoomQueue extends IndexedQueue<TourGroup.QueueTicket> {
         private final Room owner;
 
-        private boolean requestedGrouping;
-        private boolean isDuringGrouping;
-        private boolean isFullyGrouped;
-
         protected ConcurrentRoomQueue(Room owner) {
             this.owner = owner;
-            this.requestedGrouping = false;
-            this.isDuringGrouping = false;
-            this.isFullyGrouped = false;
         }
 
+        /**
+         * Adds ticket at the end of queue; tickets queued during grouping round join next round
+         * @param ticket Ticket to add
+         * @return True if ticket has been added
+         */
         public boolean enqueue(TourGroup.QueueTicket ticket) {
-            if (isDuringGrouping && this.peekLast() != null) {
-                this.peekLast().sendNotificationAboutGrouping();
-            }
             return super.offer(ticket);
         }
+
+        @Override
+        protected void sizeChanged(int size) {
+            owner.infoUpdate.setQueueSize(size);
+        }
     }
 }
@@ -0,0 +1,14 @@
+package queue;
+
+/**
+ * Interface for requesting room state checks, so that rooms are processed only when their queue has changed
+ * or one of their reservations is due to expire
+ */
+public interface RoomCheckScheduler {
+    /**
+     * Requests check of given room's queue and reservations
+     * @param room Room to check
+     * @param checkTime Time (in milliseconds since epoch) the check should not be performed before
+     */
+    void scheduleCheck(Room room, long checkTime);
+}
@@ -35,7 +35,7 @@ public class Sector {
         rooms.put(key,room);
         infoFixed.getRooms().put(key, room.getInfoFixed());
         ++currentSize;
-        infoUpdate.getRooms().put(key, room.getInfoUpdate());
+        infoUpdate.addRoom(room.getInfoUpdate());
         infoUpdate.setActiveRoomsCount(infoUpdate.getActiveRoomsCount().get()+1);
     }
 
@@ -1,10 +1,16 @@
 package queue;
 
+import network_structures.Broadcast;
 import network_structures.NetworkMessage;
 import server.Guide;
 
 import java.util.ArrayList;
 
+/**
+ * Group visiting event, led by up to two guides.
+ * Group can hold tickets for rooms of different sectors, which are owned by different system threads,
+ * so all methods accessing its tickets, reservations or guides are synchronized.
+ */
 public class TourGroup {
 
     private final static int maxTickets = 3;
@@ -13,6 +19,10 @@ public class TourGroup {
     private final ArrayList<QueueTicket> tickets;
     private final ArrayList<Room.Reservation> reservations;
     private int penaltyLevel = 0;
+    /** Identifier of this group surviving server restarts (login of its guide), null if group is not recorded */
+    private final String id;
+    /** Journal recording changes of penalty level */
+    private volatile QueueJournal journal = QueueJournal.NONE;
 
     private Room currentRoom;
 
@@ -20,23 +30,59 @@ public class TourGroup {
     private final static int maxGuides = 2;
 
     public TourGroup() {
+        this(null);
+    }
+
+    /**
+     * @param id Identifier of this group surviving server restarts (login of its guide), null if group is not recorded
+     */
+    public TourGroup(String id) {
+        this.id = id;
         this.tickets = new ArrayList<>();
         this.reservations = new ArrayList<>();
         this.currentRoom = null;
         this.guides = new ArrayList<>();
     }
 
+    /**
+     * @return Identifier of this group surviving server restarts, null if group is not recorded
+     */
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * Sets journal to record changes of this group's penalty level in
+     * @param journal Journal to record changes in
+     */
+    public void setJournal(QueueJournal journal) {
+        if (journal != null)
+            this.journal = journal;
+    }
+
     /**
      * Increments current level of penalty induced for abandoning reservation for this group
      */
-    public void increasePenaltyLevel() {
-        if (penaltyLevel < maxPenaltyLevel)
+    public synchronized void increasePenaltyLevel() {
+        if (penaltyLevel < maxPenaltyLevel) {
             ++penaltyLevel;
+            journal.penaltyChanged(this, penaltyLevel);
+        }
     }
 
-    public void decreasePenaltyLevel() {
-        if (penaltyLevel > 0)
+    public synchronized void decreasePenaltyLevel() {
+        if (penaltyLevel > 0) {
             --penaltyLevel;
+            journal.penaltyChanged(this, penaltyLevel);
+        }
+    }
+
+    /**
+     * Restores penalty level recorded before server restart
+     * @param penaltyLevel Recorded penalty level
+     */
+    public synchronized void restorePenaltyLevel(int penaltyLevel) {
+        this.penaltyLevel = Math.max(0, Math.min(maxPenaltyLevel, penaltyLevel));
     }
 
     /**
@@ -50,7 +96,7 @@ public class TourGroup {
     /**
      * @return Array of Rooms for which this group has ticket
      */
-    public Room[] getTicketRooms() {
+    public synchronized Room[] getTicketRooms() {
         Room[] rooms = new Room[tickets.size()];
         for (int i = 0; i < rooms.length; ++i) {
             rooms[i] = tickets.get(i).getDestination();
@@ -58,7 +104,7 @@ public class TourGroup {
         return rooms;
     }
 
-    public QueueTicket getTicketForRoom(Room room) {
+    public synchronized QueueTicket getTicketForRoom(Room room) {
         for (QueueTicket ticket : tickets) {
             if (ticket.getDestination() == room) {
                 return ticket;
@@ -67,7 +113,7 @@ public class TourGroup {
         return null;
     }
 
-    public boolean removeTicket(QueueTicket ticket) {
+    public synchronized boolean removeTicket(QueueTicket ticket) {
         if (ticket != null) {
             boolean ticketIsValid = false;
             for (QueueTicket t : tickets)
@@ -82,9 +128,9 @@ public class TourGroup {
         return false;
     }
 
-    public int removeFromAllQueues() {
+    public synchronized int removeFromAllQueues() {
         int removedTickets = tickets.size();
-        for (QueueTicket t : tickets) {
+        for (QueueTicket t : new ArrayList<>(tickets)) {
             t.getDestination().removeGroupFromQueue(t.getOwner());
         }
         return removedTickets;
@@ -95,7 +141,7 @@ public class TourGroup {
      * @param guide Guide to add
      * @return true if guide has been added, false otherwise
      */
-    public boolean addGuide(Guide guide) {
+    public synchronized boolean addGuide(Guide guide) {
         if (guides.size() < maxGuides && guide != null) {
             try {
                 guides.add(guide);
@@ -108,7 +154,7 @@ public class TourGroup {
         return false;
     }
 
-    public boolean removeGuide(Guide guide) {
+    public synchronized boolean removeGuide(Guide guide) {
         try {
             return guides.remove(guide);
         }
@@ -118,20 +164,27 @@ public class TourGroup {
         return false;
     }
 
-    public void sendToAllGuides(NetworkMessage networkMessage) {
+    /**
+     * Sends message to all guides of this group; message is encoded once and shared by all guides
+     * @param networkMessage Message to send
+     */
+    public synchronized void sendToAllGuides(NetworkMessage networkMessage) {
+        NetworkMessage shared = (guides.size() > 1
+                ? new Broadcast(networkMessage).to(networkMessage.getCommunicationIdentifier())
+                : networkMessage);
         for (Guide g : guides)
-            g.addOutgoingMessage(networkMessage);
+            g.addOutgoingMessage(shared);
     }
 
-    protected boolean canAddReservation() {
+    protected synchronized boolean canAddReservation() {
         return reservations.size() < maxReservations;
     }
 
-    private boolean canAddTicket() {
+    private synchronized boolean canAddTicket() {
         return tickets.size() < maxTickets - getCurrentPenaltyLevel();
     }
 
-    public boolean hasTicketFor(Room room) {
+    public synchronized boolean hasTicketFor(Room room) {
         for (TourGroup.QueueTicket ticket : tickets) {
             if (ticket.destination == room)
                 return true;
@@ -139,17 +192,29 @@ public class TourGroup {
         return false;
     }
 
-    protected void addReservation(Room.Reservation reservation) {
+    /**
+     * Adds reservation only if this group may hold another one; check and addition are atomic, so groups queued
+     * in rooms of different sectors (checked by different system threads) never exceed their limit
+     * @param reservation Reservation to add
+     * @return True if reservation has been added
+     */
+    protected synchronized boolean addReservationIfAllowed(Room.Reservation reservation) {
+        if (reservation == null || !canAddReservation())
+            return false;
+        return reservations.add(reservation);
+    }
+
+    protected synchronized void addReservation(Room.Reservation reservation) {
         if (reservation != null)
             reservations.add(reservation);
     }
 
-    protected void removeReservation(Room.Reservation reservation) {
+    protected synchronized void removeReservation(Room.Reservation reservation) {
         if (reservation != null)
             reservations.remove(reservation);
     }
 
-    protected QueueTicket createTicket(Room destination) {
+    protected synchronized QueueTicket createTicket(Room destination) {
         if (destination != null) {
             QueueTicket ticket = new QueueTicket(this,destination);
             if (canAddTicket() && !hasTicketFor(destination) && tickets.add(ticket)) {
@@ -168,7 +233,7 @@ public class TourGroup {
         this.currentRoom = null;
     }
 
-    private enum GroupingResponses {
+    enum GroupingResponses {
         DECLINED(-1),
         ACCEPTED(1),
         PENDING(0),
@@ -203,11 +268,15 @@ public class TourGroup {
 
     //INNER CLASSES-------------------------------------------------------------------------------------------------
 
-    public class QueueTicket {
+    public class QueueTicket implements IndexedQueue.Entry {
         private final TourGroup owner;
         private final Room destination;
         private int timesAsked;
-        private GroupingResponses groupingResponse;
+        /** Slot of this ticket in destination's queue, -1 if ticket is not queued */
+        private int queueSlot = -1;
+        private GroupingResponses groupingResponse = GroupingResponses.UNAFFECTED;
+        /** Grouping round this ticket takes part in, null if none */
+        private GroupingRound groupingRound;
 
         //private int groupingResponse; // (-2) - BRAK UDZIALU, (-1) - NIE, (0) - OCZEKIWANIE, (1) - TAK
 
@@ -241,6 +310,16 @@ public class TourGroup {
             return this.destination;
         }
 
+        @Override
+        public int getQueueSlot() {
+            return queueSlot;
+        }
+
+        @Override
+        public void setQueueSlot(int slot) {
+            this.queueSlot = slot;
+        }
+
         protected void increaseTimesAsked() {
             ++timesAsked;
         }
@@ -257,6 +336,18 @@ public class TourGroup {
             groupingResponse = GroupingResponses.getValue(-2);
         }
 
+        protected void setGroupingResponse(GroupingResponses groupingResponse) {
+            this.groupingResponse = groupingResponse;
+        }
+
+        GroupingRound getGroupingRound() {
+            return groupingRound;
+        }
+
+        void setGroupingRound(GroupingRound groupingRound) {
+            this.groupingRound = groupingRound;
+        }
+
 //        public void respondAboutGrouping(int response) {
 //            groupingResponse = response;
 //            destination.queue.updateFullyGroupedStatus();
@@ -1,15 +1,12 @@
 package server;
 
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-
 /**
  * System administrator account class
  */
 public class Administrator extends Client{
 
-    public Administrator(ObjectOutputStream out, ObjectInputStream in) {
-        super(out, in);
+    public Administrator(MessageStream stream) {
+        super(stream);
     }
 
     @Override
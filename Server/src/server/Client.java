@@ -1,17 +1,22 @@
 package server;
 
-import com.mongodb.BasicDBObject;
+import network_structures.BinaryCodec;
+import network_structures.EventDetails;
+import network_structures.MessageCodec;
 import network_structures.NetworkMessage;
-import network_structures.SectorInfoFixed;
-import org.bson.Document;
-import queue.TourGroup;
 
 import java.io.EOFException;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.net.SocketTimeoutException;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
@@ -21,88 +26,353 @@ import java.util.concurrent.atomic.AtomicBoolean;
  */
 public abstract class Client {
 
-    /// TODO
-    protected ConcurrentLinkedQueue<NetworkMessage> outgoingMessages;
-    /** Stream for sending information to this specific client */
-    protected ObjectOutputStream out;
+    /** Capacity of outboxes of newly created clients */
+    private static volatile int outboxCapacity = Outbox.DEFAULT_CAPACITY;
+    /** Overflow policy of outboxes of newly created clients */
+    private static volatile Outbox.OverflowPolicy outboxOverflowPolicy = Outbox.OverflowPolicy.DROP_OLDEST_UPDATE;
+
+    /** Maximum time connection thread waits for user lookup at login, in milliseconds */
+    static final long LOGIN_TIMEOUT_MS = 10 * 1000;
+    /** Maximum number of traced requests of one client waiting for answers, further requests are not traced */
+    static final int MAX_TRACED_REQUESTS = 64;
+    /** Time after which traced request is not expected to be answered anymore, same as request timeout of clients */
+    static final long TRACED_REQUEST_TIMEOUT_NS = TimeUnit.SECONDS.toNanos(10);
+    /** Service looking up roles of users logging in */
+    private static volatile LoginService loginService = new LoginService(
+            (logins) -> Server.getStorage().findUsers(logins), LoginService.DEFAULT_THREADS, LoginService.DEFAULT_CACHE_TTL_MS);
+
+    private static final Log.Site LOGIN_FAILED = Log.site("Client.createSpecifiedClient", Log.Level.WARN);
+    private static final Log.Site LOOKUP_FAILED = Log.site("Client.findUserRole", Log.Level.WARN);
+
+    /** Messages waiting for sending to this client */
+    protected final Outbox outgoingMessages;
+    /** Stream for exchanging information with this specific client, null if client uses non-blocking transport */
+    protected MessageStream stream;
     /// TODO
     protected final AtomicBoolean outputThreadRunning = new AtomicBoolean(true);
-    /** Stream for receiving information from this specific client */
-    protected ObjectInputStream in;
+    /** Callback invoked whenever new outgoing message is available, used by non-blocking transport */
+    private volatile Runnable outputSignal = () -> {};
+    /** Hash of event details cached by client, sent at login; null if client has none */
+    private String cachedEventDetailsHash;
+    /** Spans of sampled requests whose answers have not been written yet, by communication identifier */
+    private final ConcurrentHashMap<Long, Tracer.Span> tracedRequests = new ConcurrentHashMap<>();
+
+    /**
+     * @param stream Stream for exchanging information with client, null if client uses non-blocking transport
+     */
+    public Client(MessageStream stream) {
+        this.outgoingMessages = new Outbox(outboxCapacity, outboxOverflowPolicy);
+        this.stream = stream;
+    }
 
     /// TODO
     public Client(ObjectOutputStream out, ObjectInputStream in) {
-        this.outgoingMessages = new ConcurrentLinkedQueue<>();
-        this.out = out;
-        this.in = in;
+        this(new ObjectMessageStream(out, in));
+    }
+
+    /**
+     * Sets outbox parameters for clients created from now on
+     * @param capacity Maximum number of messages waiting for sending to single client
+     * @param overflowPolicy Behaviour when message is added to full outbox
+     */
+    public static void configureOutboxes(int capacity, Outbox.OverflowPolicy overflowPolicy) {
+        outboxCapacity = capacity;
+        outboxOverflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * Replaces service looking up roles of users logging in; previous service is shut down
+     * @param service Service to use from now on
+     */
+    public static void configureLoginService(LoginService service) {
+        LoginService previous = loginService;
+        loginService = service;
+        if (previous != service)
+            previous.shutdown();
+    }
+
+    /**
+     * @return Service looking up roles of users logging in
+     */
+    public static LoginService getLoginService() {
+        return loginService;
     }
 
     public void stopOutputThread() {
         outputThreadRunning.set(false);
+        outgoingMessages.close();
     }
 
-    /// TODO
-    public static Client createSpecifiedClient(ObjectOutputStream out, ObjectInputStream in) throws SocketTimeoutException, EOFException {
+    /**
+     * @return True if this client could not keep up with outgoing messages and should be disconnected
+     */
+    public boolean isDisconnectRequested() {
+        return outgoingMessages.isOverflowed();
+    }
+
+    /**
+     * Sets callback invoked whenever new outgoing message is available
+     * @param outputSignal Callback to invoke
+     */
+    public void setOutputSignal(Runnable outputSignal) {
+        this.outputSignal = (outputSignal != null ? outputSignal : () -> {});
+    }
+
+    /**
+     * Reads message from not yet identified client and creates client of specified role if it was a valid login attempt.
+     * If client requested supported codec at login, created client communicates using that codec from now on.
+     * @param stream Stream connected with client
+     * @return Logged in client or null if client has not logged in
+     * @throws SocketTimeoutException When client has not sent anything for too long
+     * @throws EOFException When connection with client has been lost
+     */
+    public static Client createSpecifiedClient(MessageStream stream) throws SocketTimeoutException, EOFException {
         Client client = null;
         try {
-            NetworkMessage message = (NetworkMessage) in.readObject();
+            NetworkMessage message = stream.read();
+            String role = null;
+            MessageCodec codec = null;
             if ("login".equals(message.getCommand())) {
-                BasicDBObject userData = new BasicDBObject();
-                userData.put("login", message.getArgs()[0]);
-                userData.put("password", message.getArgs()[1]);
-                Document userFindResult = Server.getDatabase().getCollection("users").find(userData).first();
-                if (userFindResult != null) {
-                    switch (userFindResult.getString("role")) {
-                        case "G": {
-                            client = new Guide(out, in, new TourGroup());
-                        }
-                        break;
-                        case "P": {
-                            client = new Presenter(out, in);
-                        }
-                        break;
-                        case "M": {
-                            client = new Moderator(out, in);
-                        }
-                        break;
-                        case "A": {
-                            client = new Administrator(out, in);
-                        }
-                        break;
-                    }
-                    out.writeObject(new NetworkMessage("login", new String[]{"true"}, null, message.getCommunicationIdentifier()));
-                } else {
-                    out.writeObject(new NetworkMessage("login", new String[]{"false"}, null, message.getCommunicationIdentifier()));
-                }
-            } else if ("ping".equals(message.getCommand())) {
-                out.writeObject(new NetworkMessage("ping", null, null, message.getCommunicationIdentifier()));
+                role = findUserRole(message.getArgs());
+                codec = (role != null ? BinaryCodec.fromLoginArguments(message.getArgs()) : null);
+            }
+            NetworkMessage response = createUnauthenticatedResponse(message, role != null, codec);
+            if (response != null) {
+                stream.write(response);
+                stream.flush();
+            }
+            if (role != null) {
+                client = createClientForRole(role, message.getArgs()[0], (codec != null ? stream.switchCodec(codec) : stream));
+                if (client != null)
+                    client.setCachedEventDetailsHash(EventDetails.hashFromLoginArguments(message.getArgs()));
             }
         } catch (SocketTimeoutException | EOFException ex) {
             throw ex;
-        } catch (IOException ex) {
-            System.err.println("[Client-createSpecifiedClient()]: IOException - " + ex.getMessage());
-        } catch (ClassNotFoundException ex) {
-            System.err.println("[Client-createSpecifiedClient()]: ClassNotFoundException - " + ex.getMessage());
+        } catch (IOException | ClassNotFoundException ex) {
+            LOGIN_FAILED.log("Could not handle login message", null, ex);
         }
         return client;
     }
 
     /**
-     * Sends client initial event data, containing only information which doesn't change during the course of this event
+     * Looks up role of user with given credentials, waiting for {@link LoginService} at most {@link #LOGIN_TIMEOUT_MS}
+     * @param credentials Array of two strings - first containing login, second containing password
+     * @return Role of found user or null if credentials are invalid or lookup has not completed in time
+     */
+    static String findUserRole(String[] credentials) {
+        Future<String> role = loginService.findRole(credentials);
+        try {
+            return role.get(LOGIN_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException ex) {
+            role.cancel(false);
+            LOOKUP_FAILED.log("User lookup has not completed in time", credentials[0]);
+        } catch (ExecutionException ex) {
+            LOOKUP_FAILED.log("User lookup failed", credentials[0], ex.getCause());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        return null;
+    }
+
+    /**
+     * Creates client of specified role
+     * @param role Role of client ("G", "P", "M" or "A")
+     * @param login Login of client, identifying guide's group across server restarts
+     * @param stream Stream for exchanging information with client, null if client uses non-blocking transport
+     * @return Client of given role or null if role is not recognized
+     */
+    static Client createClientForRole(String role, String login, MessageStream stream) {
+        if (role == null)
+            return null;
+        switch (role) {
+            case "G":
+                return new Guide(stream, Server.createGroup(login));
+            case "P":
+                return new Presenter(stream);
+            case "M":
+                return new Moderator(stream);
+            case "A":
+                return new Administrator(stream);
+        }
+        return null;
+    }
+
+    /**
+     * Creates response for message received before client has logged in
+     * @param message Received message
+     * @param loggedIn True if message was a successful login attempt
+     * @param codec Codec negotiated at login, both sides switch to it right after this response; null to keep current one
+     * @return Response for client or null if message should not be responded to
+     */
+    static NetworkMessage createUnauthenticatedResponse(NetworkMessage message, boolean loggedIn, MessageCodec codec) {
+        switch (message.getCommand()) {
+            case "login":
+                return new NetworkMessage(
+                        "login",
+                        (codec != null ? new String[] { String.valueOf(loggedIn), codec.getName() } : new String[] { String.valueOf(loggedIn) }),
+                        null,
+                        message.getCommunicationIdentifier()
+                );
+            case "ping":
+                return new NetworkMessage("ping", null, null, message.getCommunicationIdentifier());
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * @param hash Hash of event details cached by client, sent at login; null if client has none
+     */
+    void setCachedEventDetailsHash(String hash) {
+        this.cachedEventDetailsHash = hash;
+    }
+
+    /**
+     * @return Hash of event details cached by client, null if client has none
+     */
+    String getCachedEventDetailsHash() {
+        return cachedEventDetailsHash;
+    }
+
+    /**
+     * Sends client initial event data, containing only information which doesn't change during the course of this event.
+     * Client whose cached copy is current receives only confirmation; others receive frame encoded at server startup,
+     * if one has been prepared for codec of this client's stream.
      * @throws IOException When socket is unable to send message
      */
     protected final void sendStartingData() throws IOException {
-        this.out.writeObject(new NetworkMessage("event_details", null, Server.getEventInfoFixed(), 0));
+        EventDetailsCache eventDetails = Server.getEventDetails();
+        if (eventDetails.isKnownBy(cachedEventDetailsHash)) {
+            this.stream.write(eventDetails.createUnchangedMessage());
+        } else {
+            ByteBuffer frame = eventDetails.getFrame(this.stream.getCodec());
+            if (frame != null)
+                this.stream.writeFrame(frame);
+            else
+                this.stream.write(eventDetails.getMessage());
+        }
+        this.stream.flush();
+    }
+
+    /**
+     * Sends message to client immediately, bypassing outbox; meant for use only when output thread is not running
+     * @param message Message to send
+     * @throws IOException When socket is unable to send message
+     */
+    protected final void sendDirectly(NetworkMessage message) throws IOException {
+        this.stream.write(message);
+        this.stream.flush();
+    }
+
+    public void removeFromSystem() {
+        for (Iterator<Tracer.Span> it = tracedRequests.values().iterator(); it.hasNext();) {
+            Tracer.finish(it.next());
+            it.remove();
+        }
+    }
+
+    /**
+     * @return Identifier of this client used in log entries and traces, null if client has none
+     */
+    protected String getLogIdentity() {
+        return null;
+    }
+
+    /**
+     * Starts span of received request if it is sampled, see {@link Tracer}. Spans of requests which have not been
+     * answered within {@link #TRACED_REQUEST_TIMEOUT_NS} are finished without answer first, so are spans
+     * of earlier requests with the same communication identifier.
+     * @param message Received request
+     * @return Span of request or null if request is not traced
+     */
+    protected final Tracer.Span traceRequest(NetworkMessage message) {
+        if (!Tracer.isEnabled())
+            return null;
+        Tracer.Span span = Tracer.sample(getLogIdentity(), message);
+        if (span == null)
+            return null;
+        if (!tracedRequests.isEmpty())
+            finishStaleSpans(span.getReceivedNanos() - TRACED_REQUEST_TIMEOUT_NS);
+        if (tracedRequests.size() >= MAX_TRACED_REQUESTS)
+            return null;
+        Tracer.Span previous = tracedRequests.put(span.getCommunicationIdentifier(), span);
+        if (previous != null)
+            Tracer.finish(previous);
+        return span;
+    }
+
+    /**
+     * Forgets spans which have been finished elsewhere (eg. when task of request has failed),
+     * finishes and forgets spans of requests received before given time
+     * @param receivedBeforeNanos Time, see {@link System#nanoTime()}
+     */
+    private void finishStaleSpans(long receivedBeforeNanos) {
+        for (Iterator<Tracer.Span> it = tracedRequests.values().iterator(); it.hasNext();) {
+            Tracer.Span span = it.next();
+            if (span.isFinished() || span.getReceivedNanos() - receivedBeforeNanos < 0) {
+                it.remove();
+                Tracer.finish(span);
+            }
+        }
     }
 
-    public void removeFromSystem() {}
+    /**
+     * Finishes span of request answered by given message, if it is traced.
+     * Called once message has been written to client (or queued for channel, in case of non-blocking transport).
+     * @param message Message written to client
+     */
+    final void markWritten(NetworkMessage message) {
+        if (tracedRequests.isEmpty())
+            return;
+        Tracer.Span span = tracedRequests.remove(message.getCommunicationIdentifier());
+        if (span != null) {
+            span.markResponded();
+            span.markFlushed();
+            Tracer.finish(span);
+        }
+    }
 
     /// TODO
     protected abstract void handlingInput() throws SocketTimeoutException, EOFException;
 
+    /**
+     * Handles single message received from this client
+     * @param message Received message
+     */
+    protected void handleMessage(NetworkMessage message) {}
+
     /// TODO
     public boolean addOutgoingMessage(NetworkMessage message) {
-        return outgoingMessages.offer(message);
+        if (!tracedRequests.isEmpty()) {
+            Tracer.Span span = tracedRequests.get(message.getCommunicationIdentifier());
+            if (span != null)
+                span.markResponded();
+        }
+        boolean added = outgoingMessages.offer(message);
+        outputSignal.run();
+        return added;
+    }
+
+    /**
+     * Takes next message waiting for sending to this client
+     * @return Next outgoing message or null if there are none
+     */
+    NetworkMessage pollOutgoingMessage() {
+        return outgoingMessages.poll();
+    }
+
+    /**
+     * @return Number of messages dropped from this client's outbox so far
+     */
+    public long getDroppedMessagesCount() {
+        return outgoingMessages.getDroppedMessages();
+    }
+
+    /**
+     * @return Number of messages waiting for sending to this client
+     */
+    public int getOutgoingMessagesCount() {
+        return outgoingMessages.size();
     }
 
     /// TODO
@@ -0,0 +1,66 @@
+package server;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Factories of threads running blocking client loops ({@link Server} client handlers and {@link Client} output loops).
+ * Virtual threads are looked up reflectively, since server is built for runtimes which may not provide them;
+ * when unavailable, platform threads are used instead.
+ */
+public final class ClientThreads {
+
+    private ClientThreads() {}
+
+    /**
+     * Creates factory of regular platform threads
+     * @param namePrefix Prefix of created threads' names
+     * @return Platform thread factory
+     */
+    public static ThreadFactory platform(String namePrefix) {
+        AtomicLong counter = new AtomicLong(0);
+        return (runnable) -> new Thread(runnable, namePrefix + counter.getAndIncrement());
+    }
+
+    /**
+     * Creates factory of virtual threads, falling back to platform threads if runtime does not support them
+     * @param namePrefix Prefix of created threads' names
+     * @return Virtual thread factory or platform thread factory if virtual threads are not supported
+     */
+    public static ThreadFactory virtual(String namePrefix) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, namePrefix, 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException ex) {
+            System.err.println("[ClientThreads]: Virtual threads are not supported by this runtime, using platform threads");
+            return platform(namePrefix);
+        }
+    }
+
+    /**
+     * Creates factory of threads of given kind
+     * @param kind Kind of threads to create
+     * @param namePrefix Prefix of created threads' names
+     * @return Thread factory
+     */
+    public static ThreadFactory of(ServerOptions.Threads kind, String namePrefix) {
+        return (kind == ServerOptions.Threads.VIRTUAL ? virtual(namePrefix) : platform(namePrefix));
+    }
+
+    /**
+     * Checks whether given thread is virtual
+     * @param thread Thread to check
+     * @return True if thread is virtual, false if it is a platform thread or runtime does not support virtual threads
+     */
+    public static boolean isVirtual(Thread thread) {
+        try {
+            Method isVirtual = Thread.class.getMethod("isVirtual");
+            return (Boolean) isVirtual.invoke(thread);
+        } catch (ReflectiveOperationException ex) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package server;
+
+import network_structures.BinaryCodec;
+import network_structures.EventDetails;
+import network_structures.EventInfoFixed;
+import network_structures.MessageCodec;
+import network_structures.MessageFrames;
+import network_structures.NetworkMessage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Event details ("event_details" message with {@link EventInfoFixed}) encoded once for every supported codec,
+ * so that logging in clients receive ready frames instead of serializing whole event layout per login.
+ * Frames may be kept in memory-mapped file instead of heap.
+ */
+public final class EventDetailsCache {
+
+    /** Codecs frames are prepared for */
+    private static final MessageCodec[] CODECS = new MessageCodec[] { MessageFrames.SERIALIZED_CODEC, BinaryCodec.INSTANCE };
+
+    /** Content hash of event details */
+    private final String hash;
+    /** Event details message, sent to clients using codec without prepared frame */
+    private final NetworkMessage message;
+    /** Read-only frames, by codec names */
+    private final Map<String, ByteBuffer> frames;
+
+    private EventDetailsCache(String hash, NetworkMessage message, Map<String, ByteBuffer> frames) {
+        this.hash = hash;
+        this.message = message;
+        this.frames = frames;
+    }
+
+    /**
+     * Encodes event details for every supported codec
+     * @param eventInfoFixed Event details to encode, must not change afterwards
+     * @param mappedFile File to store frames in and map into memory, null to keep frames on heap
+     * @return Cache of encoded event details
+     * @throws IOException When event details could not be encoded or file could not be written
+     */
+    public static EventDetailsCache create(EventInfoFixed eventInfoFixed, Path mappedFile) throws IOException {
+        String hash = hashOf(BinaryCodec.INSTANCE.encode(new NetworkMessage("event_details", null, eventInfoFixed, 0)));
+        NetworkMessage message = new NetworkMessage("event_details", new String[] { hash }, eventInfoFixed, 0);
+        byte[][] encoded = new byte[CODECS.length][];
+        for (int i = 0; i < CODECS.length; ++i)
+            encoded[i] = CODECS[i].encode(message);
+
+        HashMap<String, ByteBuffer> frames = new HashMap<>();
+        if (mappedFile == null) {
+            for (int i = 0; i < CODECS.length; ++i)
+                frames.put(CODECS[i].getName(), ByteBuffer.wrap(encoded[i]).asReadOnlyBuffer());
+            return new EventDetailsCache(hash, message, frames);
+        }
+        try (FileChannel channel = FileChannel.open(mappedFile,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (byte[] frame : encoded) {
+                ByteBuffer bytes = ByteBuffer.wrap(frame);
+                while (bytes.hasRemaining())
+                    channel.write(bytes);
+            }
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            int offset = 0;
+            for (int i = 0; i < CODECS.length; ++i) {
+                ByteBuffer frame = mapped.duplicate();
+                frame.position(offset).limit(offset + encoded[i].length);
+                frames.put(CODECS[i].getName(), frame.slice());
+                offset += encoded[i].length;
+            }
+        }
+        return new EventDetailsCache(hash, message, frames);
+    }
+
+    private static String hashOf(byte[] content) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(content);
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest)
+                hex.append(String.format("%02x", b));
+            return hex.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-256 is not available", ex);
+        }
+    }
+
+    /**
+     * @return Content hash of event details
+     */
+    public String getHash() {
+        return hash;
+    }
+
+    /**
+     * @return Event details message
+     */
+    public NetworkMessage getMessage() {
+        return message;
+    }
+
+    /**
+     * @param clientHash Hash of event details cached by client, null if client has none
+     * @return True if client's cached event details are current
+     */
+    public boolean isKnownBy(String clientHash) {
+        return hash.equals(clientHash);
+    }
+
+    /**
+     * @return Message confirming that client's cached event details are current
+     */
+    public NetworkMessage createUnchangedMessage() {
+        return new NetworkMessage("event_details", new String[] { hash, EventDetails.UNCHANGED }, null, 0);
+    }
+
+    /**
+     * @param codec Codec of connection
+     * @return Complete frame of event details message encoded by given codec, positioned at its start;
+     * null if frame for given codec has not been prepared
+     */
+    public ByteBuffer getFrame(MessageCodec codec) {
+        ByteBuffer frame = (codec != null ? frames.get(codec.getName()) : null);
+        return (frame != null ? frame.duplicate() : null);
+    }
+}
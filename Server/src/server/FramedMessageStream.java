@@ -0,0 +1,94 @@
+package server;
+
+import network_structures.MessageCodec;
+import network_structures.NetworkMessage;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Message stream exchanging length-prefixed frames encoded by given codec
+ */
+public class FramedMessageStream implements MessageStream {
+
+    /** Histograms of encoded frame sizes and encoding times, by codec name */
+    private static final ConcurrentHashMap<String, Metrics.Histogram[]> encodingMetrics = new ConcurrentHashMap<>();
+
+    private final DataOutputStream out;
+    private final DataInputStream in;
+    private final MessageCodec codec;
+
+    /**
+     * @param out Buffered output of connection
+     * @param in Input of connection
+     * @param codec Codec of frames
+     */
+    public FramedMessageStream(DataOutputStream out, DataInputStream in, MessageCodec codec) {
+        this.out = out;
+        this.in = in;
+        this.codec = codec;
+    }
+
+    @Override
+    public NetworkMessage read() throws IOException, ClassNotFoundException {
+        return codec.read(in);
+    }
+
+    @Override
+    public void write(NetworkMessage message) throws IOException {
+        out.write(encode(codec, message));
+    }
+
+    /**
+     * Encodes message into frame, recording frame size and encoding time in {@link Metrics}
+     * @param codec Codec to encode with
+     * @param message Message to encode
+     * @return Complete frame
+     * @throws IOException When message could not be encoded
+     */
+    public static byte[] encode(MessageCodec codec, NetworkMessage message) throws IOException {
+        long start = System.nanoTime();
+        byte[] frame = codec.encode(message);
+        Metrics.Histogram[] histograms = encodingMetrics.computeIfAbsent(codec.getName(), (name) -> new Metrics.Histogram[] {
+                Metrics.histogram("encode_bytes", "codec", name),
+                Metrics.histogram("encode_ns", "codec", name)
+        });
+        histograms[0].record(frame.length);
+        histograms[1].record(System.nanoTime() - start);
+        return frame;
+    }
+
+    @Override
+    public MessageCodec getCodec() {
+        return codec;
+    }
+
+    @Override
+    public void writeFrame(ByteBuffer frame) throws IOException {
+        ByteBuffer source = frame.duplicate();
+        byte[] chunk = new byte[Math.min(8 * 1024, source.remaining())];
+        while (source.hasRemaining()) {
+            int length = Math.min(chunk.length, source.remaining());
+            source.get(chunk, 0, length);
+            out.write(chunk, 0, length);
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+
+    @Override
+    public MessageStream switchCodec(MessageCodec codec) {
+        return new FramedMessageStream(out, in, codec);
+    }
+}
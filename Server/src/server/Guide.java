@@ -1,7 +1,9 @@
 package server;
 
+import network_structures.Broadcast;
 import network_structures.EventInfoUpdate;
 import network_structures.NetworkMessage;
+import queue.Room;
 import queue.TourGroup;
 
 import java.io.EOFException;
@@ -9,25 +11,42 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.function.Supplier;
 
 public class Guide extends Client {
+    /** Counters of commands received from guides, by command; unrecognized commands share one counter */
+    private static final ConcurrentHashMap<String, Metrics.Counter> receivedCommands = new ConcurrentHashMap<>();
+    private static final Metrics.Counter unrecognizedCommands = Metrics.counter("guide_commands_total", "command", "unrecognized");
+    /** Number of failed reads in a row after which stream is considered broken and guide is disconnected */
+    static final int MAX_CONSECUTIVE_READ_ERRORS = 16;
+    private static final Log.Site INPUT_FAILED = Log.site("Guide.handlingInput", Log.Level.WARN);
+    private static final Log.Site OUTPUT_FAILED = Log.site("Guide.handlingOutput", Log.Level.WARN);
+    private static final Log.Site SLOW_CLIENT = Log.site("Guide.handlingOutput", Log.Level.WARN);
+    private static final Log.Site REMOVED = Log.site("Guide.removeFromSystem", Log.Level.DEBUG);
+
     private final Consumer<Server.Task> enqueueTaskForServer;
     private final Function<String, Boolean> commandRecognitionFunction;
     private final Supplier<EventInfoUpdate> updateSupplier;
     private TourGroup group;
+    /** Communication identifier of subscription to event state changes, 0 if not subscribed */
+    private volatile long updateSubscription;
+    /** Communication identifier of subscription to positions in queues, 0 if not subscribed */
+    private volatile long ticketsSubscription;
+    /** Number of messages dropped from outbox when last change was pushed, see {@link #publishChanges} */
+    private long droppedMessagesAtLastPush;
 
     public Guide(
-            ObjectOutputStream out,
-            ObjectInputStream in,
+            MessageStream stream,
             TourGroup group,
             Consumer<Server.Task> enqueueTaskForServer,
             Function<String, Boolean> commandRecognitionFunction,
             Supplier<EventInfoUpdate> updateSupplier
     ) {
-        super(out, in);
+        super(stream);
         this.group = group;
         if (this.group != null)
             group.addGuide(this);
@@ -36,8 +55,23 @@ public class Guide extends Client {
         this.updateSupplier = updateSupplier;
     }
 
+    public Guide(
+            ObjectOutputStream out,
+            ObjectInputStream in,
+            TourGroup group,
+            Consumer<Server.Task> enqueueTaskForServer,
+            Function<String, Boolean> commandRecognitionFunction,
+            Supplier<EventInfoUpdate> updateSupplier
+    ) {
+        this(new ObjectMessageStream(out, in), group, enqueueTaskForServer, commandRecognitionFunction, updateSupplier);
+    }
+
+    public Guide(MessageStream stream, TourGroup group) {
+        this(stream, group, Server::enqueueTask, Server::isCommandRecognizedByServer, Server::getEventInfoUpdate);
+    }
+
     public Guide(ObjectOutputStream out, ObjectInputStream in, TourGroup group) {
-        this(out, in, group, Server::enqueueTask, Server::isCommandRecognizedByServer, Server::getEventInfoUpdate);
+        this(new ObjectMessageStream(out, in), group);
     }
 
     public Guide(ObjectOutputStream out, ObjectInputStream in) {
@@ -66,70 +100,239 @@ public class Guide extends Client {
 
     @Override
     protected void handlingInput() throws SocketTimeoutException, EOFException {
+        int consecutiveErrors = 0;
         while (true) {
             try {
-                NetworkMessage message = (NetworkMessage) in.readObject();
-                switch (message.getCommand()) {
-                    case "update": {
-                        addOutgoingMessage(new NetworkMessage("update", new String[]{"true"}, updateSupplier.get(), message.getCommunicationIdentifier()));
-                    } break;
-                    case "add_to_queue":// For these calls, following structure is expected: args[0] should be sector ObjectId, args[1] should be room ObjectId
-                    case "view_tickets":
-                    case "remove_from_queue": {
-                       enqueueTaskForServer.accept(new Server.Task(
-                                message.getCommand(),
-                                message.getArgs(),
-                                this.group,
-                                message.getCommunicationIdentifier(),
-                                this::addOutgoingMessage
-                        ));
-                    } break;
-                    default: {
-                        if (commandRecognitionFunction.apply(message.getCommand()))
-                            enqueueTaskForServer.accept(new Server.Task(
-                                    message.getCommand(),
-                                    message.getArgs(),
-                                    message.getData(),
-                                    message.getCommunicationIdentifier(),
-                                    this::addOutgoingMessage
-                            ));
-                        else
-                            addOutgoingMessage(new NetworkMessage("error", new String[] { "invalid_command" }, null, message.getCommunicationIdentifier()));
-                    } break;
-                }
+                handleMessage(stream.read());
+                consecutiveErrors = 0;
             } catch (SocketTimeoutException | EOFException ex) {
                 throw ex;
-            } catch (IOException ex) {
-                System.err.println("[Guide-handlingInput()]: IOException - " + ex.getMessage());
-            } catch (ClassNotFoundException ex) {
-                System.err.println("[Guide-handlingInput()]: ClassNotFoundException - " + ex.getMessage());
+            } catch (IOException | ClassNotFoundException ex) {
+                if (isDisconnectRequested())
+                    throw new EOFException("Client could not keep up with outgoing messages");
+                INPUT_FAILED.log("Could not read message", getLogIdentity(), ex);
+                if (++consecutiveErrors >= MAX_CONSECUTIVE_READ_ERRORS)
+                    throw new EOFException("Stream of client is broken");
             }
         }
     }
 
+    @Override
+    protected void handleMessage(NetworkMessage message) {
+        receivedCommandCounter(message.getCommand()).increment();
+        Tracer.Span span = traceRequest(message);
+        switch (message.getCommand()) {
+            case "update": {
+                addOutgoingMessage(new NetworkMessage("update", new String[]{"true"}, createUpdate(message.getArgs()), message.getCommunicationIdentifier()));
+            } break;
+            case "subscribe": {
+                subscribe(message);
+            } break;
+            case "unsubscribe": {
+                unsubscribe(message);
+            } break;
+            case "add_to_queue":// For these calls, following structure is expected: args[0] should be sector ObjectId, args[1] should be room ObjectId
+            case "view_tickets":
+            case "remove_from_queue":
+            case "grouping": {// args[2] should be "true" or "false", decision of group invited to grouping round
+                Server.Task task = new Server.Task(
+                        message.getCommand(),
+                        message.getArgs(),
+                        this.group,
+                        message.getCommunicationIdentifier(),
+                        this::addOutgoingMessage
+                );
+                task.setTrace(span);
+                enqueueTaskForServer.accept(task);
+            } break;
+            default: {
+                if (commandRecognitionFunction.apply(message.getCommand())) {
+                    Server.Task task = new Server.Task(
+                            message.getCommand(),
+                            message.getArgs(),
+                            message.getData(),
+                            message.getCommunicationIdentifier(),
+                            this::addOutgoingMessage
+                    );
+                    task.setTrace(span);
+                    enqueueTaskForServer.accept(task);
+                } else
+                    addOutgoingMessage(new NetworkMessage("error", new String[] { "invalid_command" }, null, message.getCommunicationIdentifier()));
+            } break;
+        }
+    }
+
+    /**
+     * @param command Received command
+     * @return Counter of given command, shared counter if command is not recognized (so that number of counters stays bounded)
+     */
+    private Metrics.Counter receivedCommandCounter(String command) {
+        if (command == null)
+            return unrecognizedCommands;
+        Metrics.Counter counter = receivedCommands.get(command);
+        if (counter != null)
+            return counter;
+        boolean recognized = "update".equals(command) || "subscribe".equals(command) || "unsubscribe".equals(command)
+                || commandRecognitionFunction.apply(command);
+        if (!recognized)
+            return unrecognizedCommands;
+        return receivedCommands.computeIfAbsent(command, (key) -> Metrics.counter("guide_commands_total", "command", key));
+    }
+
+    /**
+     * Creates answer to "update" request. Client may pass version of its copy in args[0],
+     * in which case only rooms changed since then are sent.
+     * @param args Arguments of request
+     * @return Changes since version given by client if it is known, snapshot of whole event state otherwise
+     */
+    private EventInfoUpdate createUpdate(String[] args) {
+        EventInfoUpdate current = updateSupplier.get();
+        if (args != null && args.length > 0) {
+            try {
+                EventInfoUpdate delta = current.createDelta(Long.parseLong(args[0]));
+                if (delta != null)
+                    return delta;
+            } catch (NumberFormatException ignored) { }
+        }
+        return current.snapshot();
+    }
+
+    /**
+     * Subscribes to changes of topic given in args[0], answering with current state of that topic.
+     * Following changes are pushed using communication identifier of this request.
+     * Topic "update" accepts version of client's copy in args[1], see {@link #createUpdate(String[])}.
+     * @param message Subscription request
+     */
+    private void subscribe(NetworkMessage message) {
+        String[] args = message.getArgs();
+        String topic = (args != null && args.length > 0 ? args[0] : "");
+        long communicationIdentifier = message.getCommunicationIdentifier();
+        switch (topic) {
+            case "update": {
+                synchronized (this) {
+                    droppedMessagesAtLastPush = outgoingMessages.getDroppedMessages();
+                }
+                updateSubscription = communicationIdentifier;
+                String[] versionArgs = (args.length > 1 ? new String[] { args[1] } : null);
+                addOutgoingMessage(new NetworkMessage("update", new String[]{"true"}, createUpdate(versionArgs), communicationIdentifier));
+            } break;
+            case "view_tickets": {
+                ticketsSubscription = communicationIdentifier;
+                enqueueTaskForServer.accept(new Server.Task("view_tickets", null, this.group, communicationIdentifier, this::addOutgoingMessage));
+            } break;
+            default: {
+                addOutgoingMessage(new NetworkMessage("error", new String[] { "invalid_topic" }, null, communicationIdentifier));
+            } break;
+        }
+    }
+
+    /**
+     * Cancels subscription of topic given in args[0]
+     * @param message Request to cancel subscription
+     */
+    private void unsubscribe(NetworkMessage message) {
+        String[] args = message.getArgs();
+        String topic = (args != null && args.length > 0 ? args[0] : "");
+        if ("update".equals(topic))
+            updateSubscription = 0;
+        else if ("view_tickets".equals(topic))
+            ticketsSubscription = 0;
+        addOutgoingMessage(new NetworkMessage("unsubscribe", new String[] { topic }, null, message.getCommunicationIdentifier()));
+    }
+
+    /**
+     * Pushes changes of event state to this guide, according to its subscriptions.
+     * If any message has been dropped from outbox since last push, snapshot of whole state is sent instead of given delta,
+     * since dropped message could have been an earlier delta.
+     * Positions in queues are recomputed by main server thread, only if one of changed rooms holds group's ticket.
+     * @param update "update" message with changes since last push, shared by all subscribers
+     * @param changedRoomIds Ids of rooms contained in delta
+     * @return True if update has been pushed or positions in queues have been scheduled for checking
+     */
+    boolean publishChanges(Broadcast update, String[] changedRoomIds) {
+        boolean published = false;
+        long updateIdentifier = updateSubscription;
+        if (updateIdentifier != 0) {
+            NetworkMessage message = update.to(updateIdentifier);
+            synchronized (this) {
+                long droppedMessages = outgoingMessages.getDroppedMessages();
+                if (droppedMessages != droppedMessagesAtLastPush) {
+                    droppedMessagesAtLastPush = droppedMessages;
+                    message = new NetworkMessage("update", new String[]{"true"}, updateSupplier.get().snapshot(), updateIdentifier);
+                }
+            }
+            addOutgoingMessage(message);
+            published = true;
+        }
+        long ticketsIdentifier = ticketsSubscription;
+        if (ticketsIdentifier != 0 && this.group != null) {
+            enqueueTaskForServer.accept(new Server.Task("tickets_changed", changedRoomIds, this.group, ticketsIdentifier, this::addOutgoingMessage));
+            published = true;
+        }
+        return published;
+    }
+
     @Override
     protected void handlingOutput() {
+        ArrayList<NetworkMessage> batch = new ArrayList<>();
         while (outputThreadRunning.get() || !outgoingMessages.isEmpty()) {
-            NetworkMessage message = outgoingMessages.poll();
             try {
-                if (message != null) {
-                    if ("update".equals(message.getCommand())) {
-                        out.reset();
-                    }
-                    out.writeObject(message);
+                if (outgoingMessages.takeAll(batch) == 0)
+                    break;
+            } catch (InterruptedException ex) {
+                break;
+            }
+            try {
+                for (NetworkMessage message : batch) {
+                    stream.write(message);
                 }
+                stream.flush();
+                for (NetworkMessage message : batch) {
+                    markWritten(message);
+                }
+            } catch (IOException ex) {
+                OUTPUT_FAILED.log("Could not write messages", getLogIdentity(), ex);
+            }
+            batch.clear();
+        }
+        if (isDisconnectRequested()) {
+            SLOW_CLIENT.log("Client could not keep up with outgoing messages, disconnecting", getLogIdentity());
+            try {
+                stream.close();
             } catch (IOException ex) {
-                System.err.println("[Guide-handlingOutput()]: IOException - " + ex.getMessage());
+                OUTPUT_FAILED.log("Could not close stream", getLogIdentity(), ex);
             }
         }
     }
 
+    /**
+     * @return Identifier of group of this guide, null if guide has no group
+     */
+    @Override
+    protected String getLogIdentity() {
+        TourGroup group = this.group;
+        return (group != null ? group.getId() : null);
+    }
+
+    /**
+     * Removes this guide from system; group of this guide is removed from all queues by system threads owning them
+     */
     @Override
     public void removeFromSystem() {
         super.removeFromSystem();
-        if (group != null)
-            group.removeGuide(this);
-        int queuesRemovedFrom = group.removeFromAllQueues();
-        System.out.println("Guide removed from " + queuesRemovedFrom + " queues");
+        if (group == null)
+            return;
+        group.removeGuide(this);
+        Room[] rooms = group.getTicketRooms();
+        for (Room room : rooms) {
+            enqueueTaskForServer.accept(new Server.Task(
+                    "remove_from_queue",
+                    new String[] { room.getInfoFixed().getSectorId().toString(), room.getInfoFixed().getId().toString() },
+                    this.group,
+                    0,
+                    (message) -> {}
+            ));
+        }
+        REMOVED.log("Guide removed from queues", getLogIdentity());
     }
 }
@@ -0,0 +1,138 @@
+package server;
+
+import org.bson.BsonBinaryReader;
+import org.bson.Document;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.DocumentCodec;
+import org.bson.types.ObjectId;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Storage held entirely in memory, read-only after creation. Usually loaded from database dump
+ * (directory of <b>&lt;collection&gt;.bson</b> files as written by mongodump, eg. Database/guideDB),
+ * so server can be started quickly and reproducibly without database.
+ */
+public class InMemoryStorage implements Storage {
+    private final List<VenueLoader.SectorRecord> sectors;
+    private final Map<String, LoginService.UserRecord> users;
+    private final Long eventStart;
+
+    /**
+     * @param sectors Venue layout
+     * @param users Users by login
+     * @param eventStart Time event starts at, in milliseconds since epoch; null if not set
+     */
+    public InMemoryStorage(List<VenueLoader.SectorRecord> sectors, Map<String, LoginService.UserRecord> users, Long eventStart) {
+        this.sectors = Collections.unmodifiableList(new ArrayList<>(sectors));
+        this.users = Collections.unmodifiableMap(new HashMap<>(users));
+        this.eventStart = eventStart;
+    }
+
+    /**
+     * Loads storage from database dump. Collections "sectors", "users" and "serverVariables" are read,
+     * as well as "sector&lt;id&gt;" collection of every sector; missing collections are treated as empty.
+     * @param directory Directory containing dump of database
+     * @return Storage holding contents of dump
+     * @throws IOException When dump could not be read or is malformed
+     */
+    public static InMemoryStorage loadDump(Path directory) throws IOException {
+        ArrayList<VenueLoader.SectorRecord> sectors = new ArrayList<>();
+        for (Document sector : readCollection(directory, "sectors")) {
+            ArrayList<VenueLoader.RoomRecord> rooms = new ArrayList<>();
+            for (Document room : readCollection(directory, "sector" + sector.getObjectId("_id").toString())) {
+                rooms.add(new VenueLoader.RoomRecord(
+                        room.getObjectId("_id"),
+                        room.getString("name"),
+                        room.getString("location"),
+                        room.getString("description")
+                ));
+            }
+            sectors.add(new VenueLoader.SectorRecord(
+                    sector.getObjectId("_id"),
+                    sector.getString("name"),
+                    sector.getString("address"),
+                    sector.getString("description"),
+                    rooms
+            ));
+        }
+
+        HashMap<String, LoginService.UserRecord> users = new HashMap<>();
+        for (Document user : readCollection(directory, "users"))
+            users.put(user.getString("login"), new LoginService.UserRecord(user.getString("password"), user.getString("role")));
+
+        Long eventStart = null;
+        List<Document> serverVariables = readCollection(directory, "serverVariables");
+        if (!serverVariables.isEmpty()) {
+            Date serverOpenDate = serverVariables.get(0).getDate("serverOpenDate");
+            eventStart = (serverOpenDate != null ? serverOpenDate.getTime() : null);
+        }
+        return new InMemoryStorage(sectors, users, eventStart);
+    }
+
+    /**
+     * Reads all documents of collection dump, which is sequence of BSON documents
+     * @param directory Directory containing dump of database
+     * @param collection Name of collection
+     * @return Documents in order of dump, empty if collection has not been dumped
+     * @throws IOException When dump could not be read or contains malformed document
+     */
+    static List<Document> readCollection(Path directory, String collection) throws IOException {
+        Path file = directory.resolve(collection + ".bson");
+        ArrayList<Document> documents = new ArrayList<>();
+        if (!Files.exists(file))
+            return documents;
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file)).order(ByteOrder.LITTLE_ENDIAN);
+        DocumentCodec codec = new DocumentCodec();
+        while (buffer.hasRemaining()) {
+            int length = (buffer.remaining() >= 4 ? buffer.getInt(buffer.position()) : -1);
+            if (length < 5 || length > buffer.remaining())
+                throw new StreamCorruptedException("Malformed document in " + file + " at offset " + buffer.position());
+            ByteBuffer document = buffer.slice();
+            document.limit(length);
+            try (BsonBinaryReader reader = new BsonBinaryReader(document)) {
+                documents.add(codec.decode(reader, DecoderContext.builder().build()));
+            }
+            buffer.position(buffer.position() + length);
+        }
+        return documents;
+    }
+
+    @Override
+    public List<VenueLoader.SectorRecord> loadVenue(int threads) {
+        return sectors;
+    }
+
+    @Override
+    public Map<ObjectId, Integer> countVenueRooms() {
+        return VenueLoader.countRooms(sectors);
+    }
+
+    @Override
+    public Map<String, LoginService.UserRecord> findUsers(Collection<String> logins) {
+        Map<String, LoginService.UserRecord> found = new HashMap<>();
+        for (String login : logins) {
+            LoginService.UserRecord user = users.get(login);
+            if (user != null)
+                found.put(login, user);
+        }
+        return found;
+    }
+
+    @Override
+    public Long getEventStart() {
+        return eventStart;
+    }
+}
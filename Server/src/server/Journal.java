@@ -0,0 +1,492 @@
+package server;
+
+import org.bson.types.ObjectId;
+import queue.QueueJournal;
+import queue.Room;
+import queue.TourGroup;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of queue and reservation changes, replayed at startup to restore state lost in crash.
+ * Changes are only enqueued by system threads; single journal thread writes everything enqueued meanwhile and
+ * syncs it to disk once per batch (group commit), so durability does not delay responses to clients.
+ * Changes enqueued but not yet synced when server crashes are lost.
+ * Journal thread also keeps compacted state of everything written, periodically stored as snapshot,
+ * after which journal file starts over.
+ * If writing fails, journal thread stops and journal is disabled: further changes are ignored instead of
+ * piling up in memory, see {@link #isDisabled()}.
+ */
+public class Journal implements QueueJournal, Runnable {
+
+    /** Number of records written after which state is compacted into snapshot */
+    public static final int DEFAULT_COMPACTION_RECORDS = 10_000;
+
+    private static final Log.Site WRITE_FAILED = Log.site("Journal.run", Log.Level.ERROR);
+    private static final String JOURNAL_FILE = "queues.journal";
+    private static final String SNAPSHOT_FILE = "queues.snapshot";
+    private static final int SNAPSHOT_MAGIC = 0x51554555;
+    private static final int SNAPSHOT_VERSION = 1;
+
+    private static final byte TICKET_ADDED = 1;
+    private static final byte TICKET_REMOVED = 2;
+    private static final byte RESERVATION_CREATED = 3;
+    private static final byte RESERVATION_REMOVED = 4;
+    private static final byte PENALTY_CHANGED = 5;
+
+    /** Placeholder of room identifiers in records concerning only group */
+    private static final ObjectId NO_ID = new ObjectId(new byte[12]);
+    /** Marker enqueued to stop journal thread */
+    private static final Record STOP = new Record((byte) 0, NO_ID, NO_ID, "", 0);
+
+    private final Path directory;
+    private final int compactionRecords;
+    /** Changes waiting for journal thread */
+    private final LinkedBlockingQueue<Record> pendingRecords;
+    /** State after all written records, owned by journal thread */
+    private final State state;
+    private FileChannel channel;
+    private int recordsSinceCompaction;
+
+    private volatile long syncCount;
+    private volatile long writtenRecords;
+    /** Set once journal thread has exited, changes are not enqueued anymore */
+    private volatile boolean disabled;
+
+    /**
+     * Opens journal in given directory, restoring state stored there by previous run.
+     * Restored state is immediately compacted into new snapshot and journal file starts over.
+     * @param directory Directory of journal and snapshot files, created if missing
+     * @param compactionRecords Number of records written after which state is compacted into snapshot
+     * @throws IOException When directory could not be created or written
+     */
+    public Journal(Path directory, int compactionRecords) throws IOException {
+        this.directory = directory;
+        this.compactionRecords = Math.max(1, compactionRecords);
+        this.pendingRecords = new LinkedBlockingQueue<>();
+        Files.createDirectories(directory);
+        this.state = recover(directory);
+        compact();
+    }
+
+    /**
+     * @return State restored at opening, updated by journal thread afterwards
+     */
+    public State getRecoveredState() {
+        return state;
+    }
+
+    /**
+     * @return Number of disk syncs performed, each covering whole batch of records
+     */
+    public long getSyncCount() {
+        return syncCount;
+    }
+
+    /**
+     * @return Number of records written since opening
+     */
+    public long getWrittenRecords() {
+        return writtenRecords;
+    }
+
+    /**
+     * @return True if journal thread has exited (after failure or {@link #stop()}), so changes are no longer recorded
+     */
+    public boolean isDisabled() {
+        return disabled;
+    }
+
+    /**
+     * @return Number of records waiting for journal thread
+     */
+    public int getPendingRecords() {
+        return pendingRecords.size();
+    }
+
+    @Override
+    public void ticketAdded(Room room, TourGroup group) {
+        append(TICKET_ADDED, room, group, 0);
+    }
+
+    @Override
+    public void ticketRemoved(Room room, TourGroup group) {
+        append(TICKET_REMOVED, room, group, 0);
+    }
+
+    @Override
+    public void reservationCreated(Room room, TourGroup group, long expirationTime) {
+        append(RESERVATION_CREATED, room, group, expirationTime);
+    }
+
+    @Override
+    public void reservationRemoved(Room room, TourGroup group) {
+        append(RESERVATION_REMOVED, room, group, 0);
+    }
+
+    @Override
+    public void penaltyChanged(TourGroup group, int penaltyLevel) {
+        append(PENALTY_CHANGED, null, group, penaltyLevel);
+    }
+
+    private void append(byte type, Room room, TourGroup group, long value) {
+        if (disabled || group == null || group.getId() == null)
+            return;
+        pendingRecords.offer(new Record(
+                type,
+                (room != null ? room.getInfoFixed().getSectorId() : NO_ID),
+                (room != null ? room.getInfoFixed().getId() : NO_ID),
+                group.getId(),
+                value
+        ));
+    }
+
+    /**
+     * Stops journal thread once all records enqueued so far are written.
+     * Thread is not interrupted, since interrupting file I/O closes the journal file.
+     */
+    public void stop() {
+        pendingRecords.offer(STOP);
+    }
+
+    /**
+     * Journal thread loop, writing and syncing every batch of enqueued records
+     */
+    @Override
+    public void run() {
+        ArrayList<Record> batch = new ArrayList<>();
+        boolean stopping = false;
+        try {
+            while (!stopping) {
+                try {
+                    batch.add(pendingRecords.take());
+                } catch (InterruptedException ex) {
+                    break;
+                }
+                pendingRecords.drainTo(batch);
+                int stopIndex = batch.indexOf(STOP);
+                if (stopIndex >= 0) {
+                    batch.subList(stopIndex, batch.size()).clear();
+                    stopping = true;
+                }
+                if (!batch.isEmpty())
+                    write(batch);
+                batch.clear();
+            }
+        } catch (IOException ex) {
+            WRITE_FAILED.log("Could not write journal, queue changes are no longer recorded", null, ex);
+        } finally {
+            disabled = true;
+            pendingRecords.clear();
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                WRITE_FAILED.log("Could not close journal", null, ex);
+            }
+        }
+    }
+
+    /**
+     * Writes batch of records with single sync, compacting state once enough records have been written
+     */
+    void write(ArrayList<Record> batch) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(batch.size() * 64);
+        DataOutputStream out = new DataOutputStream(buffer);
+        for (Record record : batch) {
+            record.sequence = state.lastSequence + 1;
+            writeRecord(out, record);
+            state.apply(record);
+        }
+        ByteBuffer bytes = ByteBuffer.wrap(buffer.toByteArray());
+        while (bytes.hasRemaining())
+            channel.write(bytes);
+        channel.force(false);
+        ++syncCount;
+        writtenRecords += batch.size();
+        recordsSinceCompaction += batch.size();
+        if (recordsSinceCompaction >= compactionRecords)
+            compact();
+    }
+
+    /**
+     * Stores current state as snapshot and starts journal file over.
+     * Snapshot contains sequence number of last record it covers, so records left in journal file by crash
+     * between storing snapshot and truncating journal are skipped at recovery.
+     */
+    private void compact() throws IOException {
+        Path snapshot = directory.resolve(SNAPSHOT_FILE);
+        Path temporary = directory.resolve(SNAPSHOT_FILE + ".tmp");
+        try (FileChannel snapshotChannel = FileChannel.open(temporary,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            state.writeTo(new DataOutputStream(buffer));
+            ByteBuffer bytes = ByteBuffer.wrap(buffer.toByteArray());
+            while (bytes.hasRemaining())
+                snapshotChannel.write(bytes);
+            snapshotChannel.force(true);
+        }
+        Files.move(temporary, snapshot, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        if (channel != null)
+            channel.close();
+        channel = FileChannel.open(directory.resolve(JOURNAL_FILE),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        channel.force(true);
+        recordsSinceCompaction = 0;
+    }
+
+    /**
+     * Restores state from snapshot and journal file in given directory.
+     * Journal is read up to first incomplete or corrupted record, which is what crash during write leaves behind.
+     * @param directory Directory of journal and snapshot files
+     * @return Restored state, empty if directory contains neither file
+     * @throws IOException When snapshot exists but could not be read
+     */
+    static State recover(Path directory) throws IOException {
+        State state = new State();
+        Path snapshot = directory.resolve(SNAPSHOT_FILE);
+        if (Files.exists(snapshot)) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshot)))) {
+                state.readFrom(in);
+            }
+        }
+        Path journal = directory.resolve(JOURNAL_FILE);
+        if (Files.exists(journal)) {
+            int replayed = 0;
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(journal)))) {
+                Record record;
+                while ((record = readRecord(in)) != null) {
+                    if (record.sequence > state.lastSequence) {
+                        state.apply(record);
+                        ++replayed;
+                    }
+                }
+            }
+            if (replayed > 0)
+                System.out.println("Replayed " + replayed + " queue journal records");
+        }
+        return state;
+    }
+
+    private static void writeRecord(DataOutputStream out, Record record) throws IOException {
+        ByteArrayOutputStream payloadBuffer = new ByteArrayOutputStream(64);
+        DataOutputStream payload = new DataOutputStream(payloadBuffer);
+        payload.writeLong(record.sequence);
+        payload.writeByte(record.type);
+        payload.write(record.sectorId.toByteArray());
+        payload.write(record.roomId.toByteArray());
+        payload.writeUTF(record.groupId);
+        payload.writeLong(record.value);
+        byte[] bytes = payloadBuffer.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+        out.writeInt(bytes.length);
+        out.writeInt((int) crc.getValue());
+        out.write(bytes);
+    }
+
+    /**
+     * @return Next record or null if journal ends or next record is incomplete or corrupted
+     */
+    private static Record readRecord(DataInputStream in) throws IOException {
+        try {
+            int length = in.readInt();
+            int checksum = in.readInt();
+            if (length <= 0 || length > 64 * 1024)
+                return null;
+            byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            CRC32 crc = new CRC32();
+            crc.update(bytes, 0, bytes.length);
+            if ((int) crc.getValue() != checksum)
+                return null;
+            DataInputStream payload = new DataInputStream(new ByteArrayInputStream(bytes));
+            long sequence = payload.readLong();
+            byte type = payload.readByte();
+            ObjectId sectorId = readObjectId(payload);
+            ObjectId roomId = readObjectId(payload);
+            Record record = new Record(type, sectorId, roomId, payload.readUTF(), payload.readLong());
+            record.sequence = sequence;
+            return record;
+        } catch (EOFException ex) {
+            return null;
+        }
+    }
+
+    private static ObjectId readObjectId(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[12];
+        in.readFully(bytes);
+        return new ObjectId(bytes);
+    }
+
+    /**
+     * Single change of queue or reservation state
+     */
+    static class Record {
+        private final byte type;
+        private final ObjectId sectorId;
+        private final ObjectId roomId;
+        private final String groupId;
+        /** Expiration time of created reservation or new penalty level, 0 for other records */
+        private final long value;
+        /** Sequence number, assigned by journal thread */
+        private long sequence;
+
+        Record(byte type, ObjectId sectorId, ObjectId roomId, String groupId, long value) {
+            this.type = type;
+            this.sectorId = sectorId;
+            this.roomId = roomId;
+            this.groupId = groupId;
+            this.value = value;
+        }
+    }
+
+    /**
+     * Queue and reservation state of one room
+     */
+    public static class RoomState {
+        private final ObjectId sectorId;
+        /** Identifiers of queued groups, in queue order */
+        private final LinkedHashSet<String> queue;
+        /** Expiration times of reservations, by identifiers of groups holding them */
+        private final LinkedHashMap<String, Long> reservations;
+
+        RoomState(ObjectId sectorId) {
+            this.sectorId = sectorId;
+            this.queue = new LinkedHashSet<>();
+            this.reservations = new LinkedHashMap<>();
+        }
+
+        public ObjectId getSectorId() { return sectorId; }
+
+        public Iterable<String> getQueue() { return queue; }
+
+        public Map<String, Long> getReservations() { return reservations; }
+    }
+
+    /**
+     * Compacted queue and reservation state of whole event, as recorded by journal
+     */
+    public static class State {
+        private final LinkedHashMap<ObjectId, RoomState> rooms;
+        private final HashMap<String, Integer> penaltyLevels;
+        /** Sequence number of last applied record */
+        private long lastSequence;
+
+        State() {
+            this.rooms = new LinkedHashMap<>();
+            this.penaltyLevels = new HashMap<>();
+        }
+
+        /**
+         * @return States of rooms with queued groups or reservations, by room identifiers
+         */
+        public Map<ObjectId, RoomState> getRooms() {
+            return rooms;
+        }
+
+        /**
+         * @return Penalty levels of groups with non-zero penalty, by group identifiers
+         */
+        public Map<String, Integer> getPenaltyLevels() {
+            return penaltyLevels;
+        }
+
+        void apply(Record record) {
+            lastSequence = record.sequence;
+            if (record.type == PENALTY_CHANGED) {
+                if (record.value > 0)
+                    penaltyLevels.put(record.groupId, (int) record.value);
+                else
+                    penaltyLevels.remove(record.groupId);
+                return;
+            }
+            RoomState room = rooms.computeIfAbsent(record.roomId, (id) -> new RoomState(record.sectorId));
+            switch (record.type) {
+                case TICKET_ADDED: {
+                    room.queue.add(record.groupId);
+                } break;
+                case TICKET_REMOVED: {
+                    room.queue.remove(record.groupId);
+                } break;
+                case RESERVATION_CREATED: {
+                    room.queue.remove(record.groupId);
+                    room.reservations.put(record.groupId, record.value);
+                } break;
+                case RESERVATION_REMOVED: {
+                    room.reservations.remove(record.groupId);
+                } break;
+            }
+            if (room.queue.isEmpty() && room.reservations.isEmpty())
+                rooms.remove(record.roomId);
+        }
+
+        void writeTo(DataOutputStream out) throws IOException {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(SNAPSHOT_VERSION);
+            out.writeLong(lastSequence);
+            out.writeInt(rooms.size());
+            for (Map.Entry<ObjectId, RoomState> entry : rooms.entrySet()) {
+                RoomState room = entry.getValue();
+                out.write(room.sectorId.toByteArray());
+                out.write(entry.getKey().toByteArray());
+                out.writeInt(room.queue.size());
+                for (String groupId : room.queue)
+                    out.writeUTF(groupId);
+                out.writeInt(room.reservations.size());
+                for (Map.Entry<String, Long> reservation : room.reservations.entrySet()) {
+                    out.writeUTF(reservation.getKey());
+                    out.writeLong(reservation.getValue());
+                }
+            }
+            out.writeInt(penaltyLevels.size());
+            for (Map.Entry<String, Integer> penalty : penaltyLevels.entrySet()) {
+                out.writeUTF(penalty.getKey());
+                out.writeInt(penalty.getValue());
+            }
+            out.flush();
+        }
+
+        void readFrom(DataInputStream in) throws IOException {
+            if (in.readInt() != SNAPSHOT_MAGIC)
+                throw new StreamCorruptedException("Not a queue snapshot");
+            int version = in.readInt();
+            if (version != SNAPSHOT_VERSION)
+                throw new StreamCorruptedException("Unsupported snapshot version: " + version);
+            lastSequence = in.readLong();
+            int roomCount = in.readInt();
+            for (int i = 0; i < roomCount; ++i) {
+                RoomState room = new RoomState(readObjectId(in));
+                rooms.put(readObjectId(in), room);
+                int queueLength = in.readInt();
+                for (int j = 0; j < queueLength; ++j)
+                    room.queue.add(in.readUTF());
+                int reservationCount = in.readInt();
+                for (int j = 0; j < reservationCount; ++j)
+                    room.reservations.put(in.readUTF(), in.readLong());
+            }
+            int penaltyCount = in.readInt();
+            for (int i = 0; i < penaltyCount; ++i)
+                penaltyLevels.put(in.readUTF(), in.readInt());
+        }
+    }
+}
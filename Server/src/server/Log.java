@@ -0,0 +1,340 @@
+package server;
+
+import java.io.PrintStream;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous structured logger for paths where printing to console would block system threads.
+ * Every call site owns one {@link Site}, created once and kept in static field. Logging through site copies
+ * references into preallocated slot of ring buffer and returns; lines are formatted and written by single
+ * daemon thread in form of <b>time level site="..." msg="..." key=value ...</b>.
+ * <ul>
+ *     <li>Disabled level costs one comparison and allocates nothing, see {@link #setLevel(Level)}</li>
+ *     <li>Every site emits at most given number of entries per second, the rest is counted
+ *     and reported as <b>suppressed</b> field of next emitted entry</li>
+ *     <li>When ring buffer is full, entries are dropped and counted instead of waiting for writer</li>
+ * </ul>
+ * Fields (client, command, communication identifier, error) are rendered by writer thread, so callers
+ * should pass objects as they are instead of building messages out of them.
+ */
+public final class Log {
+
+    /**
+     * Severity of entry; entries of lower severity than {@link #getLevel()} are ignored
+     */
+    public enum Level {
+        DEBUG,
+        INFO,
+        WARN,
+        ERROR
+    }
+
+    /** Default number of entries emitted by every site per second */
+    public static final int DEFAULT_RATE_PER_SECOND = 20;
+    /** Number of slots of ring buffer, power of two */
+    static final int CAPACITY = 1 << 13;
+    /** Time writer sleeps for when there is nothing to write, in nanoseconds */
+    private static final long WRITER_PARK_NS = TimeUnit.MILLISECONDS.toNanos(5);
+    /** Communication identifier of entries not related to any message */
+    private static final long NO_IDENTIFIER = Long.MIN_VALUE;
+
+    /**
+     * Single logging call site with its own level and rate limit
+     */
+    public static final class Site {
+        private final String name;
+        private final Level level;
+        private final int ratePerSecond;
+        /** Current second (high bits) and number of entries emitted in it (low 32 bits) */
+        private final AtomicLong window = new AtomicLong();
+        private final AtomicLong suppressed = new AtomicLong();
+
+        private Site(String name, Level level, int ratePerSecond) {
+            this.name = name;
+            this.level = level;
+            this.ratePerSecond = ratePerSecond;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public Level getLevel() {
+            return level;
+        }
+
+        /**
+         * @return True if entries of this site are not ignored because of their level
+         */
+        public boolean isEnabled() {
+            return level.ordinal() >= threshold.ordinal();
+        }
+
+        /**
+         * @return Number of entries suppressed by rate limit and not reported yet
+         */
+        public long getSuppressedCount() {
+            return suppressed.get();
+        }
+
+        public void log(String message) {
+            log(message, null, null, NO_IDENTIFIER, null);
+        }
+
+        public void log(String message, Object client) {
+            log(message, client, null, NO_IDENTIFIER, null);
+        }
+
+        public void log(String message, Object client, Throwable error) {
+            log(message, client, null, NO_IDENTIFIER, error);
+        }
+
+        /**
+         * Logs entry if level of this site is enabled and its rate limit has not been reached in current second
+         * @param message Constant message describing what happened
+         * @param client Client or connection entry concerns, rendered with {@link Object#toString()}, may be null
+         * @param command Command of message entry concerns, may be null
+         * @param communicationIdentifier Communication identifier of message entry concerns
+         * @param error Error entry concerns, may be null
+         */
+        public void log(String message, Object client, String command, long communicationIdentifier, Throwable error) {
+            if (!isEnabled())
+                return;
+            if (!tryAcquire()) {
+                suppressed.incrementAndGet();
+                suppressedTotal.incrementAndGet();
+                return;
+            }
+            publish(this, message, client, command, communicationIdentifier, error, suppressed.getAndSet(0));
+        }
+
+        /**
+         * @return True if another entry may be emitted in current second
+         */
+        private boolean tryAcquire() {
+            long second = System.nanoTime() / 1_000_000_000L;
+            while (true) {
+                long current = window.get();
+                long count = (current >>> 32 == second ? current & 0xFFFFFFFFL : 0);
+                if (count >= ratePerSecond)
+                    return false;
+                if (window.compareAndSet(current, (second << 32) | (count + 1)))
+                    return true;
+            }
+        }
+    }
+
+    /**
+     * Slot of ring buffer; sequence tells whose turn it is - producer of entry n may fill slot when its sequence
+     * is n, writer may read it when sequence is n + 1
+     */
+    private static final class Entry {
+        volatile long sequence;
+        long timeMillis;
+        Site site;
+        String message;
+        Object client;
+        String command;
+        long communicationIdentifier;
+        Throwable error;
+        long suppressed;
+
+        void clear() {
+            site = null;
+            message = null;
+            client = null;
+            command = null;
+            error = null;
+        }
+    }
+
+    private static final Entry[] entries = new Entry[CAPACITY];
+    private static final AtomicLong tail = new AtomicLong();
+    /** Next entry to be written, changed by writer thread only */
+    private static volatile long head = 0;
+    private static final AtomicLong droppedTotal = new AtomicLong();
+    private static final AtomicLong suppressedTotal = new AtomicLong();
+    private static volatile Level threshold = Level.INFO;
+    private static volatile PrintStream out = System.out;
+    private static volatile PrintStream err = System.err;
+
+    static {
+        for (int i = 0; i < CAPACITY; ++i) {
+            entries[i] = new Entry();
+            entries[i].sequence = i;
+        }
+        Thread writer = new Thread(Log::write, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    private Log() {}
+
+    /**
+     * @param name Name of site, usually class and method it is placed in
+     * @param level Level of entries of site
+     * @return Site emitting at most {@link #DEFAULT_RATE_PER_SECOND} entries per second
+     */
+    public static Site site(String name, Level level) {
+        return site(name, level, DEFAULT_RATE_PER_SECOND);
+    }
+
+    /**
+     * @param name Name of site, usually class and method it is placed in
+     * @param level Level of entries of site
+     * @param ratePerSecond Maximum number of entries emitted per second
+     * @return New site
+     */
+    public static Site site(String name, Level level, int ratePerSecond) {
+        return new Site(name, level, Math.max(1, ratePerSecond));
+    }
+
+    /**
+     * @param level Lowest level of entries which are logged
+     */
+    public static void setLevel(Level level) {
+        threshold = level;
+    }
+
+    public static Level getLevel() {
+        return threshold;
+    }
+
+    /**
+     * Redirects output of writer thread
+     * @param out Stream for entries below {@link Level#WARN}
+     * @param err Stream for warnings and errors
+     */
+    public static void setOutput(PrintStream out, PrintStream err) {
+        Log.out = out;
+        Log.err = err;
+    }
+
+    /**
+     * @return Number of entries dropped because ring buffer was full
+     */
+    public static long getDroppedCount() {
+        return droppedTotal.get();
+    }
+
+    /**
+     * @return Number of entries suppressed by rate limits of all sites
+     */
+    public static long getSuppressedCount() {
+        return suppressedTotal.get();
+    }
+
+    /**
+     * Waits until entries published before this call are written
+     * @param timeoutMs Maximum time to wait, in milliseconds
+     * @return True if all entries have been written in time
+     */
+    public static boolean flush(long timeoutMs) {
+        long target = tail.get();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        while (head < target) {
+            if (System.nanoTime() - deadline > 0)
+                return false;
+            LockSupport.parkNanos(WRITER_PARK_NS / 5);
+        }
+        return true;
+    }
+
+    /**
+     * Claims slot of ring buffer and fills it, entry is dropped if buffer is full
+     */
+    private static void publish(Site site, String message, Object client, String command, long communicationIdentifier, Throwable error, long suppressed) {
+        Entry entry;
+        long position;
+        while (true) {
+            position = tail.get();
+            entry = entries[(int) (position & (CAPACITY - 1))];
+            long sequence = entry.sequence;
+            if (sequence < position) {
+                droppedTotal.incrementAndGet();
+                site.suppressed.addAndGet(suppressed);
+                return;
+            }
+            if (sequence == position && tail.compareAndSet(position, position + 1))
+                break;
+        }
+        entry.timeMillis = System.currentTimeMillis();
+        entry.site = site;
+        entry.message = message;
+        entry.client = client;
+        entry.command = command;
+        entry.communicationIdentifier = communicationIdentifier;
+        entry.error = error;
+        entry.suppressed = suppressed;
+        entry.sequence = position + 1;
+    }
+
+    /**
+     * Writer thread loop, formats entries in order of publishing and flushes output once per batch
+     */
+    private static void write() {
+        StringBuilder line = new StringBuilder(256);
+        while (true) {
+            long position = head;
+            Entry entry = entries[(int) (position & (CAPACITY - 1))];
+            if (entry.sequence != position + 1) {
+                out.flush();
+                err.flush();
+                LockSupport.parkNanos(WRITER_PARK_NS);
+                continue;
+            }
+            line.setLength(0);
+            try {
+                format(line, entry);
+            } catch (RuntimeException ex) {
+                line.append(" format_error=").append(ex.getClass().getSimpleName());
+            }
+            PrintStream target = (entry.site.getLevel().ordinal() >= Level.WARN.ordinal() ? err : out);
+            entry.clear();
+            entry.sequence = position + CAPACITY;
+            target.println(line);
+            head = position + 1;
+        }
+    }
+
+    private static void format(StringBuilder line, Entry entry) {
+        line.append(Instant.ofEpochMilli(entry.timeMillis)).append(' ')
+                .append(entry.site.getLevel()).append(' ');
+        field(line, "site", entry.site.getName());
+        field(line, "msg", entry.message);
+        if (entry.client != null)
+            field(line, "client", String.valueOf(entry.client));
+        if (entry.communicationIdentifier != NO_IDENTIFIER)
+            line.append(" id=").append(entry.communicationIdentifier);
+        if (entry.command != null)
+            field(line, "command", entry.command);
+        if (entry.error != null)
+            field(line, "error", entry.error.getClass().getSimpleName() + (entry.error.getMessage() != null ? ": " + entry.error.getMessage() : ""));
+        if (entry.suppressed > 0)
+            line.append(" suppressed=").append(entry.suppressed);
+    }
+
+    /**
+     * Appends <b>key="value"</b>, escaping quotes, backslashes and line breaks
+     */
+    private static void field(StringBuilder line, String key, String value) {
+        if (line.charAt(line.length() - 1) != ' ')
+            line.append(' ');
+        line.append(key).append("=\"");
+        for (int i = 0; value != null && i < value.length(); ++i) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\')
+                line.append('\\').append(c);
+            else if (c == '\n')
+                line.append("\\n");
+            else if (c == '\r')
+                line.append("\\r");
+            else
+                line.append(c);
+        }
+        line.append('"');
+    }
+}
@@ -0,0 +1,404 @@
+package server;
+
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.model.Filters;
+import org.bson.Document;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Asynchronous lookup of user roles at login.
+ * Lookups are completed by small bounded pool of threads; lookups requested while others are in progress are
+ * collected and sent to user directory as one batch. Roles of users who logged in successfully are cached for
+ * limited time, together with digest of their password, so repeated logins (eg. reconnecting guides) do not reach
+ * the database at all.
+ */
+public class LoginService {
+
+    /** Default time users stay cached after successful lookup, in milliseconds */
+    public static final long DEFAULT_CACHE_TTL_MS = 10 * 60 * 1000;
+    /** Default number of threads performing lookups */
+    public static final int DEFAULT_THREADS = 4;
+    /** Maximum number of logins looked up in one batch */
+    public static final int MAX_BATCH_SIZE = 256;
+    /** Maximum number of lookups waiting for a thread, further ones are rejected */
+    public static final int MAX_PENDING_LOOKUPS = 10_000;
+    private static final Log.Site LOOKUP_FAILED = Log.site("LoginService.lookUp", Log.Level.ERROR);
+
+    /**
+     * User found in directory
+     */
+    public static class UserRecord {
+        private final String password;
+        private final String role;
+
+        public UserRecord(String password, String role) {
+            this.password = password;
+            this.role = role;
+        }
+    }
+
+    /** Directory finding users of given logins, keyed by login */
+    private final Function<Collection<String>, Map<String, UserRecord>> directory;
+    private final long cacheTtlMs;
+    private final int threads;
+    private final ThreadPoolExecutor executor;
+    private final ConcurrentLinkedQueue<PendingLookup> pendingLookups;
+    private final AtomicInteger pendingCount;
+    /** Number of drains currently scheduled or running, never higher than number of threads */
+    private final AtomicInteger activeDrains;
+    private final ConcurrentHashMap<String, CachedUser> cache;
+    private final AtomicInteger insertionsSincePurge;
+
+    private final LongAdder attempts;
+    private final LongAdder successes;
+    private final LongAdder failures;
+    private final LongAdder rejections;
+    private final LongAdder cacheHits;
+    private final LongAdder batches;
+    private final LongAdder totalLatencyNanos;
+    private final AtomicLong maxLatencyNanos;
+
+    /**
+     * @param directory Directory finding users of given logins, keyed by login; called from lookup threads only
+     * @param threads Number of threads performing lookups
+     * @param cacheTtlMs Time users stay cached after successful lookup, in milliseconds; 0 disables cache
+     */
+    public LoginService(Function<Collection<String>, Map<String, UserRecord>> directory, int threads, long cacheTtlMs) {
+        this.directory = directory;
+        this.cacheTtlMs = Math.max(0, cacheTtlMs);
+        this.threads = Math.max(1, threads);
+        this.executor = new ThreadPoolExecutor(this.threads, this.threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(this.threads), ClientThreads.platform("login-"));
+        this.executor.allowCoreThreadTimeOut(true);
+        this.pendingLookups = new ConcurrentLinkedQueue<>();
+        this.pendingCount = new AtomicInteger(0);
+        this.activeDrains = new AtomicInteger(0);
+        this.cache = new ConcurrentHashMap<>();
+        this.insertionsSincePurge = new AtomicInteger(0);
+        this.attempts = new LongAdder();
+        this.successes = new LongAdder();
+        this.failures = new LongAdder();
+        this.rejections = new LongAdder();
+        this.cacheHits = new LongAdder();
+        this.batches = new LongAdder();
+        this.totalLatencyNanos = new LongAdder();
+        this.maxLatencyNanos = new AtomicLong(0);
+    }
+
+    /**
+     * Creates directory looking users up in "users" collection of database
+     * @param database Supplier of database connection
+     * @return Directory performing single query per batch
+     */
+    public static Function<Collection<String>, Map<String, UserRecord>> databaseDirectory(Supplier<MongoDatabase> database) {
+        return (logins) -> {
+            Map<String, UserRecord> users = new HashMap<>();
+            for (Document user : database.get().getCollection("users").find(Filters.in("login", logins))) {
+                users.put(user.getString("login"), new UserRecord(user.getString("password"), user.getString("role")));
+            }
+            return users;
+        };
+    }
+
+    /**
+     * Creates directory of users listed in text file, one user per line as <b>login password role</b>;
+     * blank lines and lines starting with '#' are skipped. Meant for running server without database
+     * (eg. under load generator, see {@link client.LoadGenerator}).
+     * @param file File with users
+     * @return Directory of users read from file
+     * @throws UncheckedIOException When file could not be read
+     */
+    public static Function<Collection<String>, Map<String, UserRecord>> fileDirectory(Path file) {
+        HashMap<String, UserRecord> users = new HashMap<>();
+        try {
+            for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                String trimmed = line.trim();
+                if (trimmed.isEmpty() || trimmed.startsWith("#"))
+                    continue;
+                String[] fields = trimmed.split("\\s+");
+                if (fields.length >= 3)
+                    users.put(fields[0], new UserRecord(fields[1], fields[2]));
+            }
+        } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+        }
+        return (logins) -> {
+            Map<String, UserRecord> found = new HashMap<>();
+            for (String login : logins) {
+                UserRecord user = users.get(login);
+                if (user != null)
+                    found.put(login, user);
+            }
+            return found;
+        };
+    }
+
+    /**
+     * Looks up role of user with given credentials
+     * @param credentials Array of two strings - first containing login, second containing password
+     * @return Future completed with role of found user or null if credentials are invalid; completed exceptionally
+     * if lookup has been rejected because of overload or directory has failed
+     */
+    public CompletableFuture<String> findRole(String[] credentials) {
+        attempts.increment();
+        long startNanos = System.nanoTime();
+        if (credentials == null || credentials.length < 2 || credentials[0] == null || credentials[1] == null) {
+            failures.increment();
+            return CompletableFuture.completedFuture(null);
+        }
+        String login = credentials[0];
+        byte[] digest = digest(credentials[1]);
+        CachedUser cached = cache.get(login);
+        if (cached != null) {
+            if (cached.expiresAt > System.currentTimeMillis() && MessageDigest.isEqual(cached.passwordDigest, digest)) {
+                cacheHits.increment();
+                complete(null, cached.role, startNanos);
+                return CompletableFuture.completedFuture(cached.role);
+            }
+            cache.remove(login, cached);
+        }
+        if (pendingCount.incrementAndGet() > MAX_PENDING_LOOKUPS) {
+            pendingCount.decrementAndGet();
+            rejections.increment();
+            CompletableFuture<String> rejected = new CompletableFuture<>();
+            rejected.completeExceptionally(new RejectedExecutionException("Too many pending logins"));
+            return rejected;
+        }
+        PendingLookup lookup = new PendingLookup(login, digest, startNanos);
+        pendingLookups.offer(lookup);
+        scheduleDrain();
+        return lookup.result;
+    }
+
+    private void scheduleDrain() {
+        if (activeDrains.incrementAndGet() > threads) {
+            activeDrains.decrementAndGet();
+            return;
+        }
+        try {
+            executor.execute(this::drain);
+        } catch (RejectedExecutionException ex) {
+            activeDrains.decrementAndGet();
+        }
+    }
+
+    /**
+     * Looks up one batch of pending logins, then schedules next drain if more lookups are waiting
+     */
+    private void drain() {
+        ArrayList<PendingLookup> batch = new ArrayList<>();
+        PendingLookup lookup;
+        while (batch.size() < MAX_BATCH_SIZE && (lookup = pendingLookups.poll()) != null) {
+            batch.add(lookup);
+        }
+        pendingCount.addAndGet(-batch.size());
+        if (!batch.isEmpty())
+            lookUp(batch);
+        activeDrains.decrementAndGet();
+        if (!pendingLookups.isEmpty())
+            scheduleDrain();
+    }
+
+    private void lookUp(ArrayList<PendingLookup> batch) {
+        batches.increment();
+        HashSet<String> logins = new HashSet<>();
+        for (PendingLookup lookup : batch)
+            logins.add(lookup.login);
+        Map<String, UserRecord> users;
+        try {
+            users = directory.apply(logins);
+        } catch (RuntimeException ex) {
+            LOOKUP_FAILED.log("User lookup failed", null, ex);
+            for (PendingLookup lookup : batch) {
+                failures.increment();
+                lookup.result.completeExceptionally(ex);
+            }
+            return;
+        }
+        long now = System.currentTimeMillis();
+        for (PendingLookup lookup : batch) {
+            UserRecord user = users.get(lookup.login);
+            String role = null;
+            if (user != null && user.password != null && MessageDigest.isEqual(digest(user.password), lookup.passwordDigest)) {
+                role = user.role;
+                if (cacheTtlMs > 0 && role != null)
+                    cacheUser(lookup.login, new CachedUser(role, lookup.passwordDigest, now + cacheTtlMs));
+            }
+            complete(lookup, role, lookup.startNanos);
+        }
+    }
+
+    private void complete(PendingLookup lookup, String role, long startNanos) {
+        if (role != null)
+            successes.increment();
+        else
+            failures.increment();
+        long latency = System.nanoTime() - startNanos;
+        totalLatencyNanos.add(latency);
+        maxLatencyNanos.accumulateAndGet(latency, Math::max);
+        if (lookup != null)
+            lookup.result.complete(role);
+    }
+
+    /**
+     * Caches user, evicting expired users once every {@link #MAX_BATCH_SIZE} insertions
+     */
+    private void cacheUser(String login, CachedUser user) {
+        cache.put(login, user);
+        if (insertionsSincePurge.incrementAndGet() >= MAX_BATCH_SIZE) {
+            insertionsSincePurge.set(0);
+            long now = System.currentTimeMillis();
+            cache.values().removeIf(cached -> cached.expiresAt <= now);
+        }
+    }
+
+    /**
+     * Removes cached user, so that next login is looked up in directory (eg. after password change)
+     * @param login Login of user
+     */
+    public void invalidate(String login) {
+        cache.remove(login);
+    }
+
+    private static byte[] digest(String password) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(password.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException ex) {
+            return password.getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Stops lookup threads; pending lookups are not completed
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * @return Number of login attempts
+     */
+    public long getAttemptCount() {
+        return attempts.sum();
+    }
+
+    /**
+     * @return Number of successful logins
+     */
+    public long getSuccessCount() {
+        return successes.sum();
+    }
+
+    /**
+     * @return Number of logins with invalid credentials or failed lookup
+     */
+    public long getFailureCount() {
+        return failures.sum();
+    }
+
+    /**
+     * @return Number of logins rejected because too many lookups were pending
+     */
+    public long getRejectionCount() {
+        return rejections.sum();
+    }
+
+    /**
+     * @return Number of logins completed from cache
+     */
+    public long getCacheHitCount() {
+        return cacheHits.sum();
+    }
+
+    /**
+     * @return Number of batches sent to directory
+     */
+    public long getBatchCount() {
+        return batches.sum();
+    }
+
+    /**
+     * @return Number of lookups waiting for a thread
+     */
+    public int getPendingCount() {
+        return pendingCount.get();
+    }
+
+    /**
+     * @return Number of users currently cached, including expired ones not evicted yet
+     */
+    public int getCachedUserCount() {
+        return cache.size();
+    }
+
+    /**
+     * @return Average time of completed lookups, in nanoseconds
+     */
+    public long getAverageLatencyNanos() {
+        long completed = successes.sum() + failures.sum();
+        return completed > 0 ? totalLatencyNanos.sum() / completed : 0;
+    }
+
+    /**
+     * @return Longest time of completed lookup, in nanoseconds
+     */
+    public long getMaxLatencyNanos() {
+        return maxLatencyNanos.get();
+    }
+
+    /**
+     * Lookup waiting for a thread
+     */
+    private static class PendingLookup {
+        private final String login;
+        private final byte[] passwordDigest;
+        private final long startNanos;
+        private final CompletableFuture<String> result;
+
+        PendingLookup(String login, byte[] passwordDigest, long startNanos) {
+            this.login = login;
+            this.passwordDigest = passwordDigest;
+            this.startNanos = startNanos;
+            this.result = new CompletableFuture<>();
+        }
+    }
+
+    /**
+     * User who has logged in successfully
+     */
+    private static class CachedUser {
+        private final String role;
+        private final byte[] passwordDigest;
+        private final long expiresAt;
+
+        CachedUser(String role, byte[] passwordDigest, long expiresAt) {
+            this.role = role;
+            this.passwordDigest = passwordDigest;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
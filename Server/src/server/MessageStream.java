@@ -0,0 +1,65 @@
+package server;
+
+import network_structures.MessageCodec;
+import network_structures.NetworkMessage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Blocking, bidirectional stream of network messages exchanged with single client
+ */
+public interface MessageStream {
+
+    /**
+     * Reads next message, waiting for it if necessary
+     * @return Received message
+     * @throws IOException When stream is closed or message is invalid
+     * @throws ClassNotFoundException When message contains unknown class
+     */
+    NetworkMessage read() throws IOException, ClassNotFoundException;
+
+    /**
+     * Writes message into stream's buffer; it is not guaranteed to be sent until {@link #flush()}
+     * @param message Message to write
+     * @throws IOException When stream is unable to send message
+     */
+    void write(NetworkMessage message) throws IOException;
+
+    /**
+     * Sends all written messages
+     * @throws IOException When stream is unable to send messages
+     */
+    void flush() throws IOException;
+
+    /**
+     * Closes stream together with its connection
+     * @throws IOException When stream could not be closed
+     */
+    void close() throws IOException;
+
+    /**
+     * Creates stream exchanging messages encoded by given codec over the same connection;
+     * this stream must not be used afterwards
+     * @param codec Codec to switch to
+     * @return Stream using given codec
+     * @throws IOException When this stream could not be flushed
+     */
+    MessageStream switchCodec(MessageCodec codec) throws IOException;
+
+    /**
+     * @return Codec of frames exchanged by this stream, null if stream does not use frames
+     */
+    default MessageCodec getCodec() {
+        return null;
+    }
+
+    /**
+     * Writes frame already encoded by codec of this stream into stream's buffer
+     * @param frame Complete frame, written from its position to its limit; position is not changed
+     * @throws IOException When stream is unable to send frame or does not use frames
+     */
+    default void writeFrame(ByteBuffer frame) throws IOException {
+        throw new IOException("Stream does not use frames");
+    }
+}
@@ -0,0 +1,199 @@
+package server;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Registry of server metrics, cheap enough for hot paths: counters are striped ({@link LongAdder}) and histograms
+ * keep power-of-two buckets in atomic array, so recording never locks. Metrics are identified by name and optional
+ * labels; callers on hot paths should look metric up once and keep reference to it.
+ * Gauges are computed only when metrics are rendered, see {@link #render()} and {@link MetricsEndpoint}.
+ */
+public final class Metrics {
+
+    /**
+     * Monotonic counter
+     */
+    public static final class Counter {
+        private final LongAdder value = new LongAdder();
+
+        public void increment() {
+            value.increment();
+        }
+
+        public void add(long amount) {
+            value.add(amount);
+        }
+
+        public long get() {
+            return value.sum();
+        }
+    }
+
+    /**
+     * Distribution of non-negative values (eg. latencies in nanoseconds or sizes in bytes) in power-of-two buckets;
+     * quantiles are therefore reported with precision of factor 2, which is enough to tell which paths hurt
+     */
+    public static final class Histogram {
+        /** Bucket i counts values v with 2^(i-1) &lt;= v &lt; 2^i, bucket 0 counts zeros */
+        private final AtomicLongArray buckets = new AtomicLongArray(Long.SIZE + 1);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        /**
+         * @param value Value to record, negative values are recorded as 0
+         */
+        public void record(long value) {
+            long recorded = Math.max(0, value);
+            buckets.incrementAndGet(Long.SIZE - Long.numberOfLeadingZeros(recorded));
+            count.increment();
+            sum.add(recorded);
+            if (recorded > max.get())
+                max.accumulateAndGet(recorded, Math::max);
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public long getSum() {
+            return sum.sum();
+        }
+
+        public long getMax() {
+            return max.get();
+        }
+
+        /**
+         * @param quantile Quantile between 0 and 1
+         * @return Upper bound of bucket containing given quantile (never above maximum), 0 if nothing has been recorded
+         */
+        public long getQuantile(double quantile) {
+            long[] counts = new long[buckets.length()];
+            long total = 0;
+            for (int i = 0; i < counts.length; ++i) {
+                counts[i] = buckets.get(i);
+                total += counts[i];
+            }
+            long rank = (long) Math.ceil(quantile * total);
+            long seen = 0;
+            for (int i = 0; i < counts.length && total > 0; ++i) {
+                seen += counts[i];
+                if (seen >= Math.max(1, rank))
+                    return Math.min(getMax(), (i == 0 ? 0 : (i >= Long.SIZE - 1 ? Long.MAX_VALUE : (1L << i) - 1)));
+            }
+            return 0;
+        }
+    }
+
+    /** Quantiles rendered for every histogram */
+    private static final double[] QUANTILES = new double[] { 0.5, 0.9, 0.99 };
+
+    /** Registered metrics by name followed by rendered labels */
+    private static final ConcurrentHashMap<String, Object> metrics = new ConcurrentHashMap<>();
+
+    private Metrics() {}
+
+    /**
+     * @param name Name of counter
+     * @param labels Label names and values, alternately
+     * @return Counter of given name and labels, registered on first use
+     */
+    public static Counter counter(String name, String... labels) {
+        return (Counter) metrics.computeIfAbsent(key(name, labels), (key) -> new Counter());
+    }
+
+    /**
+     * @param name Name of histogram
+     * @param labels Label names and values, alternately
+     * @return Histogram of given name and labels, registered on first use
+     */
+    public static Histogram histogram(String name, String... labels) {
+        return (Histogram) metrics.computeIfAbsent(key(name, labels), (key) -> new Histogram());
+    }
+
+    /**
+     * Registers gauge, replacing previous one of the same name and labels
+     * @param name Name of gauge
+     * @param value Supplier of current value, called when metrics are rendered
+     * @param labels Label names and values, alternately
+     */
+    public static void gauge(String name, LongSupplier value, String... labels) {
+        metrics.put(key(name, labels), value);
+    }
+
+    /**
+     * Removes metric of given name and labels
+     * @param name Name of metric
+     * @param labels Label names and values, alternately
+     */
+    public static void remove(String name, String... labels) {
+        metrics.remove(key(name, labels));
+    }
+
+    /**
+     * Renders all metrics in Prometheus text format, sorted by name; histograms are rendered as summaries
+     * with _count, _sum, _max and quantiles
+     * @return Rendered metrics
+     */
+    public static String render() {
+        StringBuilder out = new StringBuilder(4096);
+        for (Map.Entry<String, Object> entry : new TreeMap<>(metrics).entrySet()) {
+            String key = entry.getKey();
+            Object metric = entry.getValue();
+            if (metric instanceof Counter) {
+                line(out, key, ((Counter) metric).get());
+            } else if (metric instanceof Histogram) {
+                Histogram histogram = (Histogram) metric;
+                int labelsStart = key.indexOf('{');
+                String name = (labelsStart >= 0 ? key.substring(0, labelsStart) : key);
+                String labels = (labelsStart >= 0 ? key.substring(labelsStart + 1, key.length() - 1) : "");
+                for (double quantile : QUANTILES)
+                    line(out, name + "{" + labels + (labels.isEmpty() ? "" : ",") + "quantile=\"" + quantile + "\"}", histogram.getQuantile(quantile));
+                String suffixLabels = (labels.isEmpty() ? "" : "{" + labels + "}");
+                line(out, name + "_count" + suffixLabels, histogram.getCount());
+                line(out, name + "_sum" + suffixLabels, histogram.getSum());
+                line(out, name + "_max" + suffixLabels, histogram.getMax());
+            } else {
+                line(out, key, ((LongSupplier) metric).getAsLong());
+            }
+        }
+        return out.toString();
+    }
+
+    private static void line(StringBuilder out, String key, long value) {
+        out.append(key).append(' ').append(value).append('\n');
+    }
+
+    /**
+     * @return Name followed by labels in form of {a="1",b="2"}, label values being escaped
+     */
+    private static String key(String name, String... labels) {
+        if (labels.length == 0)
+            return name;
+        StringBuilder key = new StringBuilder(name).append('{');
+        for (int i = 0; i + 1 < labels.length; i += 2) {
+            if (i > 0)
+                key.append(',');
+            key.append(labels[i]).append("=\"");
+            String value = labels[i + 1];
+            for (int j = 0; value != null && j < value.length(); ++j) {
+                char c = value.charAt(j);
+                if (c == '"' || c == '\\')
+                    key.append('\\').append(c);
+                else if (c == '\n')
+                    key.append("\\n");
+                else
+                    key.append(c);
+            }
+            key.append('"');
+        }
+        return key.append('}').toString();
+    }
+}
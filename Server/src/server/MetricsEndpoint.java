@@ -0,0 +1,63 @@
+package server;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Local HTTP endpoint serving {@link Metrics#render()} at <b>/metrics</b>, bound to loopback address only.
+ * Requests are handled by single thread, so scraping never competes with system threads for more than one core.
+ */
+public class MetricsEndpoint {
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    /**
+     * Starts endpoint
+     * @param port Port to listen on, 0 for any free port
+     * @throws IOException When port could not be bound
+     */
+    public MetricsEndpoint(int port) throws IOException {
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        this.server.createContext("/metrics", this::handle);
+        this.executor = Executors.newSingleThreadExecutor(ClientThreads.platform("metrics-"));
+        this.server.setExecutor(executor);
+        this.server.start();
+    }
+
+    /**
+     * @return Port endpoint listens on
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] body = Metrics.render().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+}
@@ -1,15 +1,12 @@
 package server;
 
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-
 /**
  * System moderator account class
  */
 public class Moderator extends Client {
 
-    public Moderator(ObjectOutputStream out, ObjectInputStream in) {
-        super(out, in);
+    public Moderator(MessageStream stream) {
+        super(stream);
     }
 
     @Override
@@ -0,0 +1,66 @@
+package server;
+
+import com.mongodb.client.MongoClients;
+import com.mongodb.client.MongoDatabase;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Storage backed by MongoDB database
+ */
+public class MongoStorage implements Storage {
+    /** Name of database used by server */
+    public static final String DEFAULT_DATABASE = "guideDB";
+
+    private final MongoDatabase database;
+    private final Function<Collection<String>, Map<String, LoginService.UserRecord>> users;
+
+    public MongoStorage(MongoDatabase database) {
+        this.database = database;
+        this.users = LoginService.databaseDirectory(() -> database);
+    }
+
+    /**
+     * Connects to database on local MongoDB server; connection is established lazily, on first query
+     * @param databaseName Name of database
+     * @return Storage backed by given database
+     */
+    public static MongoStorage connect(String databaseName) {
+        return new MongoStorage(MongoClients.create().getDatabase(databaseName));
+    }
+
+    /**
+     * @return Underlying database
+     */
+    public MongoDatabase getDatabase() {
+        return database;
+    }
+
+    @Override
+    public List<VenueLoader.SectorRecord> loadVenue(int threads) {
+        return VenueLoader.loadFromDatabase(database, threads);
+    }
+
+    @Override
+    public Map<ObjectId, Integer> countVenueRooms() {
+        return VenueLoader.countRoomsInDatabase(database);
+    }
+
+    @Override
+    public Map<String, LoginService.UserRecord> findUsers(Collection<String> logins) {
+        return users.apply(logins);
+    }
+
+    @Override
+    public Long getEventStart() {
+        Document serverVariables = database.getCollection("serverVariables").find().first();
+        Date serverOpenDate = (serverVariables != null ? serverVariables.getDate("serverOpenDate") : null);
+        return (serverOpenDate != null ? serverOpenDate.getTime() : null);
+    }
+}
@@ -0,0 +1,504 @@
+package server;
+
+import network_structures.BinaryCodec;
+import network_structures.EventDetails;
+import network_structures.MessageCodec;
+import network_structures.MessageFrames;
+import network_structures.NetworkMessage;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * Non-blocking transport, alternative to thread-per-client {@link Server} communication.
+ * Connections are accepted by single thread and distributed among small fixed pool of I/O threads,
+ * each multiplexing its connections on own selector. Client input and output are driven by readiness events,
+ * messages are exchanged as frames described in {@link MessageFrames}, with serialized payload until client
+ * negotiates other codec at login.
+ */
+public class NioTransport implements Runnable {
+
+    /** Maximum time I/O thread waits for readiness events before checking for idle connections */
+    private static final long SELECT_TIMEOUT_MS = 1000;
+    private static final Log.Site LOGGED_IN = Log.site("NioTransport.Connection", Log.Level.INFO);
+    private static final Log.Site CLOSED = Log.site("NioTransport.Connection", Log.Level.INFO);
+    private static final Log.Site NOT_RESPONDING = Log.site("NioTransport.Connection", Log.Level.WARN);
+    private static final Log.Site LOST = Log.site("NioTransport.Connection", Log.Level.WARN);
+    private static final Log.Site SLOW_CLIENT = Log.site("NioTransport.Connection", Log.Level.WARN);
+    private static final Log.Site FAILED = Log.site("NioTransport.Connection", Log.Level.ERROR);
+    private static final Log.Site HANDLING_FAILED = Log.site("NioTransport.Connection", Log.Level.ERROR);
+
+    /** Port to listen on */
+    private final int port;
+    /** Time after which silent connection is closed, in milliseconds */
+    private final long timeoutMs;
+    /** Callback for client which has logged in */
+    private final Consumer<Client> clientAdded;
+    /** Callback for client whose connection has been closed */
+    private final Consumer<Client> clientRemoved;
+    /** I/O threads' tasks */
+    private final IoWorker[] workers;
+
+    /**
+     * @param port Port to listen on
+     * @param ioThreads Number of I/O threads
+     * @param timeoutMs Time after which silent connection is closed, in milliseconds
+     * @param clientAdded Callback for client which has logged in
+     * @param clientRemoved Callback for client whose connection has been closed
+     */
+    public NioTransport(int port, int ioThreads, long timeoutMs, Consumer<Client> clientAdded, Consumer<Client> clientRemoved) {
+        this.port = port;
+        this.timeoutMs = timeoutMs;
+        this.clientAdded = clientAdded;
+        this.clientRemoved = clientRemoved;
+        this.workers = new IoWorker[Math.max(1, ioThreads)];
+    }
+
+    /**
+     * Accepting loop
+     */
+    @Override
+    public void run() {
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open()) {
+            serverChannel.bind(new InetSocketAddress(port));
+            for (int i = 0; i < workers.length; ++i) {
+                workers[i] = new IoWorker(Selector.open());
+                new Thread(workers[i], "nio-io-" + i).start();
+            }
+            System.out.println("Listening on port " + port + " (non-blocking, " + workers.length + " I/O threads)...\n");
+
+            int nextWorker = 0;
+            while (true) {
+                SocketChannel channel = serverChannel.accept();
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                workers[nextWorker].register(channel);
+                nextWorker = (nextWorker + 1) % workers.length;
+            }
+        } catch (IOException ex) {
+            System.err.println("[NioTransport]: IOException - " + ex.getMessage());
+        }
+    }
+
+    /**
+     * I/O thread task, serving all connections registered with its selector
+     */
+    private class IoWorker implements Runnable {
+        private final Selector selector;
+        /** Accepted channels waiting for registration with selector */
+        private final ConcurrentLinkedQueue<SocketChannel> acceptedChannels;
+        /** Connections which have new outgoing messages */
+        private final ConcurrentLinkedQueue<Connection> pendingOutput;
+        /** Tasks handed over from other threads, eg. completions of login lookups */
+        private final ConcurrentLinkedQueue<Runnable> tasks;
+        private long lastIdleCheck;
+
+        IoWorker(Selector selector) {
+            this.selector = selector;
+            this.acceptedChannels = new ConcurrentLinkedQueue<>();
+            this.pendingOutput = new ConcurrentLinkedQueue<>();
+            this.tasks = new ConcurrentLinkedQueue<>();
+            this.lastIdleCheck = System.currentTimeMillis();
+        }
+
+        /**
+         * Hands accepted channel over to this I/O thread
+         * @param channel Non-blocking channel to register
+         */
+        void register(SocketChannel channel) {
+            acceptedChannels.offer(channel);
+            selector.wakeup();
+        }
+
+        /**
+         * Schedules flushing of given connection's outgoing messages on this I/O thread
+         * @param connection Connection with new outgoing messages
+         */
+        void requestOutput(Connection connection) {
+            pendingOutput.offer(connection);
+            selector.wakeup();
+        }
+
+        /**
+         * Schedules given task on this I/O thread
+         * @param task Task touching state of this thread's connections
+         */
+        void execute(Runnable task) {
+            tasks.offer(task);
+            selector.wakeup();
+        }
+
+        /**
+         * Main loop
+         */
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    selector.select(SELECT_TIMEOUT_MS);
+
+                    SocketChannel channel;
+                    while ((channel = acceptedChannels.poll()) != null) {
+                        try {
+                            Connection connection = new Connection(this, channel);
+                            connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                        } catch (IOException ex) {
+                            FAILED.log("Could not register connection", null, ex);
+                        }
+                    }
+
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        try {
+                            task.run();
+                        } catch (RuntimeException ex) {
+                            HANDLING_FAILED.log("Task of I/O thread has failed", Thread.currentThread().getName(), ex);
+                        }
+                    }
+
+                    Connection pending;
+                    while ((pending = pendingOutput.poll()) != null) {
+                        try {
+                            pending.flushOutgoingMessages();
+                        } catch (RuntimeException ex) {
+                            pending.fail(ex);
+                        }
+                    }
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable())
+                                connection.read();
+                            if (key.isValid() && key.isWritable())
+                                connection.write();
+                        } catch (RuntimeException ex) {
+                            connection.fail(ex);
+                        }
+                    }
+
+                    closeIdleConnections();
+                }
+            } catch (IOException | ClosedSelectorException ex) {
+                FAILED.log("I/O thread has stopped", Thread.currentThread().getName(), ex);
+            }
+        }
+
+        /**
+         * Closes connections which haven't sent anything for longer than allowed
+         */
+        private void closeIdleConnections() {
+            long now = System.currentTimeMillis();
+            if (now - lastIdleCheck < SELECT_TIMEOUT_MS)
+                return;
+            lastIdleCheck = now;
+            for (SelectionKey key : selector.keys()) {
+                Connection connection = (Connection) key.attachment();
+                if (connection != null && now - connection.lastReadTime > timeoutMs) {
+                    NOT_RESPONDING.log("Client is not responding", connection);
+                    connection.send(new NetworkMessage("timeout", null, null, 0));
+                    connection.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * State of single non-blocking connection
+     */
+    private class Connection {
+        private final IoWorker worker;
+        private final SocketChannel channel;
+        /** Socket address and port of this connection, host name is not resolved since lookup may block I/O thread */
+        private final String description;
+        private SelectionKey key;
+        /** Buffer for incoming, not yet complete frames */
+        private ByteBuffer readBuffer;
+        /** Encoded frames waiting for channel to become writable */
+        private final ArrayDeque<ByteBuffer> writeQueue;
+        /** Set when flushing of outgoing messages has already been requested */
+        private final AtomicBoolean outputRequested;
+        /** Codec of frames, may be switched at login */
+        private MessageCodec codec;
+        /** Client who has logged in through this connection, null until then */
+        private Client client;
+        /** Set while user lookup of login attempt is in progress */
+        private boolean loginPending;
+        /** Messages received while login was pending, handled once it completes */
+        private final ArrayDeque<NetworkMessage> pendingMessages;
+        private long lastReadTime;
+        private boolean closed;
+
+        Connection(IoWorker worker, SocketChannel channel) {
+            this.worker = worker;
+            this.channel = channel;
+            this.description = channel.socket().getInetAddress().getHostAddress() + ":" + channel.socket().getPort();
+            this.readBuffer = ByteBuffer.allocate(8 * 1024);
+            this.writeQueue = new ArrayDeque<>();
+            this.pendingMessages = new ArrayDeque<>();
+            this.outputRequested = new AtomicBoolean(false);
+            this.codec = MessageFrames.SERIALIZED_CODEC;
+            this.lastReadTime = System.currentTimeMillis();
+        }
+
+        @Override
+        public String toString() {
+            return description;
+        }
+
+        /**
+         * Called from any thread when client has new outgoing messages
+         */
+        void signalOutput() {
+            if (outputRequested.compareAndSet(false, true))
+                worker.requestOutput(this);
+        }
+
+        /**
+         * Reads available bytes and handles every complete frame
+         */
+        void read() {
+            int bytesRead;
+            try {
+                bytesRead = channel.read(readBuffer);
+            } catch (IOException ex) {
+                FAILED.log("Could not read from channel", this, ex);
+                close();
+                return;
+            }
+            if (bytesRead < 0) {
+                LOST.log("Connection with client has been lost", this);
+                close();
+                return;
+            }
+            lastReadTime = System.currentTimeMillis();
+
+            readBuffer.flip();
+            try {
+                while (readBuffer.remaining() >= MessageFrames.HEADER_LENGTH) {
+                    int length = MessageFrames.checkPayloadLength(readBuffer.getInt(readBuffer.position()));
+                    int frameLength = MessageFrames.HEADER_LENGTH + length;
+                    if (readBuffer.remaining() < frameLength) {
+                        if (readBuffer.capacity() < frameLength) {
+                            ByteBuffer larger = ByteBuffer.allocate(frameLength);
+                            larger.put(readBuffer);
+                            readBuffer = larger;
+                            return;
+                        }
+                        break;
+                    }
+                    int payloadOffset = readBuffer.position() + MessageFrames.HEADER_LENGTH;
+                    NetworkMessage message = codec.decode(readBuffer.array(), payloadOffset, length);
+                    readBuffer.position(readBuffer.position() + frameLength);
+                    handleMessage(message);
+                    if (closed)
+                        return;
+                }
+            } catch (IOException | ClassNotFoundException ex) {
+                FAILED.log("Could not decode frame", this, ex);
+                close();
+                return;
+            }
+            readBuffer.compact();
+        }
+
+        /**
+         * Handles received message, logging client in if it hasn't done so yet.
+         * User lookup of login attempt doesn't block I/O thread, messages received meanwhile are handled once it completes.
+         * @param message Received message
+         */
+        private void handleMessage(NetworkMessage message) {
+            if (client != null) {
+                client.handleMessage(message);
+                return;
+            }
+            if (loginPending) {
+                pendingMessages.offer(message);
+                return;
+            }
+            if ("login".equals(message.getCommand())) {
+                loginPending = true;
+                CompletableFuture<String> role = Client.getLoginService().findRole(message.getArgs());
+                if (role.isDone())
+                    completeLogin(message, role.getNow(null));
+                else
+                    role.whenComplete((foundRole, ex) -> worker.execute(() -> {
+                        try {
+                            completeLogin(message, (ex == null ? foundRole : null));
+                        } catch (RuntimeException failure) {
+                            fail(failure);
+                        }
+                    }));
+                return;
+            }
+            NetworkMessage response = Client.createUnauthenticatedResponse(message, false, null);
+            if (response != null)
+                send(response);
+        }
+
+        /**
+         * Answers login attempt once its user lookup has completed, then handles messages received meanwhile
+         * @param message Login attempt
+         * @param role Role of found user or null if login has failed
+         */
+        private void completeLogin(NetworkMessage message, String role) {
+            loginPending = false;
+            if (closed)
+                return;
+            Client newClient = Client.createClientForRole(role, message.getArgs()[0], null);
+            MessageCodec negotiatedCodec = (newClient != null ? BinaryCodec.fromLoginArguments(message.getArgs()) : null);
+            NetworkMessage response = Client.createUnauthenticatedResponse(message, newClient != null, negotiatedCodec);
+            if (response != null)
+                send(response);
+            if (negotiatedCodec != null)
+                codec = negotiatedCodec;
+            if (newClient != null) {
+                client = newClient;
+                LOGGED_IN.log("Client logged in", this);
+                client.setCachedEventDetailsHash(EventDetails.hashFromLoginArguments(message.getArgs()));
+                sendStartingData();
+                client.setOutputSignal(this::signalOutput);
+                clientAdded.accept(client);
+            }
+            NetworkMessage pendingMessage;
+            while (!closed && !loginPending && (pendingMessage = pendingMessages.poll()) != null) {
+                handleMessage(pendingMessage);
+            }
+        }
+
+        /**
+         * Sends event details to client who has just logged in, see {@link Client#sendStartingData()}
+         */
+        private void sendStartingData() {
+            EventDetailsCache eventDetails = Server.getEventDetails();
+            if (eventDetails.isKnownBy(client.getCachedEventDetailsHash())) {
+                send(eventDetails.createUnchangedMessage());
+                return;
+            }
+            ByteBuffer frame = eventDetails.getFrame(codec);
+            if (frame == null) {
+                send(eventDetails.getMessage());
+                return;
+            }
+            writeQueue.offer(frame);
+            write();
+        }
+
+        /**
+         * Encodes message and writes it as soon as channel allows
+         * @param message Message to send
+         */
+        private void send(NetworkMessage message) {
+            try {
+                writeQueue.offer(ByteBuffer.wrap(FramedMessageStream.encode(codec, message)));
+            } catch (IOException ex) {
+                FAILED.log("Could not encode message", this, message.getCommand(), message.getCommunicationIdentifier(), ex);
+                return;
+            }
+            write();
+        }
+
+        /**
+         * Moves client's outgoing messages into write queue and writes as much as possible.
+         * Messages are left in client's outbox while previous frames are still waiting for channel,
+         * so that outbox capacity and overflow policy apply to slow connections.
+         */
+        void flushOutgoingMessages() {
+            outputRequested.set(false);
+            if (closed || client == null || !writeQueue.isEmpty())
+                return;
+            NetworkMessage message;
+            while ((message = client.pollOutgoingMessage()) != null) {
+                try {
+                    writeQueue.offer(ByteBuffer.wrap(FramedMessageStream.encode(codec, message)));
+                    client.markWritten(message);
+                } catch (IOException ex) {
+                    FAILED.log("Could not encode message", this, message.getCommand(), message.getCommunicationIdentifier(), ex);
+                }
+            }
+            if (client.isDisconnectRequested()) {
+                SLOW_CLIENT.log("Client could not keep up with outgoing messages, disconnecting", this);
+                close();
+                return;
+            }
+            write();
+        }
+
+        /**
+         * Writes queued frames until channel's send buffer is full; once everything is written,
+         * picks up messages which arrived in client's outbox meanwhile
+         */
+        void write() {
+            if (closed)
+                return;
+            try {
+                while (!writeQueue.isEmpty()) {
+                    ByteBuffer frame = writeQueue.peek();
+                    channel.write(frame);
+                    if (frame.hasRemaining()) {
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    writeQueue.poll();
+                }
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            } catch (IOException ex) {
+                FAILED.log("Could not write to channel", this, ex);
+                close();
+                return;
+            }
+            if (client != null && (client.getOutgoingMessagesCount() > 0 || client.isDisconnectRequested()))
+                signalOutput();
+        }
+
+        /**
+         * Closes this connection after unexpected error in handling it, so that other connections of I/O thread
+         * are not affected, eg. when message cannot be decoded by codec or is not understood by client
+         * @param ex Error thrown while handling connection
+         */
+        void fail(RuntimeException ex) {
+            HANDLING_FAILED.log("Could not handle connection, closing it", this, ex);
+            try {
+                close();
+            } catch (RuntimeException closeFailure) {
+                HANDLING_FAILED.log("Could not close connection", this, closeFailure);
+            }
+        }
+
+        /**
+         * Closes connection and removes its client from system
+         */
+        void close() {
+            if (closed)
+                return;
+            closed = true;
+            if (key != null)
+                key.cancel();
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                FAILED.log("Could not close channel", this, ex);
+            }
+            if (client != null) {
+                clientRemoved.accept(client);
+                client.removeFromSystem();
+            }
+            CLOSED.log("Connection has been closed", this);
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package server;
+
+import network_structures.MessageCodec;
+import network_structures.NetworkMessage;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+
+/**
+ * Message stream over continuous Java object streams, default format of blocking transport
+ */
+public class ObjectMessageStream implements MessageStream {
+
+    /** Time of writing messages into object stream; sizes are unknown, since stream is continuous */
+    private static final Metrics.Histogram encodingTime = Metrics.histogram("encode_ns", "codec", "object_stream");
+
+    private final ObjectOutputStream out;
+    private final ObjectInputStream in;
+    /** Underlying buffered output of connection, null if stream was created from existing object streams */
+    private final OutputStream rawOut;
+    /** Underlying input of connection, null if stream was created from existing object streams */
+    private final InputStream rawIn;
+
+    /**
+     * Creates object streams over connection's streams; object stream header is sent immediately
+     * @param rawOut Output of connection
+     * @param rawIn Input of connection
+     * @throws IOException When object stream header could not be exchanged
+     */
+    public ObjectMessageStream(OutputStream rawOut, InputStream rawIn) throws IOException {
+        this.rawOut = new BufferedOutputStream(rawOut);
+        this.rawIn = rawIn;
+        this.out = new ObjectOutputStream(this.rawOut);
+        this.out.flush();
+        this.in = new ObjectInputStream(rawIn);
+    }
+
+    /**
+     * Wraps existing object streams; such stream cannot switch codec
+     * @param out Stream for sending messages
+     * @param in Stream for receiving messages
+     */
+    public ObjectMessageStream(ObjectOutputStream out, ObjectInputStream in) {
+        this.out = out;
+        this.in = in;
+        this.rawOut = null;
+        this.rawIn = null;
+    }
+
+    @Override
+    public NetworkMessage read() throws IOException, ClassNotFoundException {
+        return (NetworkMessage) in.readObject();
+    }
+
+    /**
+     * Writes message; object stream is reset before every "update", so that changed event state is not
+     * sent as back reference to previously written objects
+     */
+    @Override
+    public void write(NetworkMessage message) throws IOException {
+        if ("update".equals(message.getCommand())) {
+            out.reset();
+        }
+        long start = System.nanoTime();
+        out.writeObject(message);
+        encodingTime.record(System.nanoTime() - start);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+
+    /**
+     * Switches to framed messages; object input stream does not read ahead of last received object,
+     * so frames can be read directly from connection once client has received response to its last object message
+     */
+    @Override
+    public MessageStream switchCodec(MessageCodec codec) throws IOException {
+        if (rawOut == null || rawIn == null)
+            throw new IOException("Codec of stream without underlying connection cannot be switched");
+        out.flush();
+        return new FramedMessageStream(new DataOutputStream(rawOut), new DataInputStream(rawIn), codec);
+    }
+}
@@ -0,0 +1,204 @@
+package server;
+
+import network_structures.NetworkMessage;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded queue of messages waiting for sending to single client.
+ * Consumer waits on it instead of polling and takes all queued messages at once, so they can be sent in one flush.
+ */
+public class Outbox {
+
+    /**
+     * Behaviour of outbox when message is offered while it is full
+     */
+    public enum OverflowPolicy {
+        /**
+         * Oldest queued "update" message is dropped, since newer update supersedes it; offered "update" is dropped
+         * if there is none queued. Other messages are never dropped - if there is no room for them, outbox is closed
+         * as with {@link #DISCONNECT}, so that client resynchronizes after reconnecting instead of missing them.
+         */
+        DROP_OLDEST_UPDATE,
+        /** Outbox is closed and its client should be disconnected as too slow */
+        DISCONNECT
+    }
+
+    /** Default maximum number of queued messages */
+    public static final int DEFAULT_CAPACITY = 256;
+
+    private final ArrayDeque<NetworkMessage> messages;
+    private final int capacity;
+    private final OverflowPolicy overflowPolicy;
+    private final ReentrantLock lock;
+    /** Signalled when message is added or outbox is closed */
+    private final Condition notEmpty;
+
+    private boolean closed;
+    private boolean overflowed;
+    private long droppedMessages;
+
+    /**
+     * @param capacity Maximum number of queued messages
+     * @param overflowPolicy Behaviour when message is offered while outbox is full
+     */
+    public Outbox(int capacity, OverflowPolicy overflowPolicy) {
+        this.capacity = Math.max(1, capacity);
+        this.overflowPolicy = overflowPolicy;
+        this.messages = new ArrayDeque<>(Math.min(this.capacity, 16));
+        this.lock = new ReentrantLock();
+        this.notEmpty = lock.newCondition();
+    }
+
+    /**
+     * Adds message to outbox, applying overflow policy if it is full
+     * @param message Message to add
+     * @return True if message has been queued, false if it was rejected
+     */
+    public boolean offer(NetworkMessage message) {
+        lock.lock();
+        try {
+            if (closed)
+                return false;
+            if (messages.size() >= capacity && !makeRoom(message))
+                return false;
+            messages.offer(message);
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Applies overflow policy to full outbox; must be called while holding lock
+     * @param message Message being offered
+     * @return True if there is room for message now, false otherwise
+     */
+    private boolean makeRoom(NetworkMessage message) {
+        ++droppedMessages;
+        if (overflowPolicy == OverflowPolicy.DROP_OLDEST_UPDATE) {
+            for (Iterator<NetworkMessage> it = messages.iterator(); it.hasNext();) {
+                if (isDroppable(it.next())) {
+                    it.remove();
+                    return true;
+                }
+            }
+            if (isDroppable(message))
+                return false;
+        }
+        overflowed = true;
+        closed = true;
+        notEmpty.signalAll();
+        return false;
+    }
+
+    /**
+     * @param message Queued or offered message
+     * @return True if message may be dropped under {@link OverflowPolicy#DROP_OLDEST_UPDATE}
+     */
+    private static boolean isDroppable(NetworkMessage message) {
+        return "update".equals(message.getCommand());
+    }
+
+    /**
+     * Waits until there is at least one message or outbox is closed, then moves all queued messages to given collection
+     * @param batch Collection to move messages to
+     * @return Number of moved messages, 0 only if outbox is closed and empty
+     * @throws InterruptedException If waiting thread has been interrupted
+     */
+    public int takeAll(Collection<NetworkMessage> batch) throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (messages.isEmpty() && !closed)
+                notEmpty.await();
+            int count = messages.size();
+            batch.addAll(messages);
+            messages.clear();
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes next message without waiting
+     * @return Next message or null if outbox is empty
+     */
+    public NetworkMessage poll() {
+        lock.lock();
+        try {
+            return messages.poll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops accepting new messages and wakes up waiting consumer; already queued messages can still be taken
+     */
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isEmpty() {
+        lock.lock();
+        try {
+            return messages.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return messages.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isClosed() {
+        lock.lock();
+        try {
+            return closed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return True if outbox has been closed because its consumer could not keep up (see {@link OverflowPolicy#DISCONNECT})
+     */
+    public boolean isOverflowed() {
+        lock.lock();
+        try {
+            return overflowed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return Number of messages dropped or rejected because outbox was full
+     */
+    public long getDroppedMessages() {
+        lock.lock();
+        try {
+            return droppedMessages;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -1,15 +1,12 @@
 package server;
 
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
-
 /**
  * System presenter account class
  */
 public class Presenter extends Client {
 
-    public Presenter(ObjectOutputStream out, ObjectInputStream in) {
-        super(out, in);
+    public Presenter(MessageStream stream) {
+        super(stream);
     }
 
     @Override
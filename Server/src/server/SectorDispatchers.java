@@ -0,0 +1,101 @@
+package server;
+
+import org.bson.types.ObjectId;
+
+/**
+ * Set of task queues, each consumed by its own system thread.
+ * Every sector is owned by exactly one queue, so all changes of its rooms (queue changes as well as reservations)
+ * are made by single thread, while different sectors are served in parallel.
+ */
+public class SectorDispatchers {
+
+    /** Commands whose args[0] contains id of sector they modify */
+    private static final String[] SECTOR_COMMANDS = new String[] {
+        "add_to_queue",
+        "remove_from_queue",
+        "grouping"
+    };
+
+    private final TaskDispatcher[] dispatchers;
+
+    /**
+     * @param count Number of task queues, at least 1
+     */
+    public SectorDispatchers(int count) {
+        this.dispatchers = new TaskDispatcher[Math.max(1, count)];
+        for (int i = 0; i < dispatchers.length; ++i)
+            dispatchers[i] = new TaskDispatcher();
+    }
+
+    /**
+     * @return Number of task queues
+     */
+    public int size() {
+        return dispatchers.length;
+    }
+
+    /**
+     * @param index Index of task queue, lower than {@link #size()}
+     * @return Task queue of given index
+     */
+    public TaskDispatcher get(int index) {
+        return dispatchers[index];
+    }
+
+    /**
+     * @param sectorId Id of sector
+     * @return Task queue owning given sector
+     */
+    public TaskDispatcher forSector(ObjectId sectorId) {
+        return dispatchers[indexOf(sectorId)];
+    }
+
+    /**
+     * Finds task queue for given task. Tasks modifying sector go to queue owning that sector;
+     * other tasks concern a group (eg. "view_tickets") and go to queue chosen by that group,
+     * so tasks of one group are completed in order of enqueuing.
+     * @param task Task to route
+     * @return Task queue which should complete given task
+     */
+    public TaskDispatcher forTask(Server.Task task) {
+        ObjectId sectorId = sectorOf(task);
+        if (sectorId != null)
+            return forSector(sectorId);
+        return dispatchers[indexOf(task.getData())];
+    }
+
+    /**
+     * Enqueues task in queue chosen by {@link #forTask(Server.Task)}
+     * @param task Task to enqueue
+     * @return True if task was enqueued, false otherwise
+     */
+    public boolean enqueue(Server.Task task) {
+        return forTask(task).enqueue(task);
+    }
+
+    /**
+     * @return Total number of tasks waiting for completion in all queues
+     */
+    public int getQueueDepth() {
+        int depth = 0;
+        for (TaskDispatcher dispatcher : dispatchers)
+            depth += dispatcher.getQueueDepth();
+        return depth;
+    }
+
+    private static ObjectId sectorOf(Server.Task task) {
+        String[] args = task.getArgs();
+        if (args == null || args.length == 0 || !ObjectId.isValid(args[0]))
+            return null;
+        for (String command : SECTOR_COMMANDS) {
+            if (command.equals(task.getCommand()))
+                return new ObjectId(args[0]);
+        }
+        return null;
+    }
+
+    private int indexOf(Object key) {
+        int hash = (key != null ? key.hashCode() : 0);
+        return Math.floorMod(hash ^ (hash >>> 16), dispatchers.length);
+    }
+}
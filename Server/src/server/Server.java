@@ -1,8 +1,6 @@
 package server;
 
-import com.mongodb.client.*;
 import network_structures.*;
-import org.bson.Document;
 import org.bson.types.ObjectId;
 
 import java.io.*;
@@ -11,13 +9,19 @@ import java.util.*;
 
 // Structure for task queues
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
 
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import queue.ReservationAllocator;
+import queue.RoomCheckScheduler;
 import queue.Sector;
 import queue.Room;
 import queue.TourGroup;
@@ -29,16 +33,18 @@ public class Server {
         return communicationStreamIdentifiers.getNext();
     }
 
-    /** Main server thread task queue */
-    private static final ConcurrentLinkedQueue<Task> receivedTasks = new ConcurrentLinkedQueue<>();
+    /** System thread task queues, one per system thread, each owning part of sectors */
+    private static SectorDispatchers receivedTasks = new SectorDispatchers(1);
 
     /** Collection containing all active client */
-    private static final Set<Client> clients = new HashSet<>();
+    private static final Set<Client> clients = ConcurrentHashMap.newKeySet();
     /** Port to activate server on */
     private static final int port = 9999;
+    /** Factory of threads running client handlers and client output loops */
+    private static ThreadFactory clientThreadFactory = ClientThreads.platform("client-");
 
     /** Database connection */
-    private static MongoDatabase database;
+    private static Storage storage;
 
     // private static MongoClient mongoClient;
 
@@ -54,6 +60,8 @@ public class Server {
      * 8. abandon_reservation - abandon one of my reservations (will result in penalty)
      * 9. update - request update on states of rooms and queues
      * 10. grouping - answer grouping call with decision or send update with changed decision
+     * 11. subscribe - start receiving changes of given topic ("update" or "view_tickets") pushed by server
+     * 12. unsubscribe - stop receiving changes of given topic
      */
     private static final String[] recognizedCommands = new String[] {
         "ping",
@@ -65,7 +73,9 @@ public class Server {
         "remove_from_queue",
         "abandon_reservation",
         "update",
-        "grouping"
+        "grouping",
+        "subscribe",
+        "unsubscribe"
     };
 
     /**
@@ -85,8 +95,8 @@ public class Server {
     private static final ConcurrentMap<ObjectId, Sector> sectors = new ConcurrentHashMap<>();
     /// TODO
     private static final EventInfoFixed eventInfoFixed = new EventInfoFixed();
-    /// TODO
-    private static final EventInfoUpdate eventInfoUpdate = new EventInfoUpdate();
+    /// Changing event state; its epoch is random, so versions known by clients of previous server instance are never taken for its own
+    private static final EventInfoUpdate eventInfoUpdate = new EventInfoUpdate(1 + ThreadLocalRandom.current().nextInt((1 << 24) - 1));
 
     /// Delay defining frequency for passive server to check for activation condition
     private static final long DATE_CHECKING_DELAY = 1000;
@@ -95,26 +105,63 @@ public class Server {
     /// Server state flag
     private static boolean eventHasStarted = false;
 
+    /** Handler of room reservations, woken up only by scheduled room checks */
+    private static final ReservationHandler reservationHandler = new ReservationHandler();
+    /** Publisher pushing event state changes to subscribed guides, created once event state is loaded */
+    private static UpdatePublisher updatePublisher;
+    /** Event details encoded once for all logging in clients, created once event layout is loaded */
+    private static EventDetailsCache eventDetails;
+    /** Journal recording queue and reservation changes, null if disabled */
+    private static Journal journal;
+    /** Groups restored from journal whose guides haven't logged in since restart, by login of their guide */
+    private static final ConcurrentMap<String, TourGroup> recoveredGroups = new ConcurrentHashMap<>();
+
     /**
      * Server socket thread, launching system thread (main thread) and connecting with clients
-     * @param args Unused currently
+     * @param args Startup options, see {@link ServerOptions}
      */
     public static void main(String[] args) {
-
+        ServerOptions options = ServerOptions.parse(args);
+        Log.setLevel(options.getLogLevel());
+        if (options.getTraceFile() != null) {
+            try {
+                Tracer.start(options.getTraceFile(), options.getTraceSampleEvery());
+                System.out.println("Tracing 1 of every " + options.getTraceSampleEvery() + " requests into " + options.getTraceFile());
+            } catch (IOException ex) {
+                System.err.println("[Server-main()]: IOException - " + ex.getMessage() + ", tracing is disabled");
+            }
+        }
         Logger mongoLogger = Logger.getLogger("org.mongodb.driver");
         mongoLogger.setLevel(Level.SEVERE);
+        storage = createStorage(options);
+
+        receivedTasks = new SectorDispatchers(options.getSectorThreads());
+        Client.configureOutboxes(options.getOutboxCapacity(), options.getOutboxOverflowPolicy());
+        Client.configureLoginService(new LoginService(
+                (options.getUsersFile() != null ? LoginService.fileDirectory(options.getUsersFile()) : storage::findUsers),
+                options.getLoginThreads(),
+                options.getLoginCacheTtlMs()
+        ));
+
+        serverSetup(options);
+        startMetrics(options);
+        updatePublisher = new UpdatePublisher(Server::getEventInfoUpdate, clients, UpdatePublisher.DEFAULT_WINDOW_MS);
+
+        if (options.getTransport() == ServerOptions.Transport.NIO) {
+            startMainServerTasks();
+            new NioTransport(port, options.getIoThreads(), ClientHandler.TIMEOUT_MS, clients::add, clients::remove).run();
+            return;
+        }
 
-        database = MongoClients.create().getDatabase("guideDB");
-
-        serverSetup();
+        clientThreadFactory = ClientThreads.of(options.getThreads(), "client-");
 
         try (ServerSocket serverSocket = new ServerSocket(port)) {
-            System.out.println("Listening on port " + serverSocket.getLocalPort() + "...\n");
+            System.out.println("Listening on port " + serverSocket.getLocalPort() + " (" + options.getThreads().toString().toLowerCase() + " threads)...\n");
 
-            new Thread(new MainServerTask()).start();
+            startMainServerTasks();
 
             while (true) {
-                new Thread(new ClientHandler(serverSocket.accept())).start();
+                clientThreadFactory.newThread(new ClientHandler(serverSocket.accept())).start();
             }
 
         } catch (IOException ex) {
@@ -130,58 +177,273 @@ public class Server {
         return eventInfoFixed;
     }
 
+    /**
+     * Getter for live event state, changed by system threads; readers which need consistent view should use
+     * {@link EventInfoUpdate#snapshot()}
+     * @return Live event state
+     */
     public static EventInfoUpdate getEventInfoUpdate() {
         return eventInfoUpdate;
     }
 
-    public static MongoDatabase getDatabase() {
-        return database;
+    /**
+     * @return Event details encoded for logging in clients
+     */
+    public static EventDetailsCache getEventDetails() {
+        return eventDetails;
+    }
+
+    /**
+     * @return Storage server has been started from
+     */
+    public static Storage getStorage() {
+        return storage;
     }
 
     /**
-     * Enqueues task for completion by system thread
+     * Creates storage selected by startup options
+     * @param options Startup options, see {@link ServerOptions#getStorage()} and {@link ServerOptions#getStorageDump()}
+     * @return Storage backed by database, or in-memory storage loaded from dump
+     */
+    private static Storage createStorage(ServerOptions options) {
+        if (options.getStorage() == ServerOptions.StorageType.DUMP) {
+            try {
+                Storage dump = InMemoryStorage.loadDump(options.getStorageDump());
+                System.out.println("Storage loaded from dump " + options.getStorageDump());
+                return dump;
+            } catch (IOException ex) {
+                throw new UncheckedIOException("Could not load storage dump " + options.getStorageDump(), ex);
+            }
+        }
+        return MongoStorage.connect(MongoStorage.DEFAULT_DATABASE);
+    }
+
+    /**
+     * Creates group of guide who has just logged in; if queues of guide's group have been restored from journal,
+     * that group is returned instead
+     * @param login Login of guide
+     * @return Group of guide
+     */
+    public static TourGroup createGroup(String login) {
+        TourGroup group = (login != null ? recoveredGroups.remove(login) : null);
+        if (group == null)
+            group = new TourGroup(login);
+        if (journal != null)
+            group.setJournal(journal);
+        return group;
+    }
+
+    /**
+     * Getter for system thread task queues, exposing their depth and wake-up latency counters
+     * @return System thread task queues
+     */
+    public static SectorDispatchers getTaskDispatchers() {
+        return receivedTasks;
+    }
+
+    /**
+     * Enqueues task for completion by system thread owning sector the task concerns
      * @param task Task for main thread
      */
     public static void enqueueTask(Task task) {
-        receivedTasks.offer(task);
+        receivedTasks.enqueue(task);
+    }
+
+    /**
+     * Starts one system thread per task queue
+     */
+    private static void startMainServerTasks() {
+        for (int i = 0; i < receivedTasks.size(); ++i)
+            new Thread(new MainServerTask(i), "main-server-task-" + i).start();
     }
 
     /**
-     * Initializes server
+     * Initializes server, building event state from venue layout in one pass
+     * @param options Startup options, see {@link ServerOptions#getLoaderThreads()} and {@link ServerOptions#getVenueSnapshot()}
      */
-    private static void serverSetup() {
-
-        FindIterable<Document> sectorsIterator = database.getCollection("sectors").find();
-        for (Document sectorIterator : sectorsIterator) {
-            ObjectId sectorId = sectorIterator.getObjectId("_id");
-            String sectorName = sectorIterator.getString("name");
-            String sectorAddress = sectorIterator.getString("address");
-            String sectorDescription = sectorIterator.getString("description");
-            FindIterable<Document> roomsOfSector = database.getCollection("sector" + sectorId.toString()).find();
-            Sector sector = new Sector(sectorId, sectorName, sectorAddress, sectorDescription);
+    private static void serverSetup(ServerOptions options) {
+
+        for (VenueLoader.SectorRecord sectorRecord : VenueLoader.load(storage, options.getLoaderThreads(), options.getVenueSnapshot())) {
+            ObjectId sectorId = sectorRecord.getId();
+            Sector sector = new Sector(sectorId, sectorRecord.getName(), sectorRecord.getAddress(), sectorRecord.getDescription());
             sectors.put(sectorId, sector);
             eventInfoFixed.getSectors().put(sectorId, sector.getInfoFixed());
-            eventInfoUpdate.getSectors().put(sectorId, sector.getInfoUpdate());
-            for (Document room : roomsOfSector) {
-                ObjectId roomId = room.getObjectId("_id");
-                String roomName = room.getString("name");
-                String roomLocation = room.getString("location");
-                String roomDescription = room.getString("description");
-                Room newRoom = new Room(roomId, roomName, roomLocation, roomDescription, 1, sector);
-                sector.addRoom(roomId, newRoom);
+            eventInfoUpdate.addSector(sector.getInfoUpdate());
+            for (VenueLoader.RoomRecord room : sectorRecord.getRooms()) {
+                Room newRoom = new Room(room.getId(), room.getName(), room.getLocation(), room.getDescription(), options.getRoomSlots(), sector);
+                newRoom.setCheckScheduler(reservationHandler);
+                registerRoomMetrics(newRoom);
+                sector.addRoom(room.getId(), newRoom);
+            }
+        }
+
+        if (options.getJournalDirectory() != null) {
+            try {
+                journal = new Journal(options.getJournalDirectory(), Journal.DEFAULT_COMPACTION_RECORDS);
+                restoreQueues(journal.getRecoveredState());
+                for (Sector sector : sectors.values())
+                    for (Room room : sector.getRoomsValues())
+                        room.setJournal(journal);
+                new Thread(journal, "queue-journal").start();
+            } catch (IOException ex) {
+                System.err.println("[Server-serverSetup()]: IOException - " + ex.getMessage() + ", queue journal is disabled");
+                journal = null;
             }
         }
 
-        MongoCollection<Document> serverVariablesCollection = database.getCollection("serverVariables");
-        Document serverVariables = serverVariablesCollection.find().first();
-        eventStartingDate = Objects.requireNonNull(serverVariables).getDate("serverOpenDate").getTime();
+        try {
+            eventDetails = EventDetailsCache.create(eventInfoFixed, options.getEventDetailsFile());
+        } catch (IOException ex) {
+            System.err.println("[Server-serverSetup()]: IOException - " + ex.getMessage() + ", event details are kept on heap");
+            try {
+                eventDetails = EventDetailsCache.create(eventInfoFixed, null);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        eventStartingDate = Objects.requireNonNull(
+                (options.getEventStart() != null ? options.getEventStart() : storage.getEventStart()),
+                "Event start is neither given in options nor stored");
+    }
+
+    /**
+     * Registers gauges of room's queue length and reservations, labelled with room's id and name
+     * @param room Room to register
+     */
+    private static void registerRoomMetrics(Room room) {
+        String id = room.getInfoFixed().getId().toString();
+        String name = room.getInfoFixed().getName();
+        Metrics.gauge("room_queue_length", () -> room.getInfoUpdate().getQueueSize().get(), "room", id, "name", name);
+        Metrics.gauge("room_reservations_given_total", room::getGivenReservationCount, "room", id, "name", name);
+        Metrics.gauge("room_reservations_expired_total", room::getExpiredReservationCount, "room", id, "name", name);
     }
 
     /**
-     * Main server task running on separate thread, responsible for system management
+     * Registers gauges of connected clients, their outboxes, login service, logger and journal, and starts metrics endpoint if requested
+     * @param options Startup options, see {@link ServerOptions#getMetricsPort()}
+     */
+    private static void startMetrics(ServerOptions options) {
+        Metrics.gauge("clients_connected", clients::size);
+        Metrics.gauge("outbox_depth_total", () -> {
+            long depth = 0;
+            for (Client client : clients)
+                depth += client.getOutgoingMessagesCount();
+            return depth;
+        });
+        Metrics.gauge("outbox_depth_max", () -> {
+            long depth = 0;
+            for (Client client : clients)
+                depth = Math.max(depth, client.getOutgoingMessagesCount());
+            return depth;
+        });
+        Metrics.gauge("outbox_dropped_connected_total", () -> {
+            long dropped = 0;
+            for (Client client : clients)
+                dropped += client.getDroppedMessagesCount();
+            return dropped;
+        });
+        LoginService login = Client.getLoginService();
+        Metrics.gauge("login_attempts_total", login::getAttemptCount);
+        Metrics.gauge("login_failures_total", login::getFailureCount);
+        Metrics.gauge("login_rejections_total", login::getRejectionCount);
+        Metrics.gauge("login_cache_hits_total", login::getCacheHitCount);
+        Metrics.gauge("login_pending", login::getPendingCount);
+        Metrics.gauge("login_latency_avg_ns", login::getAverageLatencyNanos);
+        Metrics.gauge("login_latency_max_ns", login::getMaxLatencyNanos);
+        Metrics.gauge("log_dropped_total", Log::getDroppedCount);
+        Metrics.gauge("log_suppressed_total", Log::getSuppressedCount);
+        Metrics.gauge("trace_spans_written_total", Tracer::getWrittenCount);
+        Metrics.gauge("trace_spans_dropped_total", Tracer::getDroppedCount);
+        if (options.getJournalDirectory() != null) {
+            Metrics.gauge("journal_disabled", () -> (journal == null || journal.isDisabled() ? 1 : 0));
+            Metrics.gauge("journal_records_written_total", () -> (journal != null ? journal.getWrittenRecords() : 0));
+            Metrics.gauge("journal_records_pending", () -> (journal != null ? journal.getPendingRecords() : 0));
+        }
+
+        if (options.getMetricsPort() < 0)
+            return;
+        try {
+            MetricsEndpoint endpoint = new MetricsEndpoint(options.getMetricsPort());
+            System.out.println("Metrics available at http://localhost:" + endpoint.getPort() + "/metrics");
+        } catch (IOException ex) {
+            System.err.println("[Server-startMetrics()]: IOException - " + ex.getMessage() + ", metrics endpoint is disabled");
+        }
+    }
+
+    /**
+     * Puts groups back into queues and reservations recorded in journal before restart.
+     * Restored groups are handed over to their guides once they log in again, see {@link #createGroup(String)}.
+     * @param state State recorded in journal
+     */
+    private static void restoreQueues(Journal.State state) {
+        int restoredTickets = 0;
+        for (Map.Entry<ObjectId, Journal.RoomState> entry : state.getRooms().entrySet()) {
+            Sector sector = sectors.get(entry.getValue().getSectorId());
+            Room room = (sector != null ? sector.getRoom(entry.getKey()) : null);
+            if (room == null)
+                continue;
+            for (String groupId : entry.getValue().getQueue()) {
+                if (room.restoreTicket(recoveredGroups.computeIfAbsent(groupId, TourGroup::new)))
+                    ++restoredTickets;
+            }
+            for (Map.Entry<String, Long> reservation : entry.getValue().getReservations().entrySet())
+                room.restoreReservation(recoveredGroups.computeIfAbsent(reservation.getKey(), TourGroup::new), reservation.getValue());
+        }
+        for (Map.Entry<String, Integer> penalty : state.getPenaltyLevels().entrySet())
+            recoveredGroups.computeIfAbsent(penalty.getKey(), TourGroup::new).restorePenaltyLevel(penalty.getValue());
+        // Penalties of restored groups may change before their guides log in again (eg. restored reservation expires)
+        for (TourGroup group : recoveredGroups.values())
+            group.setJournal(journal);
+        if (!recoveredGroups.isEmpty())
+            System.out.println("Restored " + restoredTickets + " queue tickets of " + recoveredGroups.size() + " groups from journal");
+    }
+
+    /**
+     * Main server task running on separate thread, responsible for system management of sectors owned by its
+     * task queue; there is one such task per queue in {@link Server#receivedTasks}
      */
     private static class MainServerTask implements Runnable {
 
+        /** Index of task queue of this task */
+        private final int index;
+        /** Allocator of reservations in rooms owned by this task, see {@link ReservationAllocator} */
+        private final ReservationAllocator allocator;
+        /** Time tasks wait in task queue of this task, in nanoseconds */
+        private final Metrics.Histogram waitTime;
+        /** Histograms of time spent on tasks, by command; shared by all main server tasks */
+        private static final ConcurrentHashMap<String, Metrics.Histogram> serviceTimes = new ConcurrentHashMap<>();
+        private static final Log.Site TASK_FAILED = Log.site("MainServerTask.run", Log.Level.ERROR);
+        private static final Log.Site INTERRUPTED = Log.site("MainServerTask.run", Log.Level.INFO);
+
+        /**
+         * @param index Index of task queue of this task
+         */
+        MainServerTask(int index) {
+            this.index = index;
+            this.allocator = new ReservationAllocator();
+            this.waitTime = Metrics.histogram("task_wait_ns", "thread", String.valueOf(index));
+            Metrics.gauge("task_queue_depth", () -> receivedTasks.get(index).getQueueDepth(), "thread", String.valueOf(index));
+            Metrics.gauge("reservation_allocations_total", allocator::getAllocationCount, "thread", String.valueOf(index));
+        }
+
+        /**
+         * Completes task, recording time it waited in task queue and time spent on it, also in its span if it is traced
+         * @param task Task to complete
+         */
+        private void handleTimedTask(Task task) {
+            long start = System.nanoTime();
+            waitTime.record(start - task.getEnqueuedNanos());
+            if (task.trace != null)
+                task.trace.markHandling(task.getEnqueuedNanos(), start, index);
+            handleTask(task);
+            long end = System.nanoTime();
+            if (task.trace != null)
+                task.trace.markHandled(end);
+            serviceTimes.computeIfAbsent(task.getCommand(), (command) -> Metrics.histogram("task_service_ns", "command", command))
+                    .record(end - start);
+        }
+
         /**
          * Completes given task if possible, handles errors otherwise.
          * List of recognized commands can be found in {@link Server#recognizedCommands}.
@@ -195,9 +457,18 @@ public class Server {
                 case "remove_from_queue": {
                     clientRequestRemoveFromQueue(task);
                 } break;
+                case "grouping": {
+                    clientRespondGrouping(task);
+                } break;
                 case "view_tickets": {
                     clientRequestViewTickets(task);
                 } break;
+                case "tickets_changed": {
+                    pushTicketsIfChanged(task);
+                } break;
+                case "check_room": {
+                    reservationHandler.checkRoom((ReservationHandler.RoomCheck) task.getData(), allocator);
+                } break;
                 default : {
                     clientInvalidCommand(task);
                 }
@@ -236,6 +507,30 @@ public class Server {
             ));
         }
 
+        /**
+         * Records decision of group invited to grouping round: args[0] should be sector ObjectId, args[1] room ObjectId
+         * and args[2] "true" if group agrees to visit room together with others
+         * @param task Task containing group as data
+         */
+        private static void clientRespondGrouping(Task task) {
+            Room room = sectors.get(
+                    new ObjectId(task.getArgs()[0])
+            ).getRoom(
+                    new ObjectId(task.getArgs()[1])
+            );
+            task.getResponseInterface().respond(new NetworkMessage(
+                    "grouping",
+                    new String[] {
+                            String.valueOf(room.respondToGrouping(
+                                    (TourGroup)task.getData(),
+                                    task.getArgs().length > 2 && Boolean.parseBoolean(task.getArgs()[2])
+                            ))
+                    },
+                    null,
+                    task.getCommunicationIdentifier()
+            ));
+        }
+
         private static void clientRequestViewTickets(Task task) {
             Room[] rooms = ((TourGroup)task.getData()).getTicketRooms();
             QueueInfo[] queueInfo = new QueueInfo[rooms.length];
@@ -254,6 +549,21 @@ public class Server {
             ));
         }
 
+        /**
+         * Sends positions in queues to subscribed guide if any of rooms changed since last push holds group's ticket;
+         * issued internally by {@link UpdatePublisher}, never by clients
+         * @param task Task containing changed room ids in args and group in data
+         */
+        private static void pushTicketsIfChanged(Task task) {
+            Set<String> changedRoomIds = new HashSet<>(Arrays.asList(task.getArgs()));
+            for (Room room : ((TourGroup)task.getData()).getTicketRooms()) {
+                if (changedRoomIds.contains(room.getInfoFixed().getId().toString())) {
+                    clientRequestViewTickets(task);
+                    return;
+                }
+            }
+        }
+
         private static void clientInvalidCommand(Task task) {
             task.getResponseInterface().respond(
                     new NetworkMessage(
@@ -275,27 +585,47 @@ public class Server {
                 try { Thread.sleep(DATE_CHECKING_DELAY); } catch (InterruptedException e) { System.out.println(e.getMessage()); }
             }
 
-            eventHasStarted = true;
-            System.out.println("Event has started! All queues are open!");
+            if (index == 0) {
+                eventHasStarted = true;
+                System.out.println("Event has started! All queues are open!");
 
-            // Checking if every sector and room has been loaded properly //
-            for (Sector sector : sectors.values()) {
-                System.out.println(sector.getInfoFixed().getName() + ":");
-                for (Room room : sector.getRoomsValues()) {
-                    System.out.println("\tRoom " + room.getInfoFixed().getName());
-                    System.out.println("\t\tRoom State: " + room.getState());
+                // Checking if every sector and room has been loaded properly //
+                for (Sector sector : sectors.values()) {
+                    System.out.println(sector.getInfoFixed().getName() + ":");
+                    for (Room room : sector.getRoomsValues()) {
+                        System.out.println("\tRoom " + room.getInfoFixed().getName());
+                        System.out.println("\t\tRoom State: " + room.getState());
+                    }
                 }
-            }
 
-            // fixme Launching reservation handler thread, should end when server is closed but server works in infinite loop
-            ReservationHandler reservationHandler = new ReservationHandler(sectors);
-            new Thread(reservationHandler).start();
+                // fixme Launching reservation handler thread, should end when server is closed but server works in infinite loop
+                new Thread(reservationHandler).start();
+                new Thread(updatePublisher, "update-publisher").start();
+            }
 
-            // Main server task queue
+            // Task queue of this thread, thread is parked until next task arrives
+            TaskDispatcher dispatcher = receivedTasks.get(index);
             while (true) {
-                Task task = receivedTasks.poll();
-                if (task != null)
-                    handleTask(task);
+                try {
+                    Task task = dispatcher.take();
+                    try {
+                        handleTimedTask(task);
+                    } catch (RuntimeException ex) {
+                        TASK_FAILED.log("Task could not be completed", null, task.getCommand(), task.getCommunicationIdentifier(), ex);
+                        task.failTrace();
+                    }
+                    if (dispatcher.getQueueDepth() == 0 || allocator.isBatchFull())
+                        allocator.allocate();
+                } catch (InterruptedException e) {
+                    INTERRUPTED.log("Main server task " + index + " has been interrupted");
+                    if (index == 0) {
+                        reservationHandler.stop();
+                        updatePublisher.stop();
+                        if (journal != null)
+                            journal.stop();
+                    }
+                    return;
+                }
             }
         }
     }
@@ -307,6 +637,10 @@ public class Server {
 
         /** Client to respond */
         private final ClientHandler.RespondToClientInterface messageResponseInterface;
+        /** Time this task has been enqueued at, in nanoseconds */
+        private long enqueuedNanos;
+        /** Span of request this task has been created for, null if request is not traced */
+        private Tracer.Span trace;
 
         /**
          * @param message Base message to copy content from
@@ -336,6 +670,37 @@ public class Server {
         public ClientHandler.RespondToClientInterface getResponseInterface() {
             return messageResponseInterface;
         }
+
+        /**
+         * Marks this task as enqueued at current time
+         */
+        void markEnqueued() {
+            this.enqueuedNanos = System.nanoTime();
+        }
+
+        /**
+         * @return Time this task has been enqueued at, in nanoseconds
+         */
+        long getEnqueuedNanos() {
+            return enqueuedNanos;
+        }
+
+        /**
+         * @param trace Span of request this task has been created for, null if request is not traced
+         */
+        void setTrace(Tracer.Span trace) {
+            this.trace = trace;
+        }
+
+        /**
+         * Finishes span of request this task has been created for as failed, if request is traced
+         */
+        void failTrace() {
+            if (trace != null) {
+                trace.markFailed();
+                Tracer.finish(trace);
+            }
+        }
     }
 
     /**
@@ -345,24 +710,33 @@ public class Server {
         /// TODO
         public static final int TIMEOUT_MS = 15 * 60 * 1000;
 
+        private static final Log.Site CONNECTED = Log.site("ClientHandler.run", Log.Level.INFO);
+        private static final Log.Site CLOSED = Log.site("ClientHandler.run", Log.Level.INFO);
+        private static final Log.Site NOT_RESPONDING = Log.site("ClientHandler.run", Log.Level.WARN);
+        private static final Log.Site LOST = Log.site("ClientHandler.run", Log.Level.WARN);
+        private static final Log.Site FAILED = Log.site("ClientHandler.run", Log.Level.ERROR);
+
         /** Socket connected to client */
         private final Socket socket;
+        /** Socket address and port of client, resolved once since host name lookup may block */
+        private final String description;
 
         /**
          * @param socket Socket connected to client
          */
         public ClientHandler(Socket socket) {
             this.socket = socket;
+            this.description = socket.getInetAddress().getHostAddress() + ":" + socket.getPort();
             // this.clientMessageQueue = new ConcurrentLinkedQueue<>();
         }
 
         /**
          * Information about specific client's socket for use by admin
-         * @return String containing socket address, host name and port used
+         * @return String containing socket address and port used
          */
         @Override
         public String toString() {
-            return socket.getInetAddress().getHostName() + ":" + socket.getPort();
+            return description;
         }
 
         /**
@@ -370,53 +744,58 @@ public class Server {
          */
         @Override
         public void run() {
-            ObjectOutputStream out = null;
-            ObjectInputStream in = null;
+            MessageStream stream = null;
             Client client = null;
             Thread outputThread = null;
             try {
-                System.out.println("Client (" + this.toString() + ") connected!");
+                CONNECTED.log("Client connected", this);
 
                 this.socket.setSoTimeout(TIMEOUT_MS);
-                out = new ObjectOutputStream(this.socket.getOutputStream());
-                in = new ObjectInputStream(this.socket.getInputStream());
+                stream = new ObjectMessageStream(this.socket.getOutputStream(), this.socket.getInputStream());
 
                 while (client == null) {
-                    client = Client.createSpecifiedClient(out, in);
+                    client = Client.createSpecifiedClient(stream);
                 }
                 client.sendStartingData();
                 clients.add(client);
-                (outputThread = new Thread(client::handlingOutput)).start();
+                (outputThread = clientThreadFactory.newThread(client::handlingOutput)).start();
                 client.handlingInput();
             } catch (SocketTimeoutException ex) {
-                System.err.println("Client (" + this.toString() + ") is not responding!");
+                NOT_RESPONDING.log("Client is not responding", this);
                 if (client != null && outputThread != null) {
                     client.addOutgoingMessage(new NetworkMessage("timeout", null, null, 0));
                     client.stopOutputThread();
                     try {
                         outputThread.join();
                     } catch (InterruptedException e) {
-                        System.err.println("[ClientHandler-SocketTimeoutException]: InterruptedException - " + ex.getMessage());
+                        FAILED.log("Interrupted while waiting for output thread", this, e);
+                    }
+                } else if (client != null) {
+                    try {
+                        client.sendDirectly(new NetworkMessage("time_out", null, null, 0));
+                    } catch (IOException e) {
+                        FAILED.log("Could not send timeout message", this, e);
                     }
-                } else if (out != null) {
+                } else if (stream != null) {
                     try {
-                        out.writeObject(new NetworkMessage("time_out", null, null, 0));
+                        stream.write(new NetworkMessage("time_out", null, null, 0));
+                        stream.flush();
                     } catch (IOException e) {
-                        System.err.println("[ClientHandler-SocketTimeoutException]: IOException - " + ex.getMessage());
+                        FAILED.log("Could not send timeout message", this, e);
                     }
                 }
             } catch (EOFException ex) {
-                System.err.println("Connection with client (" + this.toString() + ") has been lost!");
+                LOST.log("Connection with client has been lost", this);
                 if (client != null && outputThread != null) {
                     client.stopOutputThread();
                     try {
                         outputThread.join();
                     } catch (InterruptedException e) {
-                        System.err.println("[ClientHandler-EOFException]: InterruptedException - " + ex.getMessage());
+                        FAILED.log("Interrupted while waiting for output thread", this, e);
                     }
                 }
             } catch (IOException ex) {
-                System.err.println("[ClientHandler]: IOException - " + ex.getMessage());
+                FAILED.log("Connection failed", this, ex);
             } finally {
                 if (client != null) {
                     clients.remove(client);
@@ -425,9 +804,9 @@ public class Server {
                 try {
                     socket.close();
                 } catch(IOException ex) {
-                    System.err.println("[ClientHandler-socket.close()]: IOException - " + ex.getMessage());
+                    FAILED.log("Could not close socket", this, ex);
                 }
-                System.out.println("Connection with (" + this.toString() + ") has been closed!");
+                CLOSED.log("Connection has been closed", this);
             }
         }
 
@@ -456,55 +835,126 @@ public class Server {
         }
     }
 
-    private static class ReservationHandler implements Runnable {
-        private final ConcurrentLinkedQueue<NetworkMessage> incomingMessages;
-        private final Map<ObjectId, Sector> sectors;
+    /**
+     * Reservation handler keeping track of pending room checks. Checks due now are passed directly to system thread
+     * owning the room, checks due later (reservation expiration) are kept by this handler's thread until they are due.
+     * Rooms are checked only by their owning system thread, see {@link SectorDispatchers}.
+     */
+    private static class ReservationHandler implements Runnable, RoomCheckScheduler {
+        /** Pending delayed room checks, ordered by time they are due at */
+        private final DelayQueue<RoomCheck> pendingChecks;
+        /** Rooms with immediate check already pending, used to coalesce repeated queue changes */
+        private final Set<Room> pendingImmediateChecks;
         private final AtomicBoolean continueRunning;
+        /** Thread this handler is running on */
+        private volatile Thread thread;
 
-        public ReservationHandler(Map<ObjectId, Sector> sectors) {
-            continueRunning = new AtomicBoolean(true);
-            this.incomingMessages = new ConcurrentLinkedQueue<>();
-            this.sectors = sectors;
+        public ReservationHandler() {
+            this.continueRunning = new AtomicBoolean(true);
+            this.pendingChecks = new DelayQueue<>();
+            this.pendingImmediateChecks = ConcurrentHashMap.newKeySet();
         }
 
         public void stop() {
             continueRunning.set(false);
+            Thread thread = this.thread;
+            if (thread != null)
+                thread.interrupt();
+        }
+
+        @Override
+        public void scheduleCheck(Room room, long checkTime) {
+            if (room == null)
+                return;
+            if (checkTime <= System.currentTimeMillis()) {
+                if (pendingImmediateChecks.add(room))
+                    dispatch(new RoomCheck(room, checkTime, true));
+            } else {
+                pendingChecks.offer(new RoomCheck(room, checkTime, false));
+            }
+        }
+
+        /**
+         * Passes due check to system thread owning checked room
+         * @param check Check to pass
+         */
+        private void dispatch(RoomCheck check) {
+            receivedTasks.forSector(check.getRoom().getInfoFixed().getSectorId())
+                    .enqueue(new Task("check_room", null, check, 0, (message) -> {}));
+        }
+
+        /**
+         * Releases expired reservations of given room and marks it for next reservation allocation;
+         * must be called by system thread owning the room
+         * @param check Check of room
+         * @param allocator Allocator of system thread owning the room
+         */
+        void checkRoom(RoomCheck check, ReservationAllocator allocator) {
+            Room room = check.getRoom();
+            if (check.isImmediate())
+                pendingImmediateChecks.remove(room);
+            if (room.getState() == Room.State.RESERVED) {
+                Room.Reservation[] expiredReservations = room.updateReservationStatus();
+                for (Room.Reservation reservation : expiredReservations)
+                    reservation.getGroup().sendToAllGuides(new NetworkMessage(
+                            "reservation_expired",
+                            new String[] {
+                                    reservation.getReservedRoomInfoFixed().getSectorId().toString(),
+                                    reservation.getReservedRoomInfoFixed().getId().toString()
+                            },
+                            null,
+                            0
+                    ));
+            }
+            allocator.markChanged(room);
         }
 
         /**
-         * Procedure for assigning reservations to given
+         * Procedure for passing delayed checks to system threads once they are due
          */
         @Override
         public void run() {
-            if (sectors == null)
-                return;
+            thread = Thread.currentThread();
             while (continueRunning.get()) {
-                for (Sector s : sectors.values()) {
-                    for (Room r : s.getRoomsValues()) {
-                        switch (r.getState()) {
-                            case OPEN: {
-                                r.giveReservationsToAll();
-                            } break;
-                            case RESERVED: {
-                                Room.Reservation[] expiredReservations = r.updateReservationStatus();
-                                for (Room.Reservation reservation : expiredReservations)
-                                    reservation.getGroup().sendToAllGuides(new NetworkMessage(
-                                            "reservation_expired",
-                                            new String[] {
-                                                    reservation.getReservedRoomInfoFixed().getSectorId().toString(),
-                                                    reservation.getReservedRoomInfoFixed().getId().toString()
-                                            },
-                                            null,
-                                            0
-                                    ));
-                            } break;
-                            case TAKEN: {
-
-                            } break;
-                        }
-                    }
+                try {
+                    dispatch(pendingChecks.take());
+                } catch (InterruptedException e) {
+                    break;
                 }
             }
         }
+
+        /**
+         * Room check due at given time
+         */
+        private static class RoomCheck implements Delayed {
+            private final Room room;
+            private final long checkTime;
+            private final boolean immediate;
+
+            RoomCheck(Room room, long checkTime, boolean immediate) {
+                this.room = room;
+                this.checkTime = checkTime;
+                this.immediate = immediate;
+            }
+
+            Room getRoom() {
+                return room;
+            }
+
+            boolean isImmediate() {
+                return immediate;
+            }
+
+            @Override
+            public long getDelay(TimeUnit unit) {
+                return unit.convert(checkTime - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+            }
+
+            @Override
+            public int compareTo(Delayed other) {
+                return Long.compare(checkTime, ((RoomCheck) other).checkTime);
+            }
+        }
     }
 }
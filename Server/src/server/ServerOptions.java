@@ -0,0 +1,304 @@
+package server;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Server startup options, parsed from command line arguments in form of <b>--name=value</b>
+ */
+public class ServerOptions {
+
+    /**
+     * Available modes of communication with clients
+     */
+    public enum Transport {
+        /** Two blocking threads per client, continuous object streams */
+        BLOCKING,
+        /** Small fixed pool of selector threads, length-prefixed message frames */
+        NIO
+    }
+
+    /**
+     * Available kinds of threads running blocking client loops
+     */
+    public enum Threads {
+        /** Operating system thread per loop */
+        PLATFORM,
+        /** Virtual thread per loop, blocking reads do not occupy operating system thread */
+        VIRTUAL
+    }
+
+    /**
+     * Available sources of venue layout, users and server variables
+     */
+    public enum StorageType {
+        /** Local MongoDB database */
+        MONGO,
+        /** Database dump loaded into memory at startup, see {@link InMemoryStorage} */
+        DUMP
+    }
+
+    private Transport transport = Transport.BLOCKING;
+    private Threads threads = Threads.PLATFORM;
+    private int ioThreads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    private int sectorThreads = Runtime.getRuntime().availableProcessors();
+    private int outboxCapacity = Outbox.DEFAULT_CAPACITY;
+    private Outbox.OverflowPolicy outboxOverflowPolicy = Outbox.OverflowPolicy.DROP_OLDEST_UPDATE;
+    private int loginThreads = LoginService.DEFAULT_THREADS;
+    private long loginCacheTtlMs = LoginService.DEFAULT_CACHE_TTL_MS;
+    private int roomSlots = 1;
+    private int metricsPort = -1;
+    private Log.Level logLevel = Log.Level.INFO;
+    private Path traceFile = null;
+    private int traceSampleEvery = Tracer.DEFAULT_SAMPLE_EVERY;
+    private int loaderThreads = Runtime.getRuntime().availableProcessors();
+    private Path venueSnapshot = null;
+    private Path journalDirectory = null;
+    private Path eventDetailsFile = null;
+    private StorageType storage = StorageType.MONGO;
+    private Path storageDump = Paths.get("Database", "guideDB");
+    private Path usersFile = null;
+    private Long eventStart = null;
+
+    /**
+     * Parses startup options; unrecognized options are reported and ignored
+     * @param args Command line arguments
+     * @return Parsed options
+     */
+    public static ServerOptions parse(String[] args) {
+        ServerOptions options = new ServerOptions();
+        if (args == null)
+            return options;
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            String name = (separator >= 0 ? arg.substring(0, separator) : arg);
+            String value = (separator >= 0 ? arg.substring(separator + 1) : "");
+            try {
+                switch (name) {
+                    case "--transport": {
+                        options.transport = Transport.valueOf(value.toUpperCase());
+                    } break;
+                    case "--threads": {
+                        options.threads = Threads.valueOf(value.toUpperCase());
+                    } break;
+                    case "--io-threads": {
+                        options.ioThreads = Math.max(1, Integer.parseInt(value));
+                    } break;
+                    case "--sector-threads": {
+                        options.sectorThreads = Math.max(1, Integer.parseInt(value));
+                    } break;
+                    case "--outbox-capacity": {
+                        options.outboxCapacity = Math.max(1, Integer.parseInt(value));
+                    } break;
+                    case "--outbox-overflow": {
+                        options.outboxOverflowPolicy = Outbox.OverflowPolicy.valueOf(value.toUpperCase());
+                    } break;
+                    case "--login-threads": {
+                        options.loginThreads = Math.max(1, Integer.parseInt(value));
+                    } break;
+                    case "--login-cache-ttl": {
+                        options.loginCacheTtlMs = Math.max(0, Long.parseLong(value));
+                    } break;
+                    case "--metrics-port": {
+                        options.metricsPort = Math.max(-1, Integer.parseInt(value));
+                    } break;
+                    case "--log-level": {
+                        options.logLevel = Log.Level.valueOf(value.toUpperCase());
+                    } break;
+                    case "--trace-file": {
+                        options.traceFile = (value.isEmpty() ? null : Paths.get(value));
+                    } break;
+                    case "--trace-sample": {
+                        options.traceSampleEvery = Math.max(1, Integer.parseInt(value));
+                    } break;
+                    case "--room-slots": {
+                        options.roomSlots = Math.max(1, Integer.parseInt(value));
+                    } break;
+                    case "--loader-threads": {
+                        options.loaderThreads = Math.max(1, Integer.parseInt(value));
+                    } break;
+                    case "--venue-snapshot": {
+                        options.venueSnapshot = (value.isEmpty() ? null : Paths.get(value));
+                    } break;
+                    case "--journal": {
+                        options.journalDirectory = (value.isEmpty() ? null : Paths.get(value));
+                    } break;
+                    case "--event-details-file": {
+                        options.eventDetailsFile = (value.isEmpty() ? null : Paths.get(value));
+                    } break;
+                    case "--storage": {
+                        options.storage = StorageType.valueOf(value.toUpperCase());
+                    } break;
+                    case "--storage-dump": {
+                        options.storageDump = Paths.get(value);
+                    } break;
+                    case "--users": {
+                        options.usersFile = (value.isEmpty() ? null : Paths.get(value));
+                    } break;
+                    case "--event-start": {
+                        options.eventStart = ("now".equals(value) ? System.currentTimeMillis() : Long.parseLong(value));
+                    } break;
+                    default: {
+                        System.err.println("[ServerOptions]: Unrecognized option - " + arg);
+                    }
+                }
+            } catch (IllegalArgumentException ex) {
+                System.err.println("[ServerOptions]: Invalid value of option - " + arg);
+            }
+        }
+        return options;
+    }
+
+    /**
+     * @return Mode of communication with clients
+     */
+    public Transport getTransport() {
+        return transport;
+    }
+
+    /**
+     * @return Kind of threads running blocking client loops, used by blocking transport
+     */
+    public Threads getThreads() {
+        return threads;
+    }
+
+    /**
+     * @return Number of selector threads used by non-blocking transport
+     */
+    public int getIoThreads() {
+        return ioThreads;
+    }
+
+    /**
+     * @return Number of system threads, each owning part of sectors
+     */
+    public int getSectorThreads() {
+        return sectorThreads;
+    }
+
+    /**
+     * @return Maximum number of messages waiting for sending to single client
+     */
+    public int getOutboxCapacity() {
+        return outboxCapacity;
+    }
+
+    /**
+     * @return Behaviour when message is added to full client outbox
+     */
+    public Outbox.OverflowPolicy getOutboxOverflowPolicy() {
+        return outboxOverflowPolicy;
+    }
+
+    /**
+     * @return Number of threads looking up users at login
+     */
+    public int getLoginThreads() {
+        return loginThreads;
+    }
+
+    /**
+     * @return Time users stay cached after successful login, in milliseconds; 0 if cache is disabled
+     */
+    public long getLoginCacheTtlMs() {
+        return loginCacheTtlMs;
+    }
+
+    /**
+     * @return Number of threads reading room collections at startup
+     */
+    public int getLoaderThreads() {
+        return loaderThreads;
+    }
+
+    /**
+     * @return Path of venue layout snapshot, used instead of database if it exists and written otherwise;
+     * null if snapshot is disabled. Snapshot is reloaded only when sectors or their numbers of rooms in database
+     * differ from it (see {@link VenueLoader#load}), so file must be deleted whenever layout changes otherwise,
+     * eg. when rooms are renamed or replaced.
+     */
+    public Path getVenueSnapshot() {
+        return venueSnapshot;
+    }
+
+    /**
+     * @return Directory of queue journal restoring queues and reservations after crash, null if journal is disabled
+     */
+    public Path getJournalDirectory() {
+        return journalDirectory;
+    }
+
+    /**
+     * @return File event details frames are memory-mapped from, null if they are kept on heap
+     */
+    public Path getEventDetailsFile() {
+        return eventDetailsFile;
+    }
+
+    /**
+     * @return Port of local metrics endpoint (0 for any free port), -1 if endpoint is disabled
+     */
+    public int getMetricsPort() {
+        return metricsPort;
+    }
+
+    /**
+     * @return Lowest level of entries written by {@link Log}
+     */
+    public Log.Level getLogLevel() {
+        return logLevel;
+    }
+
+    /**
+     * @return File spans of traced requests are appended to, null if tracing is disabled
+     */
+    public Path getTraceFile() {
+        return traceFile;
+    }
+
+    /**
+     * @return Number of requests per one traced request
+     */
+    public int getTraceSampleEvery() {
+        return traceSampleEvery;
+    }
+
+    /**
+     * @return Number of groups every room takes at once; rooms with more than one slot give reservations
+     * through grouping rounds
+     */
+    public int getRoomSlots() {
+        return roomSlots;
+    }
+
+    /**
+     * @return Source of venue layout, users and server variables
+     */
+    public StorageType getStorage() {
+        return storage;
+    }
+
+    /**
+     * @return Directory of database dump loaded when storage is {@link StorageType#DUMP}
+     */
+    public Path getStorageDump() {
+        return storageDump;
+    }
+
+    /**
+     * @return File with users (one "login password role" per line) used instead of database at login,
+     * null if users are looked up in database
+     */
+    public Path getUsersFile() {
+        return usersFile;
+    }
+
+    /**
+     * @return Time event starts at (in milliseconds since epoch) used instead of database setting,
+     * null if it is read from database
+     */
+    public Long getEventStart() {
+        return eventStart;
+    }
+}
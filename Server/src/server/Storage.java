@@ -0,0 +1,39 @@
+package server;
+
+import org.bson.types.ObjectId;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Persistent data server starts from: venue layout, users and server variables.
+ * Implementations: {@link MongoStorage} (live database) and {@link InMemoryStorage} (eg. loaded from database dump).
+ */
+public interface Storage {
+
+    /**
+     * Reads venue layout
+     * @param threads Number of threads implementation may use for reading
+     * @return Sectors with their rooms
+     */
+    List<VenueLoader.SectorRecord> loadVenue(int threads);
+
+    /**
+     * Counts rooms of venue without reading them, used to check whether venue snapshot is up to date
+     * @return Number of rooms of every sector, by sector id
+     */
+    Map<ObjectId, Integer> countVenueRooms();
+
+    /**
+     * Looks up users by login; used by {@link LoginService} as its user directory
+     * @param logins Logins to look up
+     * @return Found users by login, missing logins are absent
+     */
+    Map<String, LoginService.UserRecord> findUsers(Collection<String> logins);
+
+    /**
+     * @return Time event starts at, in milliseconds since epoch; null if it is not set
+     */
+    Long getEventStart();
+}
@@ -0,0 +1,82 @@
+package server;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Blocking hand-off between client threads and system thread.
+ * Consumer thread is parked while there are no tasks and woken up as soon as one is enqueued.
+ */
+public class TaskDispatcher {
+
+    /** Tasks waiting for completion */
+    private final LinkedBlockingQueue<Server.Task> tasks;
+
+    /** Number of tasks taken by consumer thread */
+    private final LongAdder dispatchedTasks;
+    /** Sum of times between enqueuing and taking tasks, in nanoseconds */
+    private final LongAdder totalWakeUpLatency;
+    /** Longest time between enqueuing and taking task, in nanoseconds */
+    private final AtomicLong maxWakeUpLatency;
+
+    public TaskDispatcher() {
+        this.tasks = new LinkedBlockingQueue<>();
+        this.dispatchedTasks = new LongAdder();
+        this.totalWakeUpLatency = new LongAdder();
+        this.maxWakeUpLatency = new AtomicLong(0);
+    }
+
+    /**
+     * Enqueues task and wakes up consumer thread if it is waiting
+     * @param task Task to enqueue
+     * @return True if task was enqueued, false otherwise
+     */
+    public boolean enqueue(Server.Task task) {
+        task.markEnqueued();
+        return tasks.offer(task);
+    }
+
+    /**
+     * Takes next task, waiting for one if necessary
+     * @return Next task in order of enqueuing
+     * @throws InterruptedException If consumer thread has been interrupted while waiting
+     */
+    public Server.Task take() throws InterruptedException {
+        Server.Task task = tasks.take();
+        long latency = System.nanoTime() - task.getEnqueuedNanos();
+        dispatchedTasks.increment();
+        totalWakeUpLatency.add(latency);
+        maxWakeUpLatency.accumulateAndGet(latency, Math::max);
+        return task;
+    }
+
+    /**
+     * @return Number of tasks currently waiting for completion
+     */
+    public int getQueueDepth() {
+        return tasks.size();
+    }
+
+    /**
+     * @return Number of tasks taken for completion so far
+     */
+    public long getDispatchedCount() {
+        return dispatchedTasks.sum();
+    }
+
+    /**
+     * @return Average time between enqueuing and taking task, in nanoseconds
+     */
+    public long getAverageWakeUpLatencyNanos() {
+        long count = dispatchedTasks.sum();
+        return count > 0 ? totalWakeUpLatency.sum() / count : 0;
+    }
+
+    /**
+     * @return Longest time between enqueuing and taking task, in nanoseconds
+     */
+    public long getMaxWakeUpLatencyNanos() {
+        return maxWakeUpLatency.get();
+    }
+}
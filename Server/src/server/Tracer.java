@@ -0,0 +1,314 @@
+package server;
+
+import network_structures.NetworkMessage;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracing of sampled client requests, keyed on their communication identifiers. Span of request records when it
+ * has been received, enqueued for main server task, taken and completed by it, answered and written to client.
+ * Finished spans are written to local file as JSON lines by single daemon thread, times being given in nanoseconds
+ * since request has been received; stages request has not gone through (eg. "update" is answered without main
+ * server task) are omitted. Requests whose handling has failed are marked with <b>"failed":true</b>.
+ * <p>
+ * When tracing is disabled, {@link #sample(String, NetworkMessage)} returns null after reading one volatile field.
+ */
+public final class Tracer {
+
+    /** Default number of requests per one traced request */
+    public static final int DEFAULT_SAMPLE_EVERY = 100;
+    /** Number of finished spans waiting for writer, spans above it are dropped */
+    static final int QUEUE_CAPACITY = 4096;
+
+    /**
+     * Stages of single traced request
+     */
+    public static final class Span {
+        private final String client;
+        private final String command;
+        private final long communicationIdentifier;
+        private final long receivedMillis;
+        private final long receivedNanos;
+        private volatile long enqueuedNanos;
+        private volatile long handlingNanos;
+        private volatile long handledNanos;
+        private volatile long respondedNanos;
+        private volatile long flushedNanos;
+        private volatile int thread = -1;
+        private volatile boolean failed;
+        /** Set once span has been handed over to writer, so that it is written at most once */
+        private final AtomicBoolean finished = new AtomicBoolean();
+
+        Span(String client, String command, long communicationIdentifier) {
+            this.client = client;
+            this.command = command;
+            this.communicationIdentifier = communicationIdentifier;
+            this.receivedMillis = System.currentTimeMillis();
+            this.receivedNanos = System.nanoTime();
+        }
+
+        public String getCommand() {
+            return command;
+        }
+
+        public long getCommunicationIdentifier() {
+            return communicationIdentifier;
+        }
+
+        /**
+         * @return Time request has been received at, see {@link System#nanoTime()}
+         */
+        public long getReceivedNanos() {
+            return receivedNanos;
+        }
+
+        /**
+         * Marks request as taken by main server task
+         * @param enqueuedNanos Time task has been enqueued at, see {@link System#nanoTime()}
+         * @param handlingNanos Time task has been taken at
+         * @param thread Index of main server task
+         */
+        public void markHandling(long enqueuedNanos, long handlingNanos, int thread) {
+            this.enqueuedNanos = enqueuedNanos;
+            this.handlingNanos = handlingNanos;
+            this.thread = thread;
+        }
+
+        /**
+         * Marks request as completed by main server task
+         * @param handledNanos Time task has been completed at, see {@link System#nanoTime()}
+         */
+        public void markHandled(long handledNanos) {
+            this.handledNanos = handledNanos;
+        }
+
+        /**
+         * Marks first answer to request as put into outbox of client
+         */
+        public void markResponded() {
+            if (respondedNanos == 0)
+                respondedNanos = System.nanoTime();
+        }
+
+        /**
+         * Marks first answer to request as written to client
+         */
+        public void markFlushed() {
+            flushedNanos = System.nanoTime();
+        }
+
+        /**
+         * @return True if span has been handed over to writer, see {@link Tracer#finish(Span)}
+         */
+        public boolean isFinished() {
+            return finished.get();
+        }
+
+        /**
+         * Marks request as one whose handling has failed, so that it will not be answered
+         */
+        public void markFailed() {
+            failed = true;
+        }
+
+        /**
+         * @return Span as single line of JSON
+         */
+        String toJson() {
+            StringBuilder line = new StringBuilder(256).append('{');
+            string(line, "time", Instant.ofEpochMilli(receivedMillis).toString());
+            if (client != null)
+                string(line.append(','), "client", client);
+            string(line.append(','), "command", command);
+            line.append(",\"id\":").append(communicationIdentifier);
+            if (thread >= 0)
+                line.append(",\"thread\":").append(thread);
+            offset(line, "enqueued_ns", enqueuedNanos);
+            offset(line, "handling_ns", handlingNanos);
+            offset(line, "handled_ns", handledNanos);
+            offset(line, "responded_ns", respondedNanos);
+            offset(line, "flushed_ns", flushedNanos);
+            if (failed)
+                line.append(",\"failed\":true");
+            return line.append('}').toString();
+        }
+
+        private void offset(StringBuilder line, String name, long nanos) {
+            if (nanos != 0)
+                line.append(",\"").append(name).append("\":").append(Math.max(0, nanos - receivedNanos));
+        }
+
+        private static void string(StringBuilder line, String name, String value) {
+            line.append('"').append(name).append("\":\"");
+            for (int i = 0; value != null && i < value.length(); ++i) {
+                char c = value.charAt(i);
+                if (c == '"' || c == '\\')
+                    line.append('\\').append(c);
+                else if (c < 0x20)
+                    line.append(String.format("\\u%04x", (int) c));
+                else
+                    line.append(c);
+            }
+            line.append('"');
+        }
+    }
+
+    /**
+     * Thread writing finished spans to file
+     */
+    private static final class Writer implements Runnable {
+        private final BufferedWriter out;
+        private final ArrayBlockingQueue<Span> spans = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        private final Thread thread;
+        private volatile boolean running = true;
+
+        Writer(Path file) throws IOException {
+            this.out = Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            this.thread = new Thread(this, "trace-writer");
+            this.thread.setDaemon(true);
+            this.thread.start();
+        }
+
+        @Override
+        public void run() {
+            List<Span> batch = new ArrayList<>();
+            try {
+                while (running || !spans.isEmpty()) {
+                    Span first = spans.poll(100, TimeUnit.MILLISECONDS);
+                    if (first == null)
+                        continue;
+                    batch.add(first);
+                    spans.drainTo(batch);
+                    write(batch);
+                    batch.clear();
+                }
+            } catch (InterruptedException ignored) {
+            } finally {
+                spans.drainTo(batch);
+                write(batch);
+                try {
+                    out.close();
+                } catch (IOException ex) {
+                    WRITE_FAILED.log("Could not close trace file", null, ex);
+                }
+            }
+        }
+
+        private void write(List<Span> batch) {
+            if (batch.isEmpty())
+                return;
+            try {
+                for (Span span : batch) {
+                    out.write(span.toJson());
+                    out.newLine();
+                }
+                out.flush();
+                written.addAndGet(batch.size());
+            } catch (IOException ex) {
+                dropped.addAndGet(batch.size());
+                WRITE_FAILED.log("Could not write spans", null, ex);
+            }
+        }
+
+        void stop() throws InterruptedException {
+            running = false;
+            thread.join();
+        }
+    }
+
+    private static final Log.Site WRITE_FAILED = Log.site("Tracer.Writer", Log.Level.ERROR);
+    private static final AtomicLong written = new AtomicLong();
+    private static final AtomicLong dropped = new AtomicLong();
+    /** Writer of spans, null while tracing is disabled */
+    private static volatile Writer writer = null;
+    private static volatile int sampleEvery = DEFAULT_SAMPLE_EVERY;
+
+    private Tracer() {}
+
+    /**
+     * Starts tracing, stopping previous tracing if any
+     * @param file File spans are appended to
+     * @param sampleEvery Number of requests per one traced request, 1 traces every request
+     * @throws IOException When file could not be opened
+     */
+    public static synchronized void start(Path file, int sampleEvery) throws IOException {
+        stop();
+        Tracer.sampleEvery = Math.max(1, sampleEvery);
+        writer = new Writer(file);
+    }
+
+    /**
+     * Stops tracing, waiting until finished spans are written
+     */
+    public static synchronized void stop() {
+        Writer current = writer;
+        writer = null;
+        if (current == null)
+            return;
+        try {
+            current.stop();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public static boolean isEnabled() {
+        return writer != null;
+    }
+
+    /**
+     * @return Number of spans written to file
+     */
+    public static long getWrittenCount() {
+        return written.get();
+    }
+
+    /**
+     * @return Number of spans dropped because writer could not keep up or file could not be written
+     */
+    public static long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * Decides whether received request is traced
+     * @param client Identifier of client who sent request, may be null
+     * @param message Received request
+     * @return New span of request or null if tracing is disabled or request has not been sampled
+     */
+    public static Span sample(String client, NetworkMessage message) {
+        if (writer == null)
+            return null;
+        int every = sampleEvery;
+        if (every > 1 && ThreadLocalRandom.current().nextInt(every) != 0)
+            return null;
+        return new Span(client, message.getCommand(), message.getCommunicationIdentifier());
+    }
+
+    /**
+     * Hands finished span over to writer, span is dropped if writer cannot keep up.
+     * Span finished before is ignored.
+     * @param span Finished span
+     */
+    public static void finish(Span span) {
+        if (!span.finished.compareAndSet(false, true))
+            return;
+        Writer current = writer;
+        if (current == null || !current.spans.offer(span))
+            dropped.incrementAndGet();
+    }
+}
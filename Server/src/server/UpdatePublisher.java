@@ -0,0 +1,97 @@
+package server;
+
+import network_structures.Broadcast;
+import network_structures.EventInfoUpdate;
+import network_structures.NetworkMessage;
+import network_structures.SectorInfoUpdate;
+import org.bson.types.ObjectId;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+/**
+ * Task pushing changes of event state to subscribed guides, ran on separate thread.
+ * Changes are coalesced over a short window, so that every subscriber receives at most one update per window
+ * and a single delta is created per window regardless of number of subscribers. Delta is sent as {@link Broadcast},
+ * so it is also encoded once per codec rather than once per subscriber.
+ */
+public class UpdatePublisher implements Runnable {
+
+    /** Default length of window changes are coalesced over, in milliseconds */
+    public static final long DEFAULT_WINDOW_MS = 250;
+
+    private final Supplier<EventInfoUpdate> stateSupplier;
+    private final Collection<Client> clients;
+    private final long windowMs;
+    private final AtomicBoolean continueRunning;
+    /** Version of event state already pushed to subscribers */
+    private long publishedVersion;
+    /** Thread this publisher is running on */
+    private volatile Thread thread;
+
+    /**
+     * @param stateSupplier Supplier of current event state
+     * @param clients Collection of connected clients, only guides among them are notified
+     * @param windowMs Length of window changes are coalesced over, in milliseconds
+     */
+    public UpdatePublisher(Supplier<EventInfoUpdate> stateSupplier, Collection<Client> clients, long windowMs) {
+        this.stateSupplier = stateSupplier;
+        this.clients = clients;
+        this.windowMs = Math.max(1, windowMs);
+        this.continueRunning = new AtomicBoolean(true);
+        this.publishedVersion = stateSupplier.get().getVersion();
+    }
+
+    public void stop() {
+        continueRunning.set(false);
+        Thread thread = this.thread;
+        if (thread != null)
+            thread.interrupt();
+    }
+
+    /**
+     * Pushes changes made since last call to subscribed guides, if there were any
+     * @return Number of guides changes were published to
+     */
+    public int publishPendingChanges() {
+        EventInfoUpdate delta = stateSupplier.get().createDelta(publishedVersion);
+        if (delta == null || delta.getVersion() == publishedVersion)
+            return 0;
+        publishedVersion = delta.getVersion();
+        String[] changedRoomIds = changedRoomIdsOf(delta);
+        Broadcast update = new Broadcast(new NetworkMessage("update", new String[]{"true"}, delta, 0));
+        int notified = 0;
+        for (Client client : clients) {
+            if (client instanceof Guide && ((Guide) client).publishChanges(update, changedRoomIds))
+                ++notified;
+        }
+        return notified;
+    }
+
+    private static String[] changedRoomIdsOf(EventInfoUpdate delta) {
+        ArrayList<String> ids = new ArrayList<>();
+        for (SectorInfoUpdate sector : delta.getSectors().values()) {
+            for (ObjectId roomId : sector.getRooms().keySet())
+                ids.add(roomId.toString());
+        }
+        return ids.toArray(new String[0]);
+    }
+
+    /**
+     * Main loop
+     */
+    @Override
+    public void run() {
+        this.thread = Thread.currentThread();
+        while (continueRunning.get()) {
+            try {
+                Thread.sleep(windowMs);
+            } catch (InterruptedException e) {
+                break;
+            }
+            publishPendingChanges();
+        }
+    }
+}
@@ -0,0 +1,301 @@
+package server;
+
+import com.mongodb.client.MongoDatabase;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Loader of venue layout (sectors and their rooms) at server startup.
+ * Room collections of sectors are read in parallel; loaded layout may be stored in local binary snapshot,
+ * from which following restarts start without reading room collections at all. Snapshot is checked against
+ * sectors and numbers of rooms in database, which are only counted; other changes (eg. renamed rooms)
+ * are not detected, so snapshot has to be deleted after them.
+ */
+public final class VenueLoader {
+
+    /** Identifies snapshot files */
+    private static final int SNAPSHOT_MAGIC = 0x56454e55;
+    /** Version of snapshot format, snapshots of other versions are ignored */
+    private static final int SNAPSHOT_VERSION = 1;
+
+    /**
+     * Room as stored in database
+     */
+    public static class RoomRecord {
+        private final ObjectId id;
+        private final String name;
+        private final String location;
+        private final String description;
+
+        public RoomRecord(ObjectId id, String name, String location, String description) {
+            this.id = id;
+            this.name = name;
+            this.location = location;
+            this.description = description;
+        }
+
+        public ObjectId getId() { return id; }
+
+        public String getName() { return name; }
+
+        public String getLocation() { return location; }
+
+        public String getDescription() { return description; }
+    }
+
+    /**
+     * Sector as stored in database, together with its rooms
+     */
+    public static class SectorRecord {
+        private final ObjectId id;
+        private final String name;
+        private final String address;
+        private final String description;
+        private final List<RoomRecord> rooms;
+
+        public SectorRecord(ObjectId id, String name, String address, String description, List<RoomRecord> rooms) {
+            this.id = id;
+            this.name = name;
+            this.address = address;
+            this.description = description;
+            this.rooms = rooms;
+        }
+
+        public ObjectId getId() { return id; }
+
+        public String getName() { return name; }
+
+        public String getAddress() { return address; }
+
+        public String getDescription() { return description; }
+
+        public List<RoomRecord> getRooms() { return rooms; }
+    }
+
+    private VenueLoader() {}
+
+    /**
+     * Loads venue layout from snapshot if given one is valid and has the same sectors and numbers of rooms as storage,
+     * from storage otherwise. Layout loaded from storage is stored in snapshot for following restarts.
+     * If rooms of storage cannot be counted, snapshot is used as it is.
+     * @param storage Storage holding venue layout
+     * @param threads Number of threads reading room collections
+     * @param snapshot Path of snapshot file, null if snapshot should not be used
+     * @return Sectors in order of "sectors" collection
+     */
+    public static List<SectorRecord> load(Storage storage, int threads, Path snapshot) {
+        if (snapshot != null && Files.exists(snapshot)) {
+            try {
+                List<SectorRecord> sectors = readSnapshot(snapshot);
+                if (matches(sectors, storage, snapshot)) {
+                    System.out.println("Venue layout loaded from snapshot " + snapshot);
+                    return sectors;
+                }
+                System.out.println("Venue layout in database differs from snapshot " + snapshot + ", reloading it");
+            } catch (IOException ex) {
+                System.err.println("[VenueLoader]: Ignoring snapshot " + snapshot + " - " + ex.getMessage());
+            }
+        }
+        List<SectorRecord> sectors = storage.loadVenue(threads);
+        if (snapshot != null) {
+            try {
+                writeSnapshot(snapshot, sectors);
+            } catch (IOException ex) {
+                System.err.println("[VenueLoader]: Could not write snapshot " + snapshot + " - " + ex.getMessage());
+            }
+        }
+        return sectors;
+    }
+
+    /**
+     * @return True if sectors of snapshot and their numbers of rooms are the same as in storage
+     */
+    private static boolean matches(List<SectorRecord> sectors, Storage storage, Path snapshot) {
+        try {
+            return countRooms(sectors).equals(storage.countVenueRooms());
+        } catch (RuntimeException ex) {
+            System.err.println("[VenueLoader]: Could not check snapshot " + snapshot + " against database - " + ex.getMessage());
+            return true;
+        }
+    }
+
+    /**
+     * @param sectors Venue layout
+     * @return Number of rooms of every sector, by sector id in order of sectors
+     */
+    public static Map<ObjectId, Integer> countRooms(List<SectorRecord> sectors) {
+        LinkedHashMap<ObjectId, Integer> counts = new LinkedHashMap<>();
+        for (SectorRecord sector : sectors)
+            counts.put(sector.id, sector.rooms.size());
+        return counts;
+    }
+
+    /**
+     * Counts documents of room collection of every sector, without reading them
+     * @param database Database containing "sectors" collection and one "sector&lt;id&gt;" collection per sector
+     * @return Number of rooms of every sector, by sector id in order of "sectors" collection
+     */
+    public static Map<ObjectId, Integer> countRoomsInDatabase(MongoDatabase database) {
+        LinkedHashMap<ObjectId, Integer> counts = new LinkedHashMap<>();
+        for (Document sector : database.getCollection("sectors").find().projection(new Document("_id", 1))) {
+            ObjectId id = sector.getObjectId("_id");
+            counts.put(id, (int) database.getCollection("sector" + id.toString()).countDocuments());
+        }
+        return counts;
+    }
+
+    /**
+     * Reads sectors, then reads room collections of all sectors in parallel
+     * @param database Database containing "sectors" collection and one "sector&lt;id&gt;" collection per sector
+     * @param threads Number of threads reading room collections
+     * @return Sectors in order of "sectors" collection
+     */
+    public static List<SectorRecord> loadFromDatabase(MongoDatabase database, int threads) {
+        ArrayList<Document> sectorDocuments = database.getCollection("sectors").find().into(new ArrayList<>());
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.max(1, Math.min(threads, sectorDocuments.size())), ClientThreads.platform("venue-loader-"));
+        try {
+            ArrayList<Future<List<RoomRecord>>> rooms = new ArrayList<>(sectorDocuments.size());
+            for (Document sector : sectorDocuments) {
+                String collection = "sector" + sector.getObjectId("_id").toString();
+                rooms.add(executor.submit(() -> readRooms(database, collection)));
+            }
+            ArrayList<SectorRecord> sectors = new ArrayList<>(sectorDocuments.size());
+            for (int i = 0; i < sectorDocuments.size(); ++i) {
+                Document sector = sectorDocuments.get(i);
+                sectors.add(new SectorRecord(
+                        sector.getObjectId("_id"),
+                        sector.getString("name"),
+                        sector.getString("address"),
+                        sector.getString("description"),
+                        rooms.get(i).get()
+                ));
+            }
+            return sectors;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while loading venue layout", ex);
+        } catch (ExecutionException ex) {
+            throw new IllegalStateException("Could not load venue layout", ex.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static List<RoomRecord> readRooms(MongoDatabase database, String collection) {
+        ArrayList<RoomRecord> rooms = new ArrayList<>();
+        for (Document room : database.getCollection(collection).find()) {
+            rooms.add(new RoomRecord(
+                    room.getObjectId("_id"),
+                    room.getString("name"),
+                    room.getString("location"),
+                    room.getString("description")
+            ));
+        }
+        return rooms;
+    }
+
+    /**
+     * Writes venue layout to snapshot; file is replaced only once new snapshot is complete
+     * @param snapshot Path of snapshot file
+     * @param sectors Sectors to write
+     * @throws IOException When snapshot could not be written
+     */
+    public static void writeSnapshot(Path snapshot, List<SectorRecord> sectors) throws IOException {
+        Path directory = snapshot.toAbsolutePath().getParent();
+        Path temporary = Files.createTempFile(directory, snapshot.getFileName().toString(), ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(SNAPSHOT_VERSION);
+            out.writeInt(sectors.size());
+            for (SectorRecord sector : sectors) {
+                out.write(sector.id.toByteArray());
+                writeString(out, sector.name);
+                writeString(out, sector.address);
+                writeString(out, sector.description);
+                out.writeInt(sector.rooms.size());
+                for (RoomRecord room : sector.rooms) {
+                    out.write(room.id.toByteArray());
+                    writeString(out, room.name);
+                    writeString(out, room.location);
+                    writeString(out, room.description);
+                }
+            }
+        } catch (IOException ex) {
+            Files.deleteIfExists(temporary);
+            throw ex;
+        }
+        Files.move(temporary, snapshot, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Reads venue layout from snapshot
+     * @param snapshot Path of snapshot file
+     * @return Sectors in order they were written
+     * @throws IOException When snapshot could not be read or is not a valid snapshot of current version
+     */
+    public static List<SectorRecord> readSnapshot(Path snapshot) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshot)))) {
+            if (in.readInt() != SNAPSHOT_MAGIC)
+                throw new StreamCorruptedException("Not a venue snapshot");
+            int version = in.readInt();
+            if (version != SNAPSHOT_VERSION)
+                throw new StreamCorruptedException("Unsupported snapshot version: " + version);
+            int sectorCount = checkCount(in.readInt());
+            ArrayList<SectorRecord> sectors = new ArrayList<>(sectorCount);
+            for (int i = 0; i < sectorCount; ++i) {
+                ObjectId sectorId = readObjectId(in);
+                String name = readString(in);
+                String address = readString(in);
+                String description = readString(in);
+                int roomCount = checkCount(in.readInt());
+                ArrayList<RoomRecord> rooms = new ArrayList<>(roomCount);
+                for (int j = 0; j < roomCount; ++j) {
+                    rooms.add(new RoomRecord(readObjectId(in), readString(in), readString(in), readString(in)));
+                }
+                sectors.add(new SectorRecord(sectorId, name, address, description, rooms));
+            }
+            return sectors;
+        }
+    }
+
+    private static int checkCount(int count) throws StreamCorruptedException {
+        if (count < 0)
+            throw new StreamCorruptedException("Invalid count: " + count);
+        return count;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null)
+            out.writeUTF(value);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return (in.readBoolean() ? in.readUTF() : null);
+    }
+
+    private static ObjectId readObjectId(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[12];
+        in.readFully(bytes);
+        return new ObjectId(bytes);
+    }
+}
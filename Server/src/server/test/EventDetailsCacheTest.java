@@ -0,0 +1,60 @@
+package server.test;
+
+import network_structures.BinaryCodec;
+import network_structures.EventDetails;
+import network_structures.EventInfoFixed;
+import network_structures.MessageFrames;
+import network_structures.NetworkMessage;
+import org.bson.types.ObjectId;
+import queue.Room;
+import queue.Sector;
+import server.EventDetailsCache;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EventDetailsCacheTest {
+    private final EventInfoFixed eventInfoFixed = new EventInfoFixed();
+
+    EventDetailsCacheTest() {
+        Sector sector = new Sector(new ObjectId(), "A-1", "Wybrzeże Wyspiańskiego 27", "Main building");
+        Room room = new Room(new ObjectId(), "Aula", "1st floor", "", 1, sector);
+        sector.addRoom(room.getInfoFixed().getId(), room);
+        eventInfoFixed.getSectors().put(sector.getInfoFixed().getId(), sector.getInfoFixed());
+    }
+
+    private static NetworkMessage decode(ByteBuffer frame) throws Exception {
+        byte[] bytes = new byte[frame.remaining()];
+        frame.get(bytes);
+        return BinaryCodec.INSTANCE.decode(bytes, MessageFrames.HEADER_LENGTH, bytes.length - MessageFrames.HEADER_LENGTH);
+    }
+
+    @org.junit.jupiter.api.Test
+    void framesAreEncodedOnceAndHashIsStable() throws Exception {
+        EventDetailsCache cache = EventDetailsCache.create(eventInfoFixed, null);
+        assertEquals(cache.getHash(), EventDetailsCache.create(eventInfoFixed, null).getHash());
+        assertTrue(cache.isKnownBy(cache.getHash()));
+        assertFalse(cache.isKnownBy(null));
+        assertTrue(EventDetails.isUnchanged(cache.createUnchangedMessage()));
+
+        NetworkMessage decoded = decode(cache.getFrame(BinaryCodec.INSTANCE));
+        assertEquals("event_details", decoded.getCommand());
+        assertEquals(cache.getHash(), decoded.getArgs()[0]);
+        assertEquals(1, ((EventInfoFixed) decoded.getData()).getSectors().size());
+        assertNotNull(cache.getFrame(MessageFrames.SERIALIZED_CODEC));
+    }
+
+    @org.junit.jupiter.api.Test
+    void mappedFramesMatchHeapFrames() throws Exception {
+        Path file = Files.createTempFile("event-details", ".bin");
+        EventDetailsCache mapped = EventDetailsCache.create(eventInfoFixed, file);
+        EventDetailsCache heap = EventDetailsCache.create(eventInfoFixed, null);
+        assertEquals(heap.getFrame(BinaryCodec.INSTANCE), mapped.getFrame(BinaryCodec.INSTANCE));
+        assertEquals(heap.getFrame(MessageFrames.SERIALIZED_CODEC), mapped.getFrame(MessageFrames.SERIALIZED_CODEC));
+        assertEquals("event_details", decode(mapped.getFrame(BinaryCodec.INSTANCE)).getCommand());
+        Files.deleteIfExists(file);
+    }
+}
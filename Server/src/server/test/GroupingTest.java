@@ -0,0 +1,120 @@
+package server.test;
+
+import network_structures.EventInfoUpdate;
+import network_structures.NetworkMessage;
+import org.bson.types.ObjectId;
+import queue.Room;
+import queue.Sector;
+import queue.TourGroup;
+import server.Guide;
+import server.MessageStream;
+
+import java.util.ArrayList;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class GroupingTest {
+    /** Time room waits for before next grouping round after round in which nobody got reservation */
+    private static final long GROUPING_PAUSE_MS = 10 * 1000;
+    private final ArrayList<Long> checkTimes = new ArrayList<>();
+
+    private Room createRoom(int maxSlots) {
+        Sector sector = new Sector(new ObjectId(), "sector", "address", "description");
+        ObjectId id = new ObjectId();
+        Room room = new Room(id, "room", "location", "description", maxSlots, sector);
+        room.setCheckScheduler((checked, checkTime) -> checkTimes.add(checkTime));
+        sector.addRoom(id, room);
+        return room;
+    }
+
+    @org.junit.jupiter.api.Test
+    void acceptingGroupsGetReservationsOnceRoomIsFull() {
+        Room room = createRoom(2);
+        TourGroup first = new TourGroup(), second = new TourGroup(), third = new TourGroup();
+        room.addGroupToQueue(first);
+        room.addGroupToQueue(second);
+        room.addGroupToQueue(third);
+
+        assertEquals(0, room.allocateReservations());
+        assertTrue(room.isDuringGrouping());
+        // Deadline check scheduled for round timeout
+        assertTrue(checkTimes.get(checkTimes.size() - 1) > System.currentTimeMillis());
+
+        assertTrue(room.respondToGrouping(first, false));
+        assertTrue(room.respondToGrouping(third, true));
+        assertEquals(0, room.allocateReservations());
+        assertTrue(room.respondToGrouping(first, true));
+        assertEquals(2, room.allocateReservations());
+        assertFalse(room.isDuringGrouping());
+        assertEquals(Room.State.RESERVED, room.getState());
+        assertEquals(-1, room.positionOf(first));
+        assertEquals(-1, room.positionOf(third));
+        // Group which did not respond keeps its ticket until it ignores several rounds
+        assertEquals(0, room.positionOf(second));
+        assertFalse(room.respondToGrouping(second, true));
+    }
+
+    @org.junit.jupiter.api.Test
+    void roundEndsWhenLastParticipantLeavesOrResponds() {
+        Room room = createRoom(3);
+        TourGroup first = new TourGroup(), second = new TourGroup();
+        room.addGroupToQueue(first);
+        room.addGroupToQueue(second);
+        assertEquals(0, room.allocateReservations());
+
+        assertTrue(room.removeGroupFromQueue(first));
+        assertTrue(room.respondToGrouping(second, true));
+        assertEquals(1, room.allocateReservations());
+        assertEquals(-1, room.positionOf(second));
+    }
+
+    @org.junit.jupiter.api.Test
+    void groupDecliningEveryRoundLosesTicketAndIsTold() {
+        Room room = createRoom(2);
+        TourGroup group = new TourGroup();
+        ArrayList<NetworkMessage> received = new ArrayList<>();
+        new Guide((MessageStream) null, group, (task) -> {}, (command) -> true, EventInfoUpdate::new) {
+            @Override
+            public boolean addOutgoingMessage(NetworkMessage message) {
+                received.add(message);
+                return true;
+            }
+        };
+        room.addGroupToQueue(group);
+        long now = System.currentTimeMillis();
+        for (int round = 0; round < 3; ++round) {
+            assertEquals(0, room.allocateReservations(now));
+            assertTrue(room.respondToGrouping(group, false));
+            assertEquals(0, room.allocateReservations(now));
+            now += GROUPING_PAUSE_MS;
+        }
+        assertEquals(-1, room.positionOf(group));
+        assertEquals(Room.State.OPEN, room.getState());
+        NetworkMessage last = received.get(received.size() - 1);
+        assertEquals("grouping", last.getCommand());
+        assertEquals(Room.GROUPING_EXPIRED, last.getArgs()[2]);
+        assertEquals(room.getInfoFixed().getId().toString(), last.getArgs()[1]);
+    }
+
+    @org.junit.jupiter.api.Test
+    void nextRoundWaitsAfterEveryGroupDeclined() {
+        Room room = createRoom(2);
+        TourGroup first = new TourGroup(), second = new TourGroup();
+        room.addGroupToQueue(first);
+        room.addGroupToQueue(second);
+        long now = System.currentTimeMillis();
+        assertEquals(0, room.allocateReservations(now));
+        assertTrue(room.respondToGrouping(first, false));
+        assertTrue(room.respondToGrouping(second, false));
+        assertEquals(0, room.allocateReservations(now));
+        assertFalse(room.isDuringGrouping());
+        assertTrue(checkTimes.get(checkTimes.size() - 1) >= now + GROUPING_PAUSE_MS);
+
+        // Checks triggered meanwhile, eg. by new group joining queue, do not start next round
+        room.addGroupToQueue(new TourGroup());
+        assertEquals(0, room.allocateReservations(now + GROUPING_PAUSE_MS - 1));
+        assertFalse(room.isDuringGrouping());
+        assertEquals(0, room.allocateReservations(now + GROUPING_PAUSE_MS));
+        assertTrue(room.isDuringGrouping());
+    }
+}
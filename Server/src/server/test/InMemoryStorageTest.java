@@ -0,0 +1,78 @@
+package server.test;
+
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DocumentCodec;
+import org.bson.types.ObjectId;
+import server.InMemoryStorage;
+import server.LoginService;
+import server.VenueLoader;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class InMemoryStorageTest {
+
+    private static void writeCollection(Path directory, String collection, Document... documents) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (Document document : documents) {
+            ByteBuffer buffer = new RawBsonDocument(document, new DocumentCodec()).getByteBuffer().asNIO();
+            byte[] bytes = new byte[buffer.remaining()];
+            buffer.get(bytes);
+            out.write(bytes);
+        }
+        Files.write(directory.resolve(collection + ".bson"), out.toByteArray());
+    }
+
+    @org.junit.jupiter.api.Test
+    void dumpIsLoaded() throws Exception {
+        Path directory = Files.createTempDirectory("dump");
+        ObjectId sectorId = new ObjectId();
+        ObjectId roomId = new ObjectId();
+        writeCollection(directory, "sectors",
+                new Document("_id", sectorId).append("name", "Sektor A").append("address", "al. Tysiąclecia 7").append("description", "Some description."),
+                new Document("_id", new ObjectId()).append("name", "Energis"));
+        writeCollection(directory, "sector" + sectorId,
+                new Document("_id", roomId).append("name", "Atrakcja 1").append("location", "1.10a"));
+        writeCollection(directory, "users",
+                new Document("login", "guide").append("password", "123").append("role", "G"));
+        writeCollection(directory, "serverVariables", new Document("serverOpenDate", new Date(1582531200000L)));
+
+        InMemoryStorage storage = InMemoryStorage.loadDump(directory);
+        List<VenueLoader.SectorRecord> sectors = storage.loadVenue(1);
+        assertEquals(2, sectors.size());
+        assertEquals(sectorId, sectors.get(0).getId());
+        assertEquals("al. Tysiąclecia 7", sectors.get(0).getAddress());
+        assertEquals(roomId, sectors.get(0).getRooms().get(0).getId());
+        assertNull(sectors.get(0).getRooms().get(0).getDescription());
+        assertTrue(sectors.get(1).getRooms().isEmpty());
+        assertEquals(Long.valueOf(1582531200000L), storage.getEventStart());
+
+        assertEquals(Collections.singleton("guide"), storage.findUsers(Arrays.asList("guide", "unknown")).keySet());
+        LoginService service = new LoginService(storage::findUsers, 1, 0);
+        assertEquals("G", service.findRole(new String[] { "guide", "123" }).get(5, TimeUnit.SECONDS));
+        assertNull(service.findRole(new String[] { "guide", "456" }).get(5, TimeUnit.SECONDS));
+
+        for (Path file : Files.list(directory).toArray(Path[]::new))
+            Files.delete(file);
+        Files.delete(directory);
+    }
+
+    @org.junit.jupiter.api.Test
+    void truncatedDumpIsRejected() throws Exception {
+        Path directory = Files.createTempDirectory("dump");
+        Files.write(directory.resolve("sectors.bson"), new byte[] { 40, 0, 0, 0, 3 });
+        assertThrows(java.io.IOException.class, () -> InMemoryStorage.loadDump(directory));
+        Files.delete(directory.resolve("sectors.bson"));
+        Files.delete(directory);
+    }
+}
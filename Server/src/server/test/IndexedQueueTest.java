@@ -0,0 +1,79 @@
+package server.test;
+
+import queue.IndexedQueue;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class IndexedQueueTest {
+
+    private static class Element implements IndexedQueue.Entry {
+        private int slot = -1;
+
+        @Override
+        public int getQueueSlot() {
+            return slot;
+        }
+
+        @Override
+        public void setQueueSlot(int slot) {
+            this.slot = slot;
+        }
+    }
+
+    @org.junit.jupiter.api.Test
+    void positionsFollowRemovalsAndPolls() {
+        IndexedQueue<Element> queue = new IndexedQueue<>();
+        Element a = new Element(), b = new Element(), c = new Element(), d = new Element();
+        queue.offer(a);
+        queue.offer(b);
+        queue.offer(c);
+        queue.offer(d);
+        assertFalse(queue.offer(c));
+        assertEquals(2, queue.positionOf(c));
+        assertTrue(queue.remove(b));
+        assertFalse(queue.remove(b));
+        assertEquals(1, queue.positionOf(c));
+        assertSame(a, queue.poll());
+        assertEquals(0, queue.positionOf(c));
+        assertEquals(-1, queue.positionOf(a));
+        assertEquals(-1, queue.positionOf(b));
+        assertSame(d, queue.peekLast());
+        assertTrue(queue.remove(d));
+        assertSame(c, queue.peekLast());
+        assertEquals(1, queue.size());
+    }
+
+    @org.junit.jupiter.api.Test
+    void positionsSurviveCompaction() {
+        ArrayList<Integer> sizes = new ArrayList<>();
+        IndexedQueue<Element> queue = new IndexedQueue<Element>() {
+            @Override
+            protected void sizeChanged(int size) {
+                sizes.add(size);
+            }
+        };
+        ArrayList<Element> expected = new ArrayList<>();
+        for (int i = 0; i < 1000; ++i) {
+            Element element = new Element();
+            queue.offer(element);
+            expected.add(element);
+            if (i % 3 == 0) {
+                assertSame(expected.remove(0), queue.poll());
+            }
+            if (i % 5 == 0 && expected.size() > 2) {
+                assertTrue(queue.remove(expected.remove(expected.size() / 2)));
+            }
+        }
+        assertEquals(expected.size(), queue.size());
+        assertEquals(expected.size(), (int) sizes.get(sizes.size() - 1));
+        Iterator<Element> it = queue.iterator();
+        for (int i = 0; i < expected.size(); ++i) {
+            assertEquals(i, queue.positionOf(expected.get(i)));
+            assertSame(expected.get(i), it.next());
+        }
+        assertFalse(it.hasNext());
+    }
+}
@@ -0,0 +1,100 @@
+package server.test;
+
+import org.bson.types.ObjectId;
+import queue.Room;
+import queue.Sector;
+import queue.TourGroup;
+import server.Journal;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class JournalTest {
+    private final Sector sector = new Sector(new ObjectId(), "A-1", "", "");
+    private final Room room = new Room(new ObjectId(), "Aula", "", "", 1, sector);
+
+    private static List<String> queueOf(Journal.State state, Room room) {
+        List<String> queue = new ArrayList<>();
+        state.getRooms().get(room.getInfoFixed().getId()).getQueue().forEach(queue::add);
+        return queue;
+    }
+
+    private static void runUntilWritten(Journal journal, long records) throws InterruptedException {
+        Thread thread = new Thread(journal);
+        thread.start();
+        while (journal.getWrittenRecords() < records)
+            Thread.sleep(1);
+        journal.stop();
+        thread.join();
+    }
+
+    private static void delete(Path directory) throws Exception {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @org.junit.jupiter.api.Test
+    void failedJournalStopsCollectingChanges() throws Exception {
+        Path directory = Files.createTempDirectory("journal");
+        Journal journal = new Journal(directory, 1);
+        // Compaction after first record cannot store snapshot in removed directory
+        delete(directory);
+        Thread thread = new Thread(journal);
+        thread.start();
+        journal.ticketAdded(room, new TourGroup("first"));
+        thread.join(5000);
+        assertFalse(thread.isAlive());
+        assertTrue(journal.isDisabled());
+
+        for (int i = 0; i < 100; ++i)
+            journal.ticketAdded(room, new TourGroup("group" + i));
+        assertEquals(0, journal.getPendingRecords());
+    }
+
+    @org.junit.jupiter.api.Test
+    void stateIsRestoredAfterRestart() throws Exception {
+        Path directory = Files.createTempDirectory("journal");
+        Journal journal = new Journal(directory, Journal.DEFAULT_COMPACTION_RECORDS);
+        TourGroup first = new TourGroup("first");
+        TourGroup second = new TourGroup("second");
+        TourGroup third = new TourGroup("third");
+        journal.ticketAdded(room, first);
+        journal.ticketAdded(room, second);
+        journal.ticketAdded(room, third);
+        journal.ticketRemoved(room, second);
+        journal.reservationCreated(room, first, 1234);
+        journal.penaltyChanged(second, 1);
+        journal.ticketAdded(room, new TourGroup());
+        runUntilWritten(journal, 6);
+
+        Files.write(directory.resolve("queues.journal"), new byte[] { 0, 0, 0, 40, 1, 2 }, StandardOpenOption.APPEND);
+
+        Journal.State state = new Journal(directory, Journal.DEFAULT_COMPACTION_RECORDS).getRecoveredState();
+        assertEquals(List.of("third"), queueOf(state, room));
+        assertEquals(Long.valueOf(1234), state.getRooms().get(room.getInfoFixed().getId()).getReservations().get("first"));
+        assertEquals(Integer.valueOf(1), state.getPenaltyLevels().get("second"));
+        delete(directory);
+    }
+
+    @org.junit.jupiter.api.Test
+    void compactedStateKeepsQueueOrder() throws Exception {
+        Path directory = Files.createTempDirectory("journal");
+        Journal journal = new Journal(directory, 2);
+        for (int i = 0; i < 5; ++i)
+            journal.ticketAdded(room, new TourGroup("group" + i));
+        journal.ticketRemoved(room, new TourGroup("group2"));
+        runUntilWritten(journal, 6);
+
+        Journal.State state = new Journal(directory, 2).getRecoveredState();
+        assertEquals(List.of("group0", "group1", "group3", "group4"), queueOf(state, room));
+        delete(directory);
+    }
+}
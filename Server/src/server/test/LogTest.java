@@ -0,0 +1,71 @@
+package server.test;
+
+import server.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LogTest {
+
+    private static String capture(Runnable logging) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PrintStream stream = new PrintStream(bytes, true, StandardCharsets.UTF_8);
+        Log.Level level = Log.getLevel();
+        assertTrue(Log.flush(5000));
+        Log.setOutput(stream, stream);
+        try {
+            logging.run();
+            assertTrue(Log.flush(5000));
+        } finally {
+            Log.setOutput(System.out, System.err);
+            Log.setLevel(level);
+        }
+        return bytes.toString(StandardCharsets.UTF_8);
+    }
+
+    @org.junit.jupiter.api.Test
+    void entryIsWrittenWithFields() {
+        Log.Site site = Log.site("LogTest.fields", Log.Level.WARN);
+        String output = capture(() -> site.log("Could not encode message", "127.0.0.1:5000", "add_to_queue", 42, new java.io.IOException("broken \"pipe\"")));
+        assertTrue(output.contains(" WARN site=\"LogTest.fields\" msg=\"Could not encode message\" client=\"127.0.0.1:5000\" id=42 command=\"add_to_queue\" error=\"IOException: broken \\\"pipe\\\"\""), output);
+    }
+
+    @org.junit.jupiter.api.Test
+    void disabledLevelIsIgnored() {
+        Log.Site site = Log.site("LogTest.disabled", Log.Level.DEBUG);
+        String output = capture(() -> {
+            Log.setLevel(Log.Level.INFO);
+            assertFalse(site.isEnabled());
+            site.log("Invisible");
+            Log.setLevel(Log.Level.DEBUG);
+            site.log("Visible");
+        });
+        assertFalse(output.contains("Invisible"), output);
+        assertTrue(output.contains("msg=\"Visible\""), output);
+    }
+
+    @org.junit.jupiter.api.Test
+    void entriesAboveRateAreSuppressedAndReported() throws Exception {
+        Log.Site site = Log.site("LogTest.rate", Log.Level.ERROR, 3);
+        long suppressedBefore = Log.getSuppressedCount();
+        // Rate windows are seconds of System.nanoTime(), start at beginning of one so that loop does not cross them
+        while (System.nanoTime() % 1_000_000_000L > 500_000_000L)
+            Thread.sleep(10);
+        String output = capture(() -> {
+            for (int i = 0; i < 10; ++i)
+                site.log("Flooding");
+        });
+        assertEquals(3, output.split("\n").length, output);
+        assertEquals(7, site.getSuppressedCount());
+        assertTrue(Log.getSuppressedCount() - suppressedBefore >= 7);
+
+        Thread.sleep(1100);
+        output = capture(() -> site.log("Recovered"));
+        assertTrue(output.contains("msg=\"Recovered\""), output);
+        assertTrue(output.contains("suppressed="), output);
+        assertEquals(0, site.getSuppressedCount());
+    }
+}
@@ -0,0 +1,85 @@
+package server.test;
+
+import server.LoginService;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LoginServiceTest {
+    private final ArrayList<Collection<String>> lookups = new ArrayList<>();
+
+    private Map<String, LoginService.UserRecord> findUsers(Collection<String> logins) {
+        synchronized (lookups) {
+            lookups.add(new ArrayList<>(logins));
+        }
+        Map<String, LoginService.UserRecord> users = new HashMap<>();
+        for (String login : logins)
+            users.put(login, new LoginService.UserRecord("secret-" + login, "G"));
+        return users;
+    }
+
+    private static String await(CompletableFuture<String> role) throws Exception {
+        return role.get(5, TimeUnit.SECONDS);
+    }
+
+    @org.junit.jupiter.api.Test
+    void validCredentialsAreCachedUntilExpiration() throws Exception {
+        LoginService service = new LoginService(this::findUsers, 1, 200);
+        assertEquals("G", await(service.findRole(new String[] { "guide", "secret-guide" })));
+        assertEquals("G", await(service.findRole(new String[] { "guide", "secret-guide" })));
+        assertEquals(1, lookups.size());
+        assertEquals(1, service.getCacheHitCount());
+        assertNull(await(service.findRole(new String[] { "guide", "wrong" })));
+        assertEquals(2, lookups.size());
+
+        Thread.sleep(250);
+        assertEquals("G", await(service.findRole(new String[] { "guide", "secret-guide" })));
+        assertEquals(3, lookups.size());
+        assertEquals(4, service.getAttemptCount());
+        assertEquals(3, service.getSuccessCount());
+        assertEquals(1, service.getFailureCount());
+        service.shutdown();
+    }
+
+    @org.junit.jupiter.api.Test
+    void concurrentLookupsAreBatched() throws Exception {
+        CountDownLatch firstLookupStarted = new CountDownLatch(1);
+        CountDownLatch releaseFirstLookup = new CountDownLatch(1);
+        LoginService service = new LoginService((logins) -> {
+            firstLookupStarted.countDown();
+            try {
+                releaseFirstLookup.await();
+            } catch (InterruptedException ignored) { }
+            return findUsers(logins);
+        }, 1, 0);
+        CompletableFuture<String> first = service.findRole(new String[] { "first", "secret-first" });
+        firstLookupStarted.await();
+        ArrayList<CompletableFuture<String>> waiting = new ArrayList<>();
+        for (int i = 0; i < 10; ++i)
+            waiting.add(service.findRole(new String[] { "guide" + i, "secret-guide" + i }));
+        releaseFirstLookup.countDown();
+
+        assertEquals("G", await(first));
+        for (CompletableFuture<String> role : waiting)
+            assertEquals("G", await(role));
+        assertEquals(2, service.getBatchCount());
+        assertEquals(10, lookups.get(1).size());
+        service.shutdown();
+    }
+
+    @org.junit.jupiter.api.Test
+    void failedDirectoryFailsLookups() {
+        LoginService service = new LoginService((logins) -> { throw new IllegalStateException("database is down"); }, 1, 0);
+        assertThrows(ExecutionException.class, () -> service.findRole(new String[] { "guide", "secret" }).get(5, TimeUnit.SECONDS));
+        assertNull(service.findRole(new String[] { "guide" }).join());
+        service.shutdown();
+    }
+}
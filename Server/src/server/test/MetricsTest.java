@@ -0,0 +1,57 @@
+package server.test;
+
+import server.Metrics;
+import server.MetricsEndpoint;
+
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MetricsTest {
+
+    @org.junit.jupiter.api.Test
+    void histogramReportsBucketBoundsOfQuantiles() {
+        Metrics.Histogram histogram = new Metrics.Histogram();
+        for (int i = 1; i <= 100; ++i)
+            histogram.record(i);
+        histogram.record(-5);
+        assertEquals(101, histogram.getCount());
+        assertEquals(5050, histogram.getSum());
+        assertEquals(100, histogram.getMax());
+        assertEquals(63, histogram.getQuantile(0.5));
+        assertEquals(100, histogram.getQuantile(0.99));
+        assertEquals(0, histogram.getQuantile(0.0));
+        assertEquals(0, new Metrics.Histogram().getQuantile(0.5));
+    }
+
+    @org.junit.jupiter.api.Test
+    void metricsAreRenderedAndServed() throws Exception {
+        Metrics.Counter counter = Metrics.counter("test_requests_total", "command", "say \"hi\"");
+        counter.increment();
+        counter.add(2);
+        assertSame(counter, Metrics.counter("test_requests_total", "command", "say \"hi\""));
+        Metrics.histogram("test_latency_ns").record(1000);
+        Metrics.gauge("test_depth", () -> 7, "thread", "0");
+
+        String rendered = Metrics.render();
+        assertTrue(rendered.contains("test_requests_total{command=\"say \\\"hi\\\"\"} 3\n"));
+        assertTrue(rendered.contains("test_latency_ns{quantile=\"0.5\"} 1000\n"));
+        assertTrue(rendered.contains("test_latency_ns_count 1\n"));
+        assertTrue(rendered.contains("test_depth{thread=\"0\"} 7\n"));
+
+        MetricsEndpoint endpoint = new MetricsEndpoint(0);
+        try {
+            HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + endpoint.getPort() + "/metrics").openConnection();
+            assertEquals(200, connection.getResponseCode());
+            try (InputStream in = connection.getInputStream()) {
+                assertTrue(new String(in.readAllBytes(), StandardCharsets.UTF_8).contains("test_depth{thread=\"0\"} 7"));
+            }
+        } finally {
+            endpoint.stop();
+            Metrics.remove("test_depth", "thread", "0");
+        }
+    }
+}
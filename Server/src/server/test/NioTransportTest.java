@@ -0,0 +1,105 @@
+package server.test;
+
+import network_structures.MessageFrames;
+import network_structures.NetworkMessage;
+import server.NioTransport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.ObjectStreamConstants;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class NioTransportTest {
+
+    private static int startTransport() throws Exception {
+        int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        Thread acceptor = new Thread(new NioTransport(port, 1, 10_000, (client) -> {}, (client) -> {}), "nio-test-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        for (int attempt = 0; attempt < 100; ++attempt) {
+            try (Socket probe = new Socket("localhost", port)) {
+                return port;
+            } catch (IOException ex) {
+                Thread.sleep(20);
+            }
+        }
+        throw new IllegalStateException("Transport has not started listening");
+    }
+
+    private static void assertAnswersPing(Socket socket, long communicationIdentifier) throws Exception {
+        MessageFrames.write(new DataOutputStream(socket.getOutputStream()), new NetworkMessage("ping", null, null, communicationIdentifier));
+        NetworkMessage response = MessageFrames.read(new DataInputStream(socket.getInputStream()));
+        assertEquals("ping", response.getCommand());
+        assertEquals(communicationIdentifier, response.getCommunicationIdentifier());
+    }
+
+    /**
+     * @return Frame of serialized message whose command is null, which constructor of message does not allow
+     */
+    private static byte[] encodeMessageWithoutCommand(long communicationIdentifier) throws IOException {
+        String marker = "command-to-remove";
+        byte[] frame = MessageFrames.encode(new NetworkMessage(marker, null, null, communicationIdentifier));
+        byte[] markerBytes = marker.getBytes(StandardCharsets.UTF_8);
+        int markerOffset = -1;
+        for (int i = 0; markerOffset < 0 && i <= frame.length - markerBytes.length; ++i) {
+            if (Arrays.equals(frame, i, i + markerBytes.length, markerBytes, 0, markerBytes.length))
+                markerOffset = i;
+        }
+        // Serialized string (tag and two bytes of length followed by characters) is replaced by null tag
+        ByteArrayOutputStream patched = new ByteArrayOutputStream();
+        patched.write(frame, 0, markerOffset - 3);
+        patched.write(ObjectStreamConstants.TC_NULL);
+        patched.write(frame, markerOffset + markerBytes.length, frame.length - markerOffset - markerBytes.length);
+        ByteBuffer result = ByteBuffer.wrap(patched.toByteArray());
+        result.putInt(0, result.capacity() - MessageFrames.HEADER_LENGTH);
+        return result.array();
+    }
+
+    @org.junit.jupiter.api.Test
+    void failingConnectionDoesNotStopOtherConnectionsOfItsIoThread() throws Exception {
+        int port = startTransport();
+        try (Socket healthy = new Socket("localhost", port); Socket broken = new Socket("localhost", port)) {
+            healthy.setSoTimeout(5000);
+            broken.setSoTimeout(5000);
+            assertAnswersPing(healthy, 1);
+
+            // Message without command decodes fine but cannot be handled
+            broken.getOutputStream().write(encodeMessageWithoutCommand(2));
+            try {
+                MessageFrames.read(new DataInputStream(broken.getInputStream()));
+                fail("Connection sending message without command should be closed");
+            } catch (EOFException expected) {
+            }
+
+            assertAnswersPing(healthy, 3);
+        }
+    }
+
+    @org.junit.jupiter.api.Test
+    void garbageFrameClosesOnlyItsConnection() throws Exception {
+        int port = startTransport();
+        try (Socket healthy = new Socket("localhost", port); Socket broken = new Socket("localhost", port)) {
+            healthy.setSoTimeout(5000);
+            broken.setSoTimeout(5000);
+            DataOutputStream out = new DataOutputStream(broken.getOutputStream());
+            out.writeInt(8);
+            out.write(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 });
+            out.flush();
+            assertEquals(-1, broken.getInputStream().read());
+
+            assertAnswersPing(healthy, 4);
+        }
+    }
+}
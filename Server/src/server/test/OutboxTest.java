@@ -0,0 +1,79 @@
+package server.test;
+
+import network_structures.NetworkMessage;
+import server.Outbox;
+
+import java.util.ArrayList;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class OutboxTest {
+
+    private static NetworkMessage message(String command) {
+        return new NetworkMessage(command, null, null, 0);
+    }
+
+    @org.junit.jupiter.api.Test
+    void takeAllMovesWholeBatch() throws InterruptedException {
+        Outbox outbox = new Outbox(4, Outbox.OverflowPolicy.DROP_OLDEST_UPDATE);
+        outbox.offer(message("reservation"));
+        outbox.offer(message("update"));
+        ArrayList<NetworkMessage> batch = new ArrayList<>();
+        assertEquals(2, outbox.takeAll(batch));
+        assertEquals("reservation", batch.get(0).getCommand());
+        assertTrue(outbox.isEmpty());
+    }
+
+    @org.junit.jupiter.api.Test
+    void dropOldestUpdateWhenFull() throws InterruptedException {
+        Outbox outbox = new Outbox(2, Outbox.OverflowPolicy.DROP_OLDEST_UPDATE);
+        outbox.offer(message("update"));
+        outbox.offer(message("reservation"));
+        assertTrue(outbox.offer(message("view_tickets")));
+        assertFalse(outbox.isClosed());
+        ArrayList<NetworkMessage> batch = new ArrayList<>();
+        outbox.takeAll(batch);
+        assertEquals("reservation", batch.get(0).getCommand());
+        assertEquals("view_tickets", batch.get(1).getCommand());
+        assertEquals(1, outbox.getDroppedMessages());
+    }
+
+    @org.junit.jupiter.api.Test
+    void disconnectWhenFullOfMessagesWhichCannotBeDropped() throws InterruptedException {
+        Outbox outbox = new Outbox(2, Outbox.OverflowPolicy.DROP_OLDEST_UPDATE);
+        outbox.offer(message("reservation"));
+        outbox.offer(message("view_tickets"));
+        assertFalse(outbox.offer(message("update")));
+        assertFalse(outbox.isClosed());
+        assertEquals(1, outbox.getDroppedMessages());
+
+        assertFalse(outbox.offer(message("reservation_expired")));
+        assertTrue(outbox.isOverflowed());
+        assertTrue(outbox.isClosed());
+        assertEquals(2, outbox.getDroppedMessages());
+        ArrayList<NetworkMessage> batch = new ArrayList<>();
+        assertEquals(2, outbox.takeAll(batch));
+        assertEquals("reservation", batch.get(0).getCommand());
+    }
+
+    @org.junit.jupiter.api.Test
+    void disconnectWhenFull() {
+        Outbox outbox = new Outbox(1, Outbox.OverflowPolicy.DISCONNECT);
+        outbox.offer(message("update"));
+        assertFalse(outbox.offer(message("update")));
+        assertTrue(outbox.isOverflowed());
+        assertTrue(outbox.isClosed());
+    }
+
+    @org.junit.jupiter.api.Test
+    void closeWakesUpWaitingConsumer() throws InterruptedException {
+        Outbox outbox = new Outbox(4, Outbox.OverflowPolicy.DROP_OLDEST_UPDATE);
+        Thread closer = new Thread(() -> {
+            try { Thread.sleep(50); } catch (InterruptedException ignored) { }
+            outbox.close();
+        });
+        closer.start();
+        assertEquals(0, outbox.takeAll(new ArrayList<>()));
+        closer.join();
+    }
+}
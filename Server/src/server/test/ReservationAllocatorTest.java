@@ -0,0 +1,70 @@
+package server.test;
+
+import org.bson.types.ObjectId;
+import queue.ReservationAllocator;
+import queue.Room;
+import queue.Sector;
+import queue.TourGroup;
+
+import java.util.ArrayList;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ReservationAllocatorTest {
+
+    private static Room createRoom(Sector sector, int maxSlots, ArrayList<Room> checkedRooms) {
+        ObjectId id = new ObjectId();
+        Room room = new Room(id, "room", "location", "description", maxSlots, sector);
+        room.setCheckScheduler((checked, checkTime) -> checkedRooms.add(checked));
+        sector.addRoom(id, room);
+        return room;
+    }
+
+    @org.junit.jupiter.api.Test
+    void groupAtFrontOfSeveralQueuesGetsOneReservation() {
+        Sector sector = new Sector(new ObjectId(), "sector", "address", "description");
+        ArrayList<Room> checkedRooms = new ArrayList<>();
+        Room first = createRoom(sector, 1, checkedRooms);
+        Room second = createRoom(sector, 1, checkedRooms);
+        Room third = createRoom(sector, 1, checkedRooms);
+        TourGroup busy = new TourGroup();
+        TourGroup next = new TourGroup();
+        TourGroup last = new TourGroup();
+        for (Room room : new Room[] { first, second, third })
+            room.addGroupToQueue(busy);
+        second.addGroupToQueue(next);
+        third.addGroupToQueue(last);
+
+        ReservationAllocator allocator = new ReservationAllocator();
+        allocator.markChanged(first);
+        allocator.markChanged(second);
+        allocator.markChanged(third);
+        allocator.markChanged(first);
+        assertEquals(3, allocator.getPendingRoomCount());
+        assertEquals(3, allocator.allocate());
+        assertEquals(0, allocator.getPendingRoomCount());
+
+        assertEquals(Room.State.RESERVED, first.getState());
+        assertEquals(-1, first.positionOf(busy));
+        // Group holding reservation keeps its place in other queues
+        assertEquals(0, second.positionOf(busy));
+        assertEquals(0, third.positionOf(busy));
+        assertEquals(-1, second.positionOf(next));
+        assertEquals(-1, third.positionOf(last));
+        assertEquals(Room.State.RESERVED, second.getState());
+        assertEquals(Room.State.RESERVED, third.getState());
+        assertEquals(0, allocator.allocate());
+    }
+
+    @org.junit.jupiter.api.Test
+    void roomIsReservedAsSoonAsGroupIsQueued() {
+        Sector sector = new Sector(new ObjectId(), "sector", "address", "description");
+        Room room = createRoom(sector, 1, new ArrayList<>());
+        TourGroup group = new TourGroup();
+        room.addGroupToQueue(group);
+
+        assertEquals(1, room.allocateReservations());
+        assertEquals(Room.State.RESERVED, room.getState());
+        assertEquals(0, room.allocateReservations());
+    }
+}
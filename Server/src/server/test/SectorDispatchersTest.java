@@ -0,0 +1,35 @@
+package server.test;
+
+import org.bson.types.ObjectId;
+import queue.TourGroup;
+import server.SectorDispatchers;
+import server.Server;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SectorDispatchersTest {
+    private final SectorDispatchers dispatchers = new SectorDispatchers(4);
+
+    private static Server.Task createTask(String command, String[] args, Object data) {
+        return new Server.Task(command, args, data, 0, (message) -> {});
+    }
+
+    @org.junit.jupiter.api.Test
+    void sectorTasksGoToOwnerOfSector() {
+        ObjectId sectorId = new ObjectId();
+        String[] args = new String[] { sectorId.toString(), new ObjectId().toString() };
+        assertSame(dispatchers.forSector(sectorId), dispatchers.forTask(createTask("add_to_queue", args, new TourGroup())));
+        assertSame(dispatchers.forSector(sectorId), dispatchers.forTask(createTask("remove_from_queue", args, new TourGroup())));
+    }
+
+    @org.junit.jupiter.api.Test
+    void groupTasksKeepOrderOfGroup() throws InterruptedException {
+        TourGroup group = new TourGroup();
+        dispatchers.enqueue(createTask("view_tickets", null, group));
+        dispatchers.enqueue(createTask("tickets_changed", new String[] { new ObjectId().toString() }, group));
+        assertEquals(2, dispatchers.getQueueDepth());
+        Server.Task first = dispatchers.forTask(createTask("view_tickets", null, group)).take();
+        assertEquals("view_tickets", first.getCommand());
+        assertEquals(1, dispatchers.getQueueDepth());
+    }
+}
@@ -0,0 +1,37 @@
+package server.test;
+
+import server.Server;
+import server.TaskDispatcher;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TaskDispatcherTest {
+    private final TaskDispatcher dispatcher = new TaskDispatcher();
+
+    private static Server.Task createTask(String command) {
+        return new Server.Task(command, null, null, 0, (message) -> {});
+    }
+
+    @org.junit.jupiter.api.Test
+    void takeReturnsTasksInOrder() throws InterruptedException {
+        dispatcher.enqueue(createTask("add_to_queue"));
+        dispatcher.enqueue(createTask("view_tickets"));
+        assertEquals(2, dispatcher.getQueueDepth());
+        assertEquals("add_to_queue", dispatcher.take().getCommand());
+        assertEquals("view_tickets", dispatcher.take().getCommand());
+        assertEquals(0, dispatcher.getQueueDepth());
+        assertEquals(2, dispatcher.getDispatchedCount());
+    }
+
+    @org.junit.jupiter.api.Test
+    void takeWaitsForEnqueuedTask() throws InterruptedException {
+        Thread producer = new Thread(() -> {
+            try { Thread.sleep(50); } catch (InterruptedException ignored) { }
+            dispatcher.enqueue(createTask("remove_from_queue"));
+        });
+        producer.start();
+        assertEquals("remove_from_queue", dispatcher.take().getCommand());
+        producer.join();
+        assertTrue(dispatcher.getMaxWakeUpLatencyNanos() >= 0);
+    }
+}
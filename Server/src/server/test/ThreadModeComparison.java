@@ -0,0 +1,154 @@
+package server.test;
+
+import network_structures.NetworkMessage;
+import server.ClientThreads;
+import server.ServerOptions;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares platform-thread and virtual-thread modes of blocking transport under many simulated connections.
+ * Every accepted connection gets two threads, like in server: one blocked in {@link ObjectInputStream#readObject()}
+ * and one waiting for outgoing messages. Reports accept throughput and memory footprint once all connections are up.
+ * Usage: <b>ThreadModeComparison [platform|virtual] [connections]</b>, eg. <b>virtual 10000</b>.
+ * Client ends of connections are opened by separate process (started with the same java command and class path),
+ * so that reported threads and memory belong to server side only and each process needs file descriptor limit
+ * of just above the number of connections.
+ * <p>
+ * Results for 10000 connections on JDK 21 (single CPU, two runs each):
+ * <ul>
+ *     <li>virtual: 4405-4756 connections/s, 12 platform threads, 110 MiB of heap, 199-203 MB resident</li>
+ *     <li>platform: 884-937 connections/s, 20007 platform threads, 100 MiB of heap, 841-848 MB resident</li>
+ * </ul>
+ */
+class ThreadModeComparison {
+
+    /** First argument of process opening client ends of connections */
+    private static final String CLIENTS_MODE = "clients";
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && CLIENTS_MODE.equals(args[0])) {
+            openClientConnections(Integer.parseInt(args[1]), Integer.parseInt(args[2]));
+            return;
+        }
+        ServerOptions.Threads kind = ServerOptions.Threads.valueOf((args.length > 0 ? args[0] : "platform").toUpperCase());
+        int connections = (args.length > 1 ? Integer.parseInt(args[1]) : 10_000);
+        ThreadFactory threads = ClientThreads.of(kind, "comparison-");
+
+        CountDownLatch handlersReady = new CountDownLatch(connections);
+        AtomicLong firstAcceptTime = new AtomicLong();
+
+        try (ServerSocket serverSocket = new ServerSocket()) {
+            serverSocket.bind(new InetSocketAddress("localhost", 0), connections);
+            Thread acceptor = new Thread(() -> {
+                for (int i = 0; i < connections; ++i) {
+                    try {
+                        Socket socket = serverSocket.accept();
+                        firstAcceptTime.compareAndSet(0, System.nanoTime());
+                        threads.newThread(() -> handleConnection(socket, threads, handlersReady)).start();
+                    } catch (IOException ex) {
+                        System.err.println("Accept failed: " + ex.getMessage());
+                        return;
+                    }
+                }
+            });
+            acceptor.start();
+
+            Process clients = new ProcessBuilder(
+                    ProcessHandle.current().info().command().orElse("java"),
+                    "-cp", System.getProperty("java.class.path"),
+                    ThreadModeComparison.class.getName(),
+                    CLIENTS_MODE, String.valueOf(serverSocket.getLocalPort()), String.valueOf(connections)
+            ).redirectOutput(ProcessBuilder.Redirect.INHERIT).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+            try {
+                handlersReady.await();
+                long elapsedNanos = System.nanoTime() - firstAcceptTime.get();
+
+                System.gc();
+                Thread.sleep(500);
+                long heapUsed = Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
+                System.out.println("Mode:                " + kind.toString().toLowerCase()
+                        + (kind == ServerOptions.Threads.VIRTUAL && !ClientThreads.isVirtual(threads.newThread(() -> {})) ? " (unsupported, fell back to platform)" : ""));
+                System.out.println("Runtime:             " + Runtime.version());
+                System.out.println("Connections:         " + connections);
+                System.out.println("Accept throughput:   " + String.format("%.0f", connections / (elapsedNanos / 1e9)) + " connections/s");
+                System.out.println("Live platform threads: " + ManagementFactory.getThreadMXBean().getThreadCount());
+                System.out.println("Heap used:           " + heapUsed / (1024 * 1024) + " MiB");
+                System.out.println("Resident set size:   " + readResidentSetSize());
+            } finally {
+                clients.getOutputStream().close();
+                clients.waitFor();
+            }
+        }
+    }
+
+    /**
+     * Client process: opens given number of connections, one after another, and keeps them open
+     * until its standard input is closed by comparing process
+     */
+    private static void openClientConnections(int port, int connections) throws IOException {
+        List<Socket> clientSockets = new ArrayList<>(connections);
+        try {
+            for (int i = 0; i < connections; ++i) {
+                Socket socket = new Socket("localhost", port);
+                new ObjectOutputStream(socket.getOutputStream()).flush();
+                clientSockets.add(socket);
+            }
+            while (System.in.read() >= 0) { }
+        } finally {
+            for (Socket socket : clientSockets)
+                socket.close();
+        }
+    }
+
+    /**
+     * Simulates client handler: starts waiting output loop and blocks on reading client's messages
+     */
+    private static void handleConnection(Socket socket, ThreadFactory threads, CountDownLatch handlersReady) {
+        LinkedBlockingQueue<NetworkMessage> outgoingMessages = new LinkedBlockingQueue<>();
+        Thread outputThread = null;
+        try (ObjectOutputStream out = new ObjectOutputStream(socket.getOutputStream());
+             ObjectInputStream in = new ObjectInputStream(socket.getInputStream())) {
+            outputThread = threads.newThread(() -> {
+                try {
+                    while (true)
+                        out.writeObject(outgoingMessages.take());
+                } catch (InterruptedException | IOException ignored) { }
+            });
+            outputThread.start();
+            handlersReady.countDown();
+            in.readObject();
+        } catch (IOException | ClassNotFoundException ignored) {
+        } finally {
+            if (outputThread != null)
+                outputThread.interrupt();
+        }
+    }
+
+    /**
+     * @return Resident set size of this process, if provided by operating system
+     */
+    private static String readResidentSetSize() {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+                if (line.startsWith("VmRSS:"))
+                    return line.substring("VmRSS:".length()).trim();
+            }
+        } catch (IOException ignored) { }
+        return "unavailable";
+    }
+}
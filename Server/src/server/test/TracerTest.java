@@ -0,0 +1,139 @@
+package server.test;
+
+import network_structures.NetworkMessage;
+import server.Client;
+import server.MessageStream;
+import server.Tracer;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TracerTest {
+
+    @org.junit.jupiter.api.Test
+    void nothingIsSampledWhileDisabled() {
+        Tracer.stop();
+        assertFalse(Tracer.isEnabled());
+        assertNull(Tracer.sample("guide", new NetworkMessage("add_to_queue", null, null, 1)));
+    }
+
+    @org.junit.jupiter.api.Test
+    void finishedSpansAreWrittenAsJsonLines() throws Exception {
+        Path file = Files.createTempFile("trace", ".jsonl");
+        long writtenBefore = Tracer.getWrittenCount();
+        Tracer.start(file, 1);
+        try {
+            Tracer.Span span = Tracer.sample("guide \"7\"", new NetworkMessage("add_to_queue", null, null, 42));
+            assertNotNull(span);
+            long now = System.nanoTime();
+            span.markHandling(now, now + 1000, 3);
+            span.markHandled(now + 5000);
+            span.markResponded();
+            span.markFlushed();
+            Tracer.finish(span);
+
+            Tracer.Span update = Tracer.sample(null, new NetworkMessage("update", null, null, 43));
+            update.markFlushed();
+            Tracer.finish(update);
+        } finally {
+            Tracer.stop();
+        }
+
+        List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        assertEquals(2, lines.size());
+        assertEquals(2, Tracer.getWrittenCount() - writtenBefore);
+        String traced = lines.get(0);
+        assertTrue(traced.contains("\"client\":\"guide \\\"7\\\"\",\"command\":\"add_to_queue\",\"id\":42,\"thread\":3,\"enqueued_ns\":"), traced);
+        for (String stage : new String[] { "handling_ns", "handled_ns", "responded_ns", "flushed_ns" })
+            assertTrue(traced.contains("\"" + stage + "\":"), traced);
+        String update = lines.get(1);
+        assertTrue(update.contains("\"command\":\"update\",\"id\":43,\"flushed_ns\":"), update);
+        assertFalse(update.contains("client") || update.contains("thread") || update.contains("handling_ns"), update);
+        Files.delete(file);
+    }
+
+    @org.junit.jupiter.api.Test
+    void spanIsWrittenOnceAndMayBeMarkedFailed() throws Exception {
+        Path file = Files.createTempFile("trace", ".jsonl");
+        Tracer.start(file, 1);
+        try {
+            Tracer.Span span = Tracer.sample("guide", new NetworkMessage("add_to_queue", null, null, 5));
+            span.markFailed();
+            Tracer.finish(span);
+            assertTrue(span.isFinished());
+            Tracer.finish(span);
+        } finally {
+            Tracer.stop();
+        }
+
+        List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        assertEquals(1, lines.size());
+        assertTrue(lines.get(0).endsWith(",\"failed\":true}"), lines.get(0));
+        Files.delete(file);
+    }
+
+    @org.junit.jupiter.api.Test
+    void requestReusingIdentifierFinishesEarlierSpan() throws Exception {
+        Path file = Files.createTempFile("trace", ".jsonl");
+        Tracer.start(file, 1);
+        try {
+            TracingClient client = new TracingClient();
+            Tracer.Span first = client.trace(new NetworkMessage("add_to_queue", null, null, 9));
+            Tracer.Span second = client.trace(new NetworkMessage("remove_from_queue", null, null, 9));
+            assertTrue(first.isFinished());
+            assertFalse(second.isFinished());
+            client.removeFromSystem();
+            assertTrue(second.isFinished());
+        } finally {
+            Tracer.stop();
+        }
+
+        List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        assertEquals(2, lines.size());
+        assertTrue(lines.get(0).contains("\"command\":\"add_to_queue\""), lines.get(0));
+        assertFalse(lines.get(0).contains("flushed_ns"), lines.get(0));
+        Files.delete(file);
+    }
+
+    @org.junit.jupiter.api.Test
+    void failedRequestsDoNotStopTracingOfClient() throws Exception {
+        Path file = Files.createTempFile("trace", ".jsonl");
+        Tracer.start(file, 1);
+        try {
+            TracingClient client = new TracingClient();
+            // Requests which are never answered, eg. because their tasks fail
+            for (int i = 0; i < 200; ++i) {
+                Tracer.Span span = client.trace(new NetworkMessage("add_to_queue", null, null, i));
+                assertNotNull(span, "request " + i);
+                span.markFailed();
+                Tracer.finish(span);
+            }
+        } finally {
+            Tracer.stop();
+        }
+        Files.delete(file);
+    }
+
+    /**
+     * Client exposing tracing of received requests
+     */
+    private static class TracingClient extends Client {
+        TracingClient() {
+            super((MessageStream) null);
+        }
+
+        Tracer.Span trace(NetworkMessage message) {
+            return traceRequest(message);
+        }
+
+        @Override
+        protected void handlingInput() {}
+
+        @Override
+        protected void handlingOutput() {}
+    }
+}
@@ -0,0 +1,71 @@
+package server.test;
+
+import org.bson.types.ObjectId;
+import server.InMemoryStorage;
+import server.VenueLoader;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class VenueLoaderTest {
+
+    @org.junit.jupiter.api.Test
+    void snapshotKeepsLayout() throws Exception {
+        Path directory = Files.createTempDirectory("venue");
+        Path snapshot = directory.resolve("venue.snapshot");
+        VenueLoader.RoomRecord room = new VenueLoader.RoomRecord(new ObjectId(), "Aula", "1st floor", null);
+        List<VenueLoader.SectorRecord> sectors = Arrays.asList(
+                new VenueLoader.SectorRecord(new ObjectId(), "A-1", "Wybrzeże Wyspiańskiego 27", "Main building", Collections.singletonList(room)),
+                new VenueLoader.SectorRecord(new ObjectId(), "C-13", null, "", Collections.emptyList())
+        );
+        VenueLoader.writeSnapshot(snapshot, sectors);
+
+        List<VenueLoader.SectorRecord> loaded = VenueLoader.load(new InMemoryStorage(sectors, Collections.emptyMap(), null), 1, snapshot);
+        assertEquals(2, loaded.size());
+        assertEquals(sectors.get(0).getId(), loaded.get(0).getId());
+        assertEquals("Wybrzeże Wyspiańskiego 27", loaded.get(0).getAddress());
+        assertEquals(room.getId(), loaded.get(0).getRooms().get(0).getId());
+        assertEquals("1st floor", loaded.get(0).getRooms().get(0).getLocation());
+        assertNull(loaded.get(0).getRooms().get(0).getDescription());
+        assertNull(loaded.get(1).getAddress());
+        assertTrue(loaded.get(1).getRooms().isEmpty());
+
+        Files.delete(snapshot);
+        Files.delete(directory);
+    }
+
+    @org.junit.jupiter.api.Test
+    void snapshotIsReloadedWhenRoomsInStorageChange() throws Exception {
+        Path directory = Files.createTempDirectory("venue");
+        Path snapshot = directory.resolve("venue.snapshot");
+        ObjectId sectorId = new ObjectId();
+        VenueLoader.RoomRecord room = new VenueLoader.RoomRecord(new ObjectId(), "Aula", "", "");
+        VenueLoader.writeSnapshot(snapshot, Collections.singletonList(
+                new VenueLoader.SectorRecord(sectorId, "A-1", "", "", Collections.singletonList(room))));
+
+        VenueLoader.RoomRecord addedRoom = new VenueLoader.RoomRecord(new ObjectId(), "Lab", "", "");
+        List<VenueLoader.SectorRecord> changed = Collections.singletonList(
+                new VenueLoader.SectorRecord(sectorId, "A-1", "", "", Arrays.asList(room, addedRoom)));
+        List<VenueLoader.SectorRecord> loaded = VenueLoader.load(new InMemoryStorage(changed, Collections.emptyMap(), null), 1, snapshot);
+        assertEquals(2, loaded.get(0).getRooms().size());
+        assertEquals(addedRoom.getId(), loaded.get(0).getRooms().get(1).getId());
+        // Reloaded layout replaces snapshot
+        assertEquals(2, VenueLoader.readSnapshot(snapshot).get(0).getRooms().size());
+
+        Files.delete(snapshot);
+        Files.delete(directory);
+    }
+
+    @org.junit.jupiter.api.Test
+    void invalidSnapshotIsRejected() throws Exception {
+        Path snapshot = Files.createTempFile("venue", ".snapshot");
+        Files.write(snapshot, new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 });
+        assertThrows(java.io.IOException.class, () -> VenueLoader.readSnapshot(snapshot));
+        Files.delete(snapshot);
+    }
+}